@@ -0,0 +1,235 @@
+package dht;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Command line tool that routes lookups round simulated Chord rings and
+ * counts the hops they take.
+ * <p>
+ * Usage: ChordSimulation [-nodes 1000,4000,16000] [-lookups 20000]
+ * [-bits 64]
+ * <p>
+ * Each node's id is worked out from an address and port in the same way
+ * as DHTNetwork.hash(), and each node is given a FingerTable whose rows
+ * link to the right nodes, as they are once a ring has settled. A lookup
+ * starts at a random node with a random id and is passed on using the same
+ * rule as DHTNetwork.query(): a node that is responsible for the id stops,
+ * an id at or before the successor goes to the successor, and anything
+ * else goes to the closest preceding finger. Each pass is one hop, as it
+ * would be one DHT_JOIN, DHT_UP or DHT_DOWN packet.
+ * <p>
+ * For each ring size the average, 99th percentile and most hops are
+ * printed next to log2 of the number of nodes. A lookup that finishes at a
+ * node that isn't responsible for its id, or that hasn't finished after as
+ * many hops as there are nodes, is counted as wrong.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class ChordSimulation {
+
+    private IdSpace idSpace;
+    //The ids of the nodes, sorted round the ring from 0.
+    private long[] ids;
+    //The same ids with the top bit flipped, which sorts them as signed
+    //numbers in the same order, so that they can be binary searched.
+    private long[] sortKeys;
+    private FingerTable[] tables;
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        List<Integer> nodeCounts = new ArrayList<Integer>();
+        int lookups = 20000;
+        int bits = IdSpace.MAX_BITS;
+        int counter;
+
+        for (counter = 0; counter + 1 < args.length; counter += 2) {
+            if (args[counter].equals("-nodes")) {
+                for (String count : args[counter + 1].split(",")) {
+                    nodeCounts.add(Integer.parseInt(count.trim()));
+                }
+            } else if (args[counter].equals("-lookups")) {
+                lookups = Integer.parseInt(args[counter + 1]);
+            } else if (args[counter].equals("-bits")) {
+                bits = Integer.parseInt(args[counter + 1]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if ((args.length % 2) != 0) {
+            usage();
+            return;
+        }
+        if (nodeCounts.isEmpty()) {
+            nodeCounts.add(1000);
+            nodeCounts.add(4000);
+            nodeCounts.add(16000);
+        }
+
+        for (int nodes : nodeCounts) {
+            new ChordSimulation(new IdSpace(bits), nodes).run(lookups);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ChordSimulation [-nodes 1000,4000,16000] "
+                + "[-lookups 20000] [-bits 64]");
+    }
+
+    /**
+     * Build a ring with its finger tables filled in.
+     *
+     * @param idSpace The ids that the ring is made of.
+     * @param nodes   The number of nodes. Fewer are used if some of their
+     *                ids are the same.
+     */
+    private ChordSimulation(IdSpace idSpace, int nodes)
+            throws NoSuchAlgorithmException {
+        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+        //Each id with the number of the address and port it came from.
+        Map<Long, Integer> ring = new HashMap<Long, Integer>();
+        DHTNode[] links;
+        String address;
+        int port;
+        int endpoint;
+        int counter;
+        int row;
+
+        this.idSpace = idSpace;
+        for (counter = 0; counter < nodes; counter++) {
+            ring.put(idSpace.fromDigest(sha1.digest((address(counter)
+                    + port(counter)).getBytes(StandardCharsets.UTF_8))),
+                    counter);
+        }
+        sortKeys = new long[ring.size()];
+        counter = 0;
+        for (long id : ring.keySet()) {
+            sortKeys[counter++] = id + Long.MIN_VALUE;
+        }
+        Arrays.sort(sortKeys);
+        ids = new long[sortKeys.length];
+        links = new DHTNode[ids.length];
+        tables = new FingerTable[ids.length];
+        for (counter = 0; counter < ids.length; counter++) {
+            ids[counter] = sortKeys[counter] - Long.MIN_VALUE;
+            endpoint = ring.get(ids[counter]);
+            address = address(endpoint);
+            port = port(endpoint);
+            links[counter] = new DHTNode(ids[counter], address, port);
+            tables[counter] = new FingerTable(ids[counter], address, port,
+                    idSpace);
+        }
+        for (counter = 0; counter < ids.length; counter++) {
+            for (row = 0; row < idSpace.getBits(); row++) {
+                tables[counter].addNode(links[responsible(
+                        idSpace.fingerStart(ids[counter], row))]);
+            }
+        }
+    }
+
+    /**
+     * Route lookups from random nodes and print the results.
+     *
+     * @param lookups The number of lookups.
+     */
+    private void run(int lookups) {
+        Random random = new Random(ids.length);
+        long mask = idSpace.distance(1, 0);
+        int[] hops = new int[lookups];
+        long total = 0;
+        int wrong = 0;
+        int start;
+        long key;
+        int counter;
+
+        for (counter = 0; counter < lookups; counter++) {
+            start = random.nextInt(ids.length);
+            key = random.nextLong() & mask;
+            hops[counter] = route(start, key);
+            if (hops[counter] < 0) {
+                wrong++;
+                hops[counter] = ids.length;
+            }
+            total += hops[counter];
+        }
+        Arrays.sort(hops);
+
+        System.out.println(ids.length + " nodes: log2 "
+                + String.format("%.1f", Math.log(ids.length) / Math.log(2))
+                + ", hops average "
+                + String.format("%.2f", (double) total / Math.max(1, lookups))
+                + ", p99 " + ((lookups == 0) ? 0 : hops[(int) Math.ceil(
+                lookups * 0.99) - 1])
+                + ", max " + ((lookups == 0) ? 0 : hops[lookups - 1]) + ", "
+                + wrong + " wrong");
+    }
+
+    /**
+     * Pass a lookup from node to node until it reaches the node that is
+     * responsible for the id.
+     *
+     * @param start The index of the node the lookup starts at.
+     * @param key   The id being looked up.
+     * @return The number of hops, or -1 if the lookup went wrong.
+     */
+    private int route(int start, long key) {
+        int current = start;
+        long predecessor;
+        DHTNode successor;
+        DHTNode next;
+        int hops;
+
+        for (hops = 0; hops < ids.length; hops++) {
+            predecessor = ids[(current + ids.length - 1) % ids.length];
+            if ((ids.length == 1)
+                    || idSpace.inHalfOpen(key, predecessor, ids[current])) {
+                return (current == responsible(key)) ? hops : -1;
+            }
+            successor = tables[current].getSuccessor();
+            if (idSpace.inHalfOpen(key, ids[current], successor.getId())) {
+                next = successor;
+            } else {
+                next = tables[current].closestPrecedingFinger(key);
+                if (next == null) {
+                    next = successor;
+                }
+            }
+            current = indexOf(next.getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Find the node responsible for an id, which is the first node at or
+     * after it going round the ring.
+     *
+     * @param id The id.
+     * @return The index of the node.
+     */
+    private int responsible(long id) {
+        int index = Arrays.binarySearch(sortKeys, id + Long.MIN_VALUE);
+
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return (index == ids.length) ? 0 : index;
+    }
+
+    private int indexOf(long id) {
+        return Arrays.binarySearch(sortKeys, id + Long.MIN_VALUE);
+    }
+
+    //Every node gets an address of its own.
+    private static String address(int index) {
+        return "10." + ((index >> 16) & 0xFF) + "." + ((index >> 8) & 0xFF)
+                + "." + (index & 0xFF);
+    }
+
+    private static int port(int index) {
+        return 4500 + (index % 1000);
+    }
+}
@@ -0,0 +1,188 @@
+package dht;
+
+import java.util.*;
+
+/**
+ * Command line tool that measures the cost of searching and updating a
+ * finger table of each size.
+ * <p>
+ * Usage: FingerBenchmark [-bits 8,16,32,64] [-nodes 1000]
+ * [-lookups 1000000]
+ * <p>
+ * For each number of bits, a finger table is filled from a ring of -nodes
+ * random ids, or as many as the id space holds. The time per call is then
+ * printed for closestPrecedingFinger() with random ids and for addNode().
+ * The number of rows is the number of bits, and an id can have at most
+ * IdSpace.MAX_BITS.
+ * <p>
+ * Each search is also checked against a plain scan of the ring for the
+ * last node strictly between the table's node and the id. The finger
+ * table only holds some of the nodes, so its answer must be in that
+ * interval and must not be further round than the scan's answer. Any
+ * other answer is counted as wrong.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class FingerBenchmark {
+
+    //Where the search results are added up, so that the searches can't be
+    //optimised away.
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        List<Integer> bitCounts = new ArrayList<Integer>();
+        int nodes = 1000;
+        int lookups = 1000000;
+        int counter;
+
+        for (counter = 0; counter + 1 < args.length; counter += 2) {
+            if (args[counter].equals("-bits")) {
+                for (String count : args[counter + 1].split(",")) {
+                    bitCounts.add(Integer.parseInt(count.trim()));
+                }
+            } else if (args[counter].equals("-nodes")) {
+                nodes = Integer.parseInt(args[counter + 1]);
+            } else if (args[counter].equals("-lookups")) {
+                lookups = Integer.parseInt(args[counter + 1]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if ((args.length % 2) != 0) {
+            usage();
+            return;
+        }
+        if (bitCounts.isEmpty()) {
+            bitCounts.add(8);
+            bitCounts.add(16);
+            bitCounts.add(32);
+            bitCounts.add(64);
+        }
+
+        for (int bits : bitCounts) {
+            run(new IdSpace(bits), nodes, lookups);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: FingerBenchmark [-bits 8,16,32,64] "
+                + "[-nodes 1000] [-lookups 1000000]");
+    }
+
+    /**
+     * Fill a finger table for one id space, time it and print the results.
+     *
+     * @param idSpace The ids that the ring is made of.
+     * @param nodes   The number of nodes in the ring.
+     * @param lookups The number of searches to time.
+     */
+    private static void run(IdSpace idSpace, int nodes, int lookups) {
+        Random random = new Random(idSpace.getBits());
+        Set<Long> ring = new HashSet<Long>();
+        long[] ids;
+        long[] keys = new long[lookups];
+        long mask = idSpace.distance(1, 0);
+        FingerTable table = null;
+        DHTNode found;
+        long id;
+        long start;
+        long searchTime;
+        long addTime;
+        long check = 0;
+        int wrong = 0;
+        int rounds;
+        int counter;
+
+        if ((idSpace.getBits() < 31) && (nodes > (1 << idSpace.getBits()))) {
+            nodes = 1 << idSpace.getBits();
+        }
+        while (ring.size() < nodes) {
+            ring.add(random.nextLong() & mask);
+        }
+        ids = new long[nodes];
+        counter = 0;
+        for (long ringId : ring) {
+            ids[counter++] = ringId;
+        }
+        id = ids[0];
+        for (counter = 0; counter < lookups; counter++) {
+            keys[counter] = random.nextLong() & mask;
+        }
+
+        //Fill a table and run the searches once before timing them, so
+        //that the timed runs aren't slowed down by the methods still being
+        //interpreted. Small rings are filled several times to get enough
+        //calls to time.
+        rounds = Math.max(1, 100000 / nodes);
+        for (counter = 0; counter < rounds; counter++) {
+            table = fill(idSpace, id, ids);
+        }
+        start = System.nanoTime();
+        for (counter = 0; counter < rounds; counter++) {
+            table = fill(idSpace, id, ids);
+        }
+        addTime = (System.nanoTime() - start) / Math.max(1, (nodes - 1)
+                * rounds);
+
+        for (counter = 0; counter < lookups; counter++) {
+            found = table.closestPrecedingFinger(keys[counter]);
+            check += (found == null) ? 0 : found.getId();
+        }
+        start = System.nanoTime();
+        for (counter = 0; counter < lookups; counter++) {
+            found = table.closestPrecedingFinger(keys[counter]);
+            check += (found == null) ? 0 : found.getId();
+        }
+        searchTime = (System.nanoTime() - start) / Math.max(1, lookups);
+        sink = check;
+
+        for (counter = 0; counter < Math.min(lookups, 10000); counter++) {
+            if (!isCorrect(idSpace, id, ids, keys[counter],
+                    table.closestPrecedingFinger(keys[counter]))) {
+                wrong++;
+            }
+        }
+
+        System.out.println("bits " + idSpace.getBits() + ", " + nodes
+                + " nodes: closestPrecedingFinger " + searchTime
+                + " ns, addNode " + addTime + " ns, "
+                + table.getNodes().size() + " distinct links, " + wrong
+                + " wrong");
+    }
+
+    /**
+     * Make a finger table for one node and add every other node to it.
+     */
+    private static FingerTable fill(IdSpace idSpace, long id, long[] ids) {
+        FingerTable table = new FingerTable(id, "127.0.0.1", 0, idSpace);
+
+        for (int counter = 1; counter < ids.length; counter++) {
+            table.addNode(ids[counter], "127.0.0.1", counter);
+        }
+        return table;
+    }
+
+    /**
+     * Check the answer of a search against a scan of every node.
+     */
+    private static boolean isCorrect(IdSpace idSpace, long id, long[] ids,
+                                     long key, DHTNode found) {
+        long best = id;
+
+        for (long ringId : ids) {
+            if (idSpace.inOpen(ringId, id, key) && IdSpace.isLess(
+                    idSpace.distance(id, best), idSpace.distance(id, ringId))) {
+                best = ringId;
+            }
+        }
+        if (found == null) {
+            return best == id;
+        }
+        return idSpace.inOpen(found.getId(), id, key)
+                && !IdSpace.isLess(idSpace.distance(id, best),
+                idSpace.distance(id, found.getId()));
+    }
+}
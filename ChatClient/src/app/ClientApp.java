@@ -25,6 +25,7 @@ public class ClientApp {
         ClientLogin login = new ClientLogin();
         ClientView view = new ClientView();
         DHTNetwork dht = new DHTNetwork();
+        HistoryStore history = new HistoryStore("history");
 
         //Passing references to each other.
         model.initNetwork(network);
@@ -32,6 +33,9 @@ public class ClientApp {
         model.initView(view);
         model.initDHT(dht);
         model.initLogin(login);
+        model.setShards(ShardRing.parse(System.getProperty("server.shards")));
+        model.setMaxRefreshRate(Integer.getInteger("gui.refreshRate",
+                ClientModel.DEFAULT_REFRESH_RATE));
         console.initModel(model);
         network.initModel(model);
         network.initConsole(console);
@@ -42,10 +46,18 @@ public class ClientApp {
         login.initModel(model);
         login.initDHT(dht);
         view.initModel(model);
-        view.refreshPeerList(model.getPeerList());
         view.initDHT(dht);
+        view.initHistory(history);
         dht.initNetwork(network);
+        dht.setIdBits(Integer.getInteger("dht.idBits", IdSpace.MAX_BITS));
         file.initConsole(console);
+        file.setMapped(Boolean.getBoolean("log.mapped"));
+        file.getWriter().setFlushBytes(Integer.getInteger("log.flushBytes",
+                LogWriter.DEFAULT_FLUSH_BYTES));
+        file.getWriter().setFlushInterval(Long.getLong("log.flushInterval",
+                LogWriter.DEFAULT_FLUSH_INTERVAL));
+        file.getWriter().setSync(Boolean.getBoolean("log.sync"));
+        network.getTelemetry().loadSettings(System.getProperties());
     }
 
 }
@@ -0,0 +1,48 @@
+package dht;
+
+/**
+ * Listener interface for changes to the state of a DHTNetwork.
+ * <p>
+ * Each callback describes a single row that has changed so that the GUI
+ * only has to redraw what is different. Callbacks are made on whichever
+ * thread changed the DHT (usually the network thread) so implementations
+ * should do as little work as possible and hand the change off.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public interface DHTListener {
+
+    /**
+     * Called when a row in the finger table has changed.
+     *
+     * @param index The index of the row in the finger table.
+     * @param row   The new row: number, target, id, address and port.
+     */
+    void fingerChanged(int index, String[] row);
+
+    /**
+     * Called when an entry in the predecessor or successor list may have
+     * changed. Predecessors come first, followed by successors.
+     *
+     * @param index The index of the row in the combined list.
+     * @param row   The new row: id, address and port.
+     */
+    void listChanged(int index, String[] row);
+
+    /**
+     * Called when a file has been added to this node's file list.
+     *
+     * @param fileName The name of the file.
+     * @param fileId   The id that the file name hashes to.
+     */
+    void fileAdded(String fileName, long fileId);
+
+    /**
+     * Called when a file has been removed from this node's file list.
+     *
+     * @param fileName The name of the file.
+     */
+    void fileRemoved(String fileName);
+}
@@ -1,15 +1,19 @@
 package dht;
 
-import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import static java.nio.file.StandardCopyOption.*;
@@ -42,9 +46,9 @@ public class DHTNetwork implements Runnable {
 
     private String ip;
     private int port;
-    private int id;
+    private long id;
     private int storeNo = 3;
-    private int tabSize = 9;
+    private IdSpace idSpace = new IdSpace(IdSpace.MAX_BITS);
     private DHTNode[] successorList;
     private DHTNode[] predecessorList;
     private FingerTable fTable;
@@ -57,11 +61,42 @@ public class DHTNetwork implements Runnable {
     private long dhtCheckTime = 60000;
     private boolean dhtConfirmed = false;
     private boolean dhtRegistered = false;
+    private List<DHTListener> listeners;
+    //The ids of node endpoints and file names that have been hashed before.
+    private ConcurrentMap<String, Long> idCache;
+    private static final int ID_CACHE_SIZE = 4096;
+    //For each kind of request served here: how many, their total hops and
+    //the most hops any of them took.
+    private Map<String, long[]> hopCounts;
+    //MessageDigest isn't thread safe, so each thread has its own.
+    private static final ThreadLocal<MessageDigest> sha1 =
+            new ThreadLocal<MessageDigest>() {
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA-1");
+                    } catch (NoSuchAlgorithmException nsaException) {
+                        throw new IllegalStateException(nsaException);
+                    }
+                }
+            };
 
     /**
      * Simple constructor for the DHTNetwork class.
      */
     public DHTNetwork() {
+        listeners = new CopyOnWriteArrayList<DHTListener>();
+        idCache = new ConcurrentHashMap<String, Long>();
+        hopCounts = new TreeMap<String, long[]>();
+    }
+
+    /**
+     * Register a listener to be told about changes to the finger table,
+     * the pred/succ lists and the file list.
+     *
+     * @param listener The listener being added.
+     */
+    public void addDHTListener(DHTListener listener) {
+        listeners.add(listener);
     }
 
     /**
@@ -89,10 +124,13 @@ public class DHTNetwork implements Runnable {
         this.ip = ip;
         this.port = port;
         id = hash(ip + port);
-        fTable = new FingerTable(id, ip, port, tabSize);
+        fTable = new FingerTable(id, ip, port, idSpace);
         successorList = new DHTNode[storeNo];
         predecessorList = new DHTNode[storeNo];
         fileNames = new CopyOnWriteArrayList<String>();
+        fTable.initListeners(listeners);
+        firePredecessorsChanged(0);
+        fireSuccessorsChanged(0);
         upDirTable = new Hashtable<String, File>();
         new Thread(this).start();
         //If this is the first node in the DHTNetwork, we should send a notice
@@ -108,9 +146,9 @@ public class DHTNetwork implements Runnable {
     /**
      * Getter for the id value.
      *
-     * @return The id value as an int.
+     * @return The id value as a long.
      */
-    public int getId() {
+    public long getId() {
         return id;
     }
 
@@ -120,7 +158,27 @@ public class DHTNetwork implements Runnable {
      * @return The table index as an int.
      */
     public int getTabSize() {
-        return tabSize;
+        return idSpace.getBits();
+    }
+
+    /**
+     * Set how many bits an id has. Every node in a ring must use the same
+     * number. This has to be set before the DHT is started.
+     *
+     * @param idBits The number of bits, from 1 to IdSpace.MAX_BITS.
+     */
+    public void setIdBits(int idBits) {
+        idSpace = new IdSpace(idBits);
+        idCache.clear();
+    }
+
+    /**
+     * Getter for the ids that the ring is made of.
+     *
+     * @return The IdSpace object.
+     */
+    public IdSpace getIdSpace() {
+        return idSpace;
     }
 
     /**
@@ -129,42 +187,49 @@ public class DHTNetwork implements Runnable {
      * This function allows a string input. This input is hashed with
      * SHA-1 which is then converted to an integer and taken an appropriate
      * modulus of giving us a value between 0 and the max value of
-     * our chord ring (255 in this case).
+     * our chord ring (2^bits - 1, where the number of bits is set with
+     * setIdBits).
      * <p>
      * The way that we are using this function to determine the node id
      * is by concatenating the address string and the port int together
      * and hashing it.
      * <p>
      * Example: hash(127.0.0.14505) for address 127.0.0.1 and port 4505.
+     * <p>
+     * The same endpoints and file names are hashed over and over, so ids
+     * are remembered. Once ID_CACHE_SIZE of them are remembered the cache
+     * is emptied and starts again.
+     *
+     * @param input The string that we are hashing.
+     * @return The resulting id value.
+     */
+    public long hash(String input) {
+        Long cached = idCache.get(input);
+        long newId;
+
+        if (cached != null) {
+            return cached;
+        }
+        newId = computeHash(input);
+        if (idCache.size() >= ID_CACHE_SIZE) {
+            idCache.clear();
+        }
+        idCache.put(input, newId);
+        return newId;
+    }
+
+    /**
+     * Hash a string to an id without using the cache.
      *
      * @param input The string that we are hashing.
      * @return The resulting id value.
      */
-    public int hash(String input) {
-        MessageDigest hash;
+    private long computeHash(String input) {
         byte[] digestBytes;
-        BigInteger hashVal = null;
-        int id;
-        int idSpace;
 
-        try {
-            //Hash the input string.
-            hash = MessageDigest.getInstance("SHA-1");
-            hash.reset();
-            hash.update(input.getBytes("utf8"));
-            digestBytes = hash.digest();
-            //Get the numerical value of the digest.
-            hashVal = new BigInteger(digestBytes);
-        } catch (Exception e) {
-        }
-
-        //Get possible values in id space.
-        idSpace = (int) Math.pow(2, tabSize - 1);
-        //Use mod operator to get something in
-        //between 0 and idSpace.
-        id = hashVal.intValue() % idSpace;
-        id = Math.abs(id);
-        return id;
+        //digest() resets the MessageDigest, ready for the next call.
+        digestBytes = sha1.get().digest(input.getBytes(StandardCharsets.UTF_8));
+        return idSpace.fromDigest(digestBytes);
     }
 
     /**
@@ -176,35 +241,42 @@ public class DHTNetwork implements Runnable {
      * should be forwarded to.
      * <p>
      * The node first checks if IT is the node responsible (in which case
-     * it returns null), if not, it searches the finger table and returns
-     * the appropriate DHTNode object.
+     * it returns null). If the id comes at or before the successor, the
+     * successor is responsible and the request goes straight to it.
+     * Otherwise the request goes to the closest finger that comes before
+     * the id, which is at least half way there, so a request takes
+     * O(log N) hops in a ring of N nodes. A request is never sent past the
+     * id, so it still gets there when finger tables are out of date.
      *
      * @param itemId
      * @return
      */
-    public DHTNode query(int itemId) {
+    public DHTNode query(long itemId) {
         DHTNode searchNode = null;
+        DHTNode successor;
         //Case where the current node is responsible for this
-        //item id.
+        //item id, which is every id after the predecessor up to and
+        //including this node's own, going round the ring.
         if (predecessorList[0] == null) {
             return searchNode;
         }
-        if ((itemId > predecessorList[0].getId())) {
-            if (itemId <= id) {
-                return searchNode;
-            }
-            if (id < predecessorList[0].getId()) {
-                return searchNode;
-            }
+        if (idSpace.inHalfOpen(itemId, predecessorList[0].getId(), id)) {
+            return searchNode;
         }
-        if ((itemId < predecessorList[0].getId())) {
-            if ((id < predecessorList[0].getId()) && (id >= itemId)) {
-                return searchNode;
+
+        successor = successorList[0];
+        if (successor == null) {
+            successor = fTable.getSuccessor();
+        }
+        if (idSpace.inHalfOpen(itemId, id, successor.getId())) {
+            searchNode = successor;
+        } else {
+            searchNode = fTable.closestPrecedingFinger(itemId);
+            if (searchNode == null) {
+                searchNode = successor;
             }
         }
 
-        searchNode = fTable.findSuccessor(itemId);
-
         if (searchNode.getId() == id) {
             searchNode = null;
         }
@@ -218,7 +290,7 @@ public class DHTNetwork implements Runnable {
      * Helpful for debugging.
      */
     public void printDetails() {
-        System.out.println("ID: " + id);
+        System.out.println("ID: " + IdSpace.format(id));
         System.out.println("Address: " + ip);
         System.out.println("Port: " + port);
 
@@ -227,7 +299,7 @@ public class DHTNetwork implements Runnable {
         for (counter = 0; counter < storeNo; counter++) {
             if (successorList[counter] != null) {
                 System.out.println("Successor " + (counter + 1) + ": " +
-                        successorList[counter].getId());
+                        IdSpace.format(successorList[counter].getId()));
             } else {
                 System.out.println("Successor " + (counter + 1) + ": Not set");
             }
@@ -236,7 +308,7 @@ public class DHTNetwork implements Runnable {
         for (counter = 0; counter < storeNo; counter++) {
             if (predecessorList[counter] != null) {
                 System.out.println("Predecessor " + (counter + 1) + ": " +
-                        predecessorList[counter].getId());
+                        IdSpace.format(predecessorList[counter].getId()));
             } else {
                 System.out.println("Predecessor " + (counter + 1) + ": Not set");
             }
@@ -259,7 +331,7 @@ public class DHTNetwork implements Runnable {
      * @param port The port of the new node.
      */
     public void addNode(String ip, int port) {
-        int newId;
+        long newId;
 
         newId = hash(ip + port);
         fTable.addNode(newId, ip, port);
@@ -290,6 +362,8 @@ public class DHTNetwork implements Runnable {
         //locate the correct successor.
         List<String> packetData = new ArrayList<String>();
 
+        packetData.add(Integer.toString(idSpace.getBits()));
+        packetData.add("1");
         packetData.add(ip);
         packetData.add(Integer.toString(port));
         network.addData("DHT_JOIN", packetData, destAddress, destPort);
@@ -301,10 +375,14 @@ public class DHTNetwork implements Runnable {
      * <b>
      * If not, it forwards the request to the appropriate node.
      *
-     * @param packetContents The contents of the join request.
+     * @param packetContents The contents of the join request: the number
+     *                       of bits in the new node's ids, the number of
+     *                       hops it has taken, then the address and port
+     *                       of the new node.
      */
     public void forwardJoinReq(List<String> packetContents) {
-        int destId;
+        long destId;
+        int hops;
         DHTNode fwdNode;
         List<String> packetData = new ArrayList<String>();
         String destAddress;
@@ -315,6 +393,13 @@ public class DHTNetwork implements Runnable {
         orgNode = removeDHTInfo(packetContents);
         destAddress = orgNode.getAddress();
         destPort = orgNode.getPort();
+        if (!sameIdBits(packetContents)) {
+            System.out.println("Ignored join request from " + destAddress
+                    + ":" + destPort + ", which uses a different number of"
+                    + " id bits.");
+            return;
+        }
+        hops = readHops(packetContents);
 
         //Get the closest successor in the finger table.
         destId = hash(destAddress + destPort);
@@ -331,12 +416,16 @@ public class DHTNetwork implements Runnable {
             }
             returnDetails(destAddress, destPort);
             addNode(destAddress, destPort);
-            System.out.println("Served join request.");
+            recordHops("DHT_JOIN", hops);
+            System.out.println("Served join request after " + hops
+                    + " hops.");
             printDetails();
         }
         //This means it's not us. Reconstruct this packet and send it
         //to the node we think it belongs to.
         else {
+            packetData.add(Integer.toString(idSpace.getBits()));
+            packetData.add(Integer.toString(hops + 1));
             packetData.add(destAddress);
             packetData.add(Integer.toString(destPort));
             network.addData("DHT_JOIN", packetData,
@@ -478,7 +567,7 @@ public class DHTNetwork implements Runnable {
      * @param senderPort    The port of the sender.
      */
     public void receiveDetails(List<String> packetData, String senderAddress, int senderPort) {
-        int senderId;
+        long senderId;
 
         //Make the first successor from the address and port that the packet
         //originated from.
@@ -496,6 +585,8 @@ public class DHTNetwork implements Runnable {
         for (counter = 1; counter < storeNo; counter++) {
             successorList[counter] = removeDHTInfo(packetData);
         }
+        firePredecessorsChanged(0);
+        fireSuccessorsChanged(0);
         //Of course our immediate successor needs to be added also.
         addNode(senderAddress, senderPort);
 
@@ -562,7 +653,7 @@ public class DHTNetwork implements Runnable {
      */
     public DHTNode removeDHTInfo(List<String> packetData) {
         DHTNode returnNode;
-        int returnId;
+        long returnId;
         String returnAddress;
         int returnPort;
         String strPort;
@@ -602,7 +693,7 @@ public class DHTNetwork implements Runnable {
      * @return The set status.
      */
     public boolean attemptSetSuccessor(String newIp, int newPort, int index) {
-        int newId;
+        long newId;
         DHTNode tempNode;
 
         newId = hash(newIp + newPort);
@@ -617,23 +708,10 @@ public class DHTNetwork implements Runnable {
             return true;
         } else if (newId == successorList[index].getId()) {
             return true;
-        } else if (newId > id) {
-            if (successorList[index].getId() < id) {
-                setSuccessor(tempNode, index);
-                return true;
-            }
-            if (successorList[index].getId() > newId) {
-                setSuccessor(tempNode, index);
-                return true;
-            }
-        } else {
-            if (successorList[index].getId() > id) {
-                return false;
-            }
-            if (successorList[index].getId() > newId) {
-                setSuccessor(tempNode, index);
-                return true;
-            }
+        } else if (idSpace.inOpen(newId, id, successorList[index].getId())) {
+            //The new node comes between this node and the old successor.
+            setSuccessor(tempNode, index);
+            return true;
         }
         return false;
     }
@@ -656,6 +734,7 @@ public class DHTNetwork implements Runnable {
         }
 
         successorList[index] = newNode;
+        fireSuccessorsChanged(index);
     }
 
     /**
@@ -675,7 +754,7 @@ public class DHTNetwork implements Runnable {
      */
     //Method to set one of the predecessors to a new node.
     public boolean attemptSetPredecessor(String newIp, int newPort, int index) {
-        int newId;
+        long newId;
         DHTNode tempNode;
 
         newId = hash(newIp + newPort);
@@ -690,23 +769,10 @@ public class DHTNetwork implements Runnable {
             return true;
         } else if (newId == predecessorList[index].getId()) {
             return true;
-        } else if (newId > id) {
-            if (predecessorList[index].getId() < id) {
-                return false;
-            }
-            if (predecessorList[index].getId() < newId) {
-                setPredecessor(tempNode, index);
-                return true;
-            }
-        } else {
-            if (predecessorList[index].getId() > id) {
-                setPredecessor(tempNode, index);
-                return true;
-            }
-            if (predecessorList[index].getId() < newId) {
-                setPredecessor(tempNode, index);
-                return true;
-            }
+        } else if (idSpace.inOpen(newId, predecessorList[index].getId(), id)) {
+            //The new node comes between the old predecessor and this node.
+            setPredecessor(tempNode, index);
+            return true;
         }
         return false;
     }
@@ -729,6 +795,7 @@ public class DHTNetwork implements Runnable {
         }
 
         predecessorList[index] = newNode;
+        firePredecessorsChanged(index);
 
         if (index == 0) {
             checkFiles();
@@ -753,7 +820,7 @@ public class DHTNetwork implements Runnable {
     public void uploadCheck(String fileName, String reqAddress, int reqPort,
                             File selectedUpload) {
         DHTNode checkNode;
-        int fileId;
+        long fileId;
         int filePort;
 
         fileId = hash(fileName);
@@ -762,15 +829,16 @@ public class DHTNetwork implements Runnable {
         if (checkNode == null) {
             List<String> packetData = new ArrayList<String>();
             packetData.add(fileName);
-            System.out.println("Received upload req for ID " + fileId);
+            System.out.println("Received upload req for ID " + IdSpace.format(fileId));
             network.setLastUploadId(id);
+            recordHops("DHT_UP", 0);
             transferFile(selectedUpload);
             network.notifyPresentationServer("PRES_FILE", packetData);
             return;
         }
 
         filePort = sendFile(selectedUpload);
-        forwardFileUpRequest(fileName, reqAddress, reqPort, filePort);
+        forwardFileUpRequest(fileName, reqAddress, reqPort, filePort, 0);
     }
 
     /**
@@ -785,14 +853,15 @@ public class DHTNetwork implements Runnable {
      * @param reqAddress Address of the requesting node.
      * @param reqPort    Port of the requesting node.
      * @param filePort   Port that the requesting node has opened for transfer.
+     * @param hops       The number of hops the request has taken so far.
      * @return True if this node is responsible for the upload. Oterwise,
      * false.
      */
     public boolean forwardFileUpRequest(String fileName, String reqAddress,
-                                        int reqPort, int filePort) {
+                                        int reqPort, int filePort, int hops) {
         DHTNode fwdNode;
         List<String> packetData = new ArrayList<String>();
-        int fileId;
+        long fileId;
 
         fileId = hash(fileName);
 
@@ -802,7 +871,9 @@ public class DHTNetwork implements Runnable {
         //then reply to the request and tell them what we know.
         //This means it's us.
         if (fwdNode == null) {
-            System.out.println("Received upload req for ID " + fileId);
+            System.out.println("Received upload req for ID " + IdSpace.format(fileId)
+                    + " after " + hops + " hops.");
+            recordHops("DHT_UP", hops);
             addFileName(fileName);
             return true;
         }
@@ -813,6 +884,7 @@ public class DHTNetwork implements Runnable {
             packetData.add(reqAddress);
             packetData.add(Integer.toString(reqPort));
             packetData.add(Integer.toString(filePort));
+            packetData.add(Integer.toString(hops + 1));
             network.addData("DHT_UP", packetData,
                     fwdNode.getAddress(), fwdNode.getPort());
             network.setLastUploadId(fwdNode.getId());
@@ -853,13 +925,16 @@ public class DHTNetwork implements Runnable {
         String reqAddress;
         int reqPort;
         int filePort;
+        int hops;
 
         fileName = packetContents.remove(0);
         reqAddress = packetContents.remove(0);
         reqPort = Integer.parseInt(packetContents.remove(0));
         filePort = Integer.parseInt(packetContents.remove(0));
+        hops = readHops(packetContents);
 
-        if (forwardFileUpRequest(fileName, reqAddress, reqPort, filePort)) {
+        if (forwardFileUpRequest(fileName, reqAddress, reqPort, filePort,
+                hops)) {
             returnFileUpConfirmation(fileName, reqAddress, reqPort, filePort);
         }
     }
@@ -907,9 +982,29 @@ public class DHTNetwork implements Runnable {
      * false.
      */
     public boolean forwardFileDownRequest(String fileName, String reqAddress, int reqPort, boolean initRequest) {
+        return forwardFileDownRequest(fileName, reqAddress, reqPort,
+                initRequest, 0);
+    }
+
+    /**
+     * Handles a download request that has already been forwarded a number
+     * of times.
+     *
+     * @param fileName    Name of the file.
+     * @param reqAddress  Address of the requesting node.
+     * @param reqPort     Port of the requesting node.
+     * @param initRequest Whether or not the request originated from this
+     *                    node.
+     * @param hops        The number of hops the request has taken so far.
+     * @return True if this node is responsible for the download. Otherwise,
+     * false.
+     */
+    public boolean forwardFileDownRequest(String fileName, String reqAddress,
+                                          int reqPort, boolean initRequest,
+                                          int hops) {
         DHTNode fwdNode;
         List<String> packetData = new ArrayList<String>();
-        int fileId;
+        long fileId;
 
         fileId = hash(fileName);
 
@@ -919,7 +1014,9 @@ public class DHTNetwork implements Runnable {
         //then reply to the request and tell them what we know.
         //This means it's us.
         if (fwdNode == null) {
-            System.out.println("Received download req for ID " + fileId);
+            System.out.println("Received download req for ID " + IdSpace.format(fileId)
+                    + " after " + hops + " hops.");
+            recordHops("DHT_DOWN", hops);
             if (initRequest) {
                 network.setLastDownloadId(id);
             }
@@ -931,6 +1028,7 @@ public class DHTNetwork implements Runnable {
             packetData.add(fileName);
             packetData.add(reqAddress);
             packetData.add(Integer.toString(reqPort));
+            packetData.add(Integer.toString(hops + 1));
             network.addData("DHT_DOWN", packetData,
                     fwdNode.getAddress(), fwdNode.getPort());
             if (initRequest) {
@@ -997,16 +1095,98 @@ public class DHTNetwork implements Runnable {
         String fileName;
         String reqAddress;
         int reqPort;
+        int hops;
 
         fileName = packetContents.remove(0);
         reqAddress = packetContents.remove(0);
         reqPort = Integer.parseInt(packetContents.remove(0));
+        hops = readHops(packetContents);
 
-        if (forwardFileDownRequest(fileName, reqAddress, reqPort, false)) {
+        if (forwardFileDownRequest(fileName, reqAddress, reqPort, false,
+                hops)) {
             returnFileDownConfirmation(fileName, reqAddress, reqPort);
         }
     }
 
+    /**
+     * Take the number of id bits from the front of a join request and check
+     * that it is the number this node uses. Requests from nodes that are
+     * older than 64-bit ids have none, and don't match.
+     *
+     * @param packetContents The join request's contents, without the new
+     *                       node's address and port.
+     * @return True if the new node uses the same number of bits.
+     */
+    private boolean sameIdBits(List<String> packetContents) {
+        if (packetContents.size() < 2) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(packetContents.remove(0))
+                    == idSpace.getBits();
+        } catch (NumberFormatException nfException) {
+            return false;
+        }
+    }
+
+    /**
+     * Take the hop count from the front of a forwarded request. Requests
+     * from nodes that don't count hops have none, and count as one hop.
+     *
+     * @param packetContents The rest of the request's contents.
+     * @return The number of hops the request has taken.
+     */
+    private int readHops(List<String> packetContents) {
+        if (packetContents.isEmpty()) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(packetContents.remove(0));
+        } catch (NumberFormatException nfException) {
+            return 1;
+        }
+    }
+
+    /**
+     * Record the number of hops a request took to reach this node, which
+     * is responsible for it.
+     *
+     * @param request The kind of request, such as DHT_JOIN.
+     * @param hops    The number of hops.
+     */
+    private synchronized void recordHops(String request, int hops) {
+        long[] counts = hopCounts.get(request);
+
+        if (counts == null) {
+            counts = new long[3];
+            hopCounts.put(request, counts);
+        }
+        counts[0]++;
+        counts[1] += hops;
+        counts[2] = Math.max(counts[2], hops);
+    }
+
+    /**
+     * Produce a one line summary of how many hops the requests served by
+     * this node took.
+     *
+     * @return The summary.
+     */
+    public synchronized String getHopSummary() {
+        StringBuilder builder = new StringBuilder("dht hops:");
+
+        for (Map.Entry<String, long[]> entry : hopCounts.entrySet()) {
+            long[] counts = entry.getValue();
+
+            builder.append(" ").append(entry.getKey()).append(" requests ")
+                    .append(counts[0]).append(" avg ")
+                    .append(String.format("%.2f",
+                            counts[1] / (double) counts[0]))
+                    .append(" max ").append(counts[2]).append(";");
+        }
+        return builder.toString();
+    }
+
     /**
      * Called when a node wants to remove itself from the ring.
      * <p>
@@ -1201,6 +1381,7 @@ public class DHTNetwork implements Runnable {
         }
 
         predecessorList[storeNo - 1] = null;
+        firePredecessorsChanged(index);
     }
 
     /**
@@ -1228,6 +1409,7 @@ public class DHTNetwork implements Runnable {
         }
 
         successorList[storeNo - 1] = null;
+        fireSuccessorsChanged(index);
     }
 
     /**
@@ -1238,6 +1420,9 @@ public class DHTNetwork implements Runnable {
      */
     public void addFileName(String newName) {
         fileNames.add(newName);
+        for (DHTListener listener : listeners) {
+            listener.fileAdded(newName, hash(newName));
+        }
         network.refreshDHTGUI();
     }
 
@@ -1253,6 +1438,9 @@ public class DHTNetwork implements Runnable {
         for (counter = 0; counter < fileNames.size(); counter++) {
             if (fileNames.get(counter).equalsIgnoreCase(newName)) {
                 fileNames.remove(counter);
+                for (DHTListener listener : listeners) {
+                    listener.fileRemoved(newName);
+                }
                 network.refreshDHTGUI();
                 return;
             }
@@ -1266,11 +1454,11 @@ public class DHTNetwork implements Runnable {
      */
     public void printFileNames() {
         int counter;
-        int fileId;
+        long fileId;
 
         for (counter = 0; counter < fileNames.size(); counter++) {
             fileId = hash(fileNames.get(counter));
-            System.out.println(fileNames.get(counter) + " (" + fileId + ")");
+            System.out.println(fileNames.get(counter) + " (" + IdSpace.format(fileId) + ")");
         }
     }
 
@@ -1287,7 +1475,7 @@ public class DHTNetwork implements Runnable {
     public void checkFiles() {
         String predAddress;
         int predPort;
-        int fileId;
+        long fileId;
         int counter;
         int fileNo;
         List<String> dupeList = new ArrayList<String>();
@@ -1573,14 +1761,63 @@ public class DHTNetwork implements Runnable {
      * @param index      The index to which we are adding.
      */
     public void addListInfo(String[][] stringList, DHTNode addNode, int index) {
+        stringList[index] = getListRow(addNode);
+    }
+
+    /**
+     * Convert a particular DHTNode's information into a row of the
+     * pred/succ list.
+     *
+     * @param addNode The DHTNode being converted. May be null.
+     * @return The id, address and port of the node.
+     */
+    public String[] getListRow(DHTNode addNode) {
+        String[] row = new String[3];
+
         if (addNode != null) {
-            stringList[index][0] = Integer.toString(addNode.getId());
-            stringList[index][1] = addNode.getAddress();
-            stringList[index][2] = Integer.toString(addNode.getPort());
+            row[0] = IdSpace.format(addNode.getId());
+            row[1] = addNode.getAddress();
+            row[2] = Integer.toString(addNode.getPort());
         } else {
-            stringList[index][0] = "Not set";
-            stringList[index][1] = "Not set";
-            stringList[index][2] = "Not set";
+            row[0] = "Not set";
+            row[1] = "Not set";
+            row[2] = "Not set";
+        }
+        return row;
+    }
+
+    /**
+     * Tell every listener about the predecessors from a given index to
+     * the end of the list. Entries are shifted on insertion and removal so
+     * everything after the index may have moved.
+     *
+     * @param index The first predecessor that may have changed.
+     */
+    private void firePredecessorsChanged(int index) {
+        int counter;
+
+        for (counter = index; counter < storeNo; counter++) {
+            for (DHTListener listener : listeners) {
+                listener.listChanged(counter,
+                        getListRow(predecessorList[counter]));
+            }
+        }
+    }
+
+    /**
+     * Tell every listener about the successors from a given index to
+     * the end of the list.
+     *
+     * @param index The first successor that may have changed.
+     */
+    private void fireSuccessorsChanged(int index) {
+        int counter;
+
+        for (counter = index; counter < storeNo; counter++) {
+            for (DHTListener listener : listeners) {
+                listener.listChanged(storeNo + counter,
+                        getListRow(successorList[counter]));
+            }
         }
     }
 
@@ -1597,7 +1834,7 @@ public class DHTNetwork implements Runnable {
 
         for (counter = 0; counter < fileNames.size(); counter++) {
             fileList[0][counter] = fileNames.get(counter);
-            fileList[1][counter] = Integer.toString(hash(fileNames.get(counter)));
+            fileList[1][counter] = IdSpace.format(hash(fileNames.get(counter)));
         }
 
         return fileList;
@@ -13,7 +13,7 @@ package dht;
 public class DHTNode {
 
     //Information for each DHT node.
-    private int id;
+    private long id;
     private String address;
     private int port;
 
@@ -26,7 +26,7 @@ public class DHTNode {
      * @param address The address of the new DHT node.
      * @param port    The port of the new DHT node.
      */
-    public DHTNode(int id, String address, int port) {
+    public DHTNode(long id, String address, int port) {
         this.id = id;
         this.address = address;
         this.port = port;
@@ -39,7 +39,7 @@ public class DHTNode {
      *
      * @return This node's id.
      */
-    public int getId() {
+    public long getId() {
         return id;
     }
 
@@ -10,6 +10,13 @@ import java.util.List;
  * id in the "target" field. This class uses DHT nodes to emulate 
  * a version of this "target" field where we can not only know the 
  * id of the node but also pull out contact information.
+ * <p>
+ * The table has one row for each bit of an id, and all of the arithmetic 
+ * on ids wraps round the ring as the IdSpace describes. 
+ * <p>
+ * Each row's target (its start) and the id of its link are kept in arrays 
+ * of longs, next to an array of the link nodes, so that searching the 
+ * table doesn't have to cast or unbox anything. 
  * @author Alex
  * @version 0.3
  * @since 0.3
@@ -18,9 +25,13 @@ public class FingerTable {
 	
 	private String ip; //Ip of this peer.
 	private int port; //Port of this peer.
-	private int id; //Id of THIS peer.
+	private long id; //Id of THIS peer.
 	private int tableSize; //Size of table.
-	Object[][] tabData; //Actual finger table data.
+	private IdSpace idSpace; //The ids that the ring is made of.
+	private long[] starts; //The target of each row.
+	private long[] nodeIds; //The id of each row's link.
+	private DHTNode[] nodes; //Each row's link.
+	private List<DHTListener> listeners; //Notified when a row changes.
 	
 	//Constructor for finger table. Specify id hash and size of table.
 	/**
@@ -30,17 +41,20 @@ public class FingerTable {
 	 * @param id
 	 * @param ip
 	 * @param port
-	 * @param tableSize
+	 * @param idSpace The ids that the ring is made of. There is one row in 
+	 * the table for each bit of an id. 
 	 */
-	public FingerTable(int id, String ip, int port, int tableSize)
+	public FingerTable(long id, String ip, int port, IdSpace idSpace)
 	{
 		this.ip = ip;
 		this.port = port;
 		this.id = id;
-		this.tableSize = tableSize;
-		tabData = new Object[tableSize][2]; // One field for target and another
-		//for the link. The field "i" is the same as the actual index of this
-		//structure.
+		this.idSpace = idSpace;
+		this.tableSize = idSpace.getBits();
+		//The index in each array is the same as the field "i".
+		starts = new long[tableSize];
+		nodeIds = new long[tableSize];
+		nodes = new DHTNode[tableSize];
 		constructTable();
 	}
 	
@@ -51,18 +65,15 @@ public class FingerTable {
 	public void constructTable()
 	{
 		int counter;
-		int maxIds;
 		DHTNode self;
 		
-		//The entire ID space.
-		maxIds = (int) Math.pow(2, tableSize);
 		self = new DHTNode(id, ip, port);
 		
 		//Creating the target value for each field.
 		for(counter=0; counter< tableSize; counter++)
 		{
-			tabData[counter][0] = (int)(id + Math.pow(2, counter))%maxIds;
-			tabData[counter][1] = self;
+			starts[counter] = idSpace.fingerStart(id, counter);
+			setLink(counter, self);
 		}
 	}
 	
@@ -76,7 +87,7 @@ public class FingerTable {
 	 * @param ip The address of the node being added. 
 	 * @param port The port of the node being added. 
 	 */
-	public void addNode(int newId, String ip, int port)
+	public void addNode(long newId, String ip, int port)
 	{
 		DHTNode newNode = new DHTNode(newId, ip, port);
 		addNode(newNode);
@@ -93,36 +104,24 @@ public class FingerTable {
 	public void addNode(DHTNode newNode)
 	{
 		int counter;
-		int tempTarget;
-		DHTNode tempNode;
+		long newId;
 		
 		if(newNode == null)
 		{
 			return;
 		}
+		newId = newNode.getId();
 		
 		//Checking each field in the table.
 		for(counter=0; counter< tableSize; counter++)
 		{
-			//Get target and link information one row.
-			tempTarget = (int)tabData[counter][0];
-			tempNode = (DHTNode)tabData[counter][1];
-			
-			//Normal case where the new target is closer than the
-			//old one. 
-			if(tempNode.getId() >= tempTarget)
-			{
-				if((newNode.getId() > tempTarget) && (newNode.getId() < tempNode.getId()))
-				{
-					tabData[counter][1] = newNode;
-				}
-			}
-			else
+			//The new node is a better link if it comes sooner after the 
+			//target than the old one does. 
+			if(IdSpace.isLess(idSpace.distance(starts[counter], newId), 
+					idSpace.distance(starts[counter], nodeIds[counter])))
 			{
-				if((newNode.getId() > tempTarget) || (newNode.getId() < tempNode.getId()))
-				{
-					tabData[counter][1] = newNode;
-				}
+				setLink(counter, newNode);
+				fireFingerChanged(counter);
 			}
 		}
 	}
@@ -140,64 +139,48 @@ public class FingerTable {
 		//Cycle through and print everything.
 		for(counter=0; counter< tableSize; counter++)
 		{
-			tempNode = (DHTNode)tabData[counter][1];
+			tempNode = nodes[counter];
 			System.out.println("Number: " + counter + ", Target: " + 
-		tabData[counter][0] + ", Link: " + tempNode.getId() + ", Address: "
+		IdSpace.format(starts[counter]) + ", Link: " + 
+		IdSpace.format(tempNode.getId()) + ", Address: "
 		+ tempNode.getAddress() + ", Port: " + tempNode.getPort());
 		}
 	}
 	
 	/**
-	 * Find the closest successor in the finger table to the input id. 
-	 * @param The id being searched. 
-	 * @return The closest successor node. 
+	 * Find the closest finger that precedes an id. 
+	 * <p>
+	 * This is the link that comes last strictly between this node and the 
+	 * id, going clockwise round the ring. Rows further down the table link 
+	 * to nodes further round the ring, so the rows are searched from the 
+	 * bottom up and the first link in the interval is the closest. 
+	 * @param itemId The id being searched. 
+	 * @return The closest preceding node, or null if no link comes between 
+	 * this node and the id. 
 	 */
-	public DHTNode findSuccessor(int itemId)
+	public DHTNode closestPrecedingFinger(long itemId)
 	{
 		int counter;
-		boolean smallestId = true;
-		DHTNode targetNode = null;
-		Integer targetId = null;
-		DHTNode tempNode;
-		Integer tempId = null;
 		
-		for(counter=0; counter< tableSize; counter++)
+		for(counter=tableSize-1; counter>=0; counter--)
 		{
-			tempNode = (DHTNode)tabData[counter][1];
-			tempId = (Integer)tabData[counter][0];
-			//Check for the largest node that is smaller than the item id.
-			if((tempId <= itemId) && ((targetId == null) || 
-					(tempId > targetId)))
+			if(idSpace.inOpen(nodeIds[counter], id, itemId))
 			{
-				smallestId = false;
-				targetId = tempId;
-				targetNode = tempNode;
+				return nodes[counter];
 			}
 		}
 		
-		//If we actually found one, return it.
-		if(!smallestId)
-		{
-			return targetNode;
-		}
-		else
-		{
-			targetId = null;
-			//Otherwise, it means they're all larger than the item id. That means 
-			//we need to look for the  node with the largest id.
-			for(counter=0; counter< tableSize; counter++)
-			{
-				tempId = (Integer)tabData[counter][0];
-				tempNode = (DHTNode)tabData[counter][1];
-				if((targetId == null) || (tempId > targetId))
-				{
-					targetId = tempId;
-					targetNode = tempNode;
-				}
-			}
-			
-			return targetNode;
-		}
+		return null;
+	}
+	
+	/**
+	 * Get the link of the first row, which is this node's successor as 
+	 * far as the finger table knows. 
+	 * @return The successor node. 
+	 */
+	public DHTNode getSuccessor()
+	{
+		return nodes[0];
 	}
 	
 	//Get a list of all unique nodes in the finger table.
@@ -211,17 +194,17 @@ public class FingerTable {
 	public List<DHTNode> getNodes()
 	{
 		List<DHTNode> list = new ArrayList<DHTNode>();
-		int prevId = -1;
+		DHTNode prevNode = null;
 		int counter = 0;
 		DHTNode tempNode;
 		
 		for(counter=0; counter< tableSize; counter++)
 		{
-			tempNode = (DHTNode)tabData[counter][1];
-			if(tempNode.getId() != prevId)
+			tempNode = nodes[counter];
+			if((prevNode == null) || (tempNode.getId() != prevNode.getId()))
 			{
 				list.add(tempNode);
-				prevId = tempNode.getId();
+				prevNode = tempNode;
 			}
 		}
 		
@@ -237,14 +220,13 @@ public class FingerTable {
 	public void replaceNode(DHTNode oldNode, DHTNode newNode)
 	{
 		int counter;
-		DHTNode tempNode;
 		
 		for(counter=0; counter< tableSize; counter++)
 		{
-			tempNode = (DHTNode)tabData[counter][1];
-			if(tempNode.getId() == oldNode.getId())
+			if(nodeIds[counter] == oldNode.getId())
 			{
-				tabData[counter][1] = newNode;
+				setLink(counter, newNode);
+				fireFingerChanged(counter);
 			}
 		}
 	}
@@ -255,22 +237,82 @@ public class FingerTable {
 	 */
 	public String[][] getTableInfo()
 	{
-		String[][] stringTable = new String[tableSize][5];
+		String[][] stringTable = new String[tableSize][];
 		int counter;
-		DHTNode tempNode;
 		
 		for(counter=0;counter< tableSize;counter++)
 		{
-			stringTable[counter][0] = Integer.toString(counter);
-			stringTable[counter][1] = Integer.toString((int)tabData[counter][0]);
-			
-			tempNode = (DHTNode)tabData[counter][1];
-			
-			stringTable[counter][2] = Integer.toString(tempNode.getId());
-			stringTable[counter][3] = tempNode.getAddress();
-			stringTable[counter][4] = Integer.toString(tempNode.getPort());
+			stringTable[counter] = getRowInfo(counter);
 		}
 		
 		return stringTable;
 	}
+	
+	/**
+	 * Convert a single row of the finger table into an array of strings. 
+	 * @param index The index of the row. 
+	 * @return The number, target, id, address and port of the row. 
+	 */
+	public String[] getRowInfo(int index)
+	{
+		String[] row = new String[5];
+		DHTNode tempNode;
+		
+		row[0] = Integer.toString(index);
+		row[1] = IdSpace.format(starts[index]);
+		
+		tempNode = nodes[index];
+		
+		row[2] = IdSpace.format(tempNode.getId());
+		row[3] = tempNode.getAddress();
+		row[4] = Integer.toString(tempNode.getPort());
+		
+		return row;
+	}
+	
+	/**
+	 * Pass in the listeners that should be told about changes to the 
+	 * finger table. Every row is reported straight away so that the 
+	 * listeners start off with the complete table. 
+	 * @param listeners The list of listeners. 
+	 */
+	public void initListeners(List<DHTListener> listeners)
+	{
+		int counter;
+		
+		this.listeners = listeners;
+		for(counter=0;counter< tableSize;counter++)
+		{
+			fireFingerChanged(counter);
+		}
+	}
+	
+	/**
+	 * Set the link of a row. 
+	 * @param index The index of the row. 
+	 * @param node The new link. 
+	 */
+	private void setLink(int index, DHTNode node)
+	{
+		nodes[index] = node;
+		nodeIds[index] = node.getId();
+	}
+	
+	/**
+	 * Tell every listener that a row of the finger table has changed. 
+	 * @param index The index of the row. 
+	 */
+	private void fireFingerChanged(int index)
+	{
+		if(listeners == null)
+		{
+			return;
+		}
+		
+		String[] row = getRowInfo(index);
+		for(DHTListener listener : listeners)
+		{
+			listener.fingerChanged(index, row);
+		}
+	}
 }
@@ -0,0 +1,150 @@
+package dht;
+
+/**
+ * This class does the arithmetic for ids on the Chord ring.
+ * <p>
+ * Ids are whole numbers from 0 to 2^bits - 1 kept in a long, and the ring
+ * wraps round from the largest id back to 0. Up to 64 bits can be used, in
+ * which case an id takes up the whole long and may look negative as a Java
+ * number. Ids are therefore never compared directly. Instead, the distance
+ * from one id to another going clockwise round the ring is worked out and
+ * the distances are compared as unsigned numbers.
+ * <p>
+ * Every node in a ring must use the same number of bits, as nodes work out
+ * each other's ids for themselves rather than sending them. A join request
+ * carries the joining node's number of bits and is ignored by a node that
+ * uses a different number, but a node that is older than 64-bit ids sends
+ * no number and won't check one, so it must not be mixed into a ring with
+ * newer nodes.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class IdSpace {
+
+    public static final int MAX_BITS = 64;
+
+    private int bits;
+    private long mask;
+
+    /**
+     * Constructor for IdSpace.
+     *
+     * @param bits The number of bits in an id, from 1 to MAX_BITS.
+     */
+    public IdSpace(int bits) {
+        if ((bits < 1) || (bits > MAX_BITS)) {
+            throw new IllegalArgumentException("An id must have from 1 to "
+                    + MAX_BITS + " bits.");
+        }
+        this.bits = bits;
+        mask = (bits == MAX_BITS) ? -1L : (1L << bits) - 1;
+    }
+
+    /**
+     * Getter for the number of bits in an id. This is also the number of
+     * rows in a finger table.
+     *
+     * @return The number of bits.
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Turn a digest into an id. The digest is taken as one big number and
+     * reduced modulo 2^bits, which leaves its lowest bits.
+     *
+     * @param digest The digest, at least 8 bytes long.
+     * @return The id.
+     */
+    public long fromDigest(byte[] digest) {
+        long value = 0;
+
+        for (int counter = digest.length - 8; counter < digest.length;
+             counter++) {
+            value = (value << 8) | (digest[counter] & 0xFF);
+        }
+        return value & mask;
+    }
+
+    /**
+     * Get the id that finger table row index starts at, which is
+     * id + 2^index round the ring.
+     *
+     * @param id    The id of the node that owns the finger table.
+     * @param index The row of the finger table.
+     * @return The start of the row.
+     */
+    public long fingerStart(long id, int index) {
+        return (id + (1L << index)) & mask;
+    }
+
+    /**
+     * Get the distance going clockwise round the ring from one id to
+     * another. The distance should be compared with isLess().
+     *
+     * @param from The id to start from.
+     * @param to   The id to finish at.
+     * @return The distance, from 0 to 2^bits - 1.
+     */
+    public long distance(long from, long to) {
+        return (to - from) & mask;
+    }
+
+    /**
+     * Check whether an id lies strictly between two others, going
+     * clockwise. If from and to are the same, every other id is between
+     * them.
+     *
+     * @param id   The id being checked.
+     * @param from The start of the interval, which isn't included.
+     * @param to   The end of the interval, which isn't included.
+     * @return True if the id is in the interval.
+     */
+    public boolean inOpen(long id, long from, long to) {
+        long size = distance(from, to);
+        long offset = distance(from, id);
+
+        return (offset != 0) && ((size == 0) || isLess(offset, size));
+    }
+
+    /**
+     * Check whether an id lies after one id and at or before another,
+     * going clockwise. If from and to are the same, the interval is the
+     * whole ring.
+     *
+     * @param id   The id being checked.
+     * @param from The start of the interval, which isn't included.
+     * @param to   The end of the interval, which is included.
+     * @return True if the id is in the interval.
+     */
+    public boolean inHalfOpen(long id, long from, long to) {
+        long size = distance(from, to);
+        long offset = distance(from, id);
+
+        return (size == 0) || ((offset != 0) && !isLess(size, offset));
+    }
+
+    /**
+     * Compare two ids or distances as unsigned numbers.
+     *
+     * @param first  The first number.
+     * @param second The second number.
+     * @return True if the first is smaller.
+     */
+    public static boolean isLess(long first, long second) {
+        return Long.compareUnsigned(first, second) < 0;
+    }
+
+    /**
+     * Write an id as an unsigned hexadecimal number.
+     *
+     * @param id The id.
+     * @return The id as a string.
+     */
+    public static String format(long id) {
+        return Long.toUnsignedString(id, 16);
+    }
+}
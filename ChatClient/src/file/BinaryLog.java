@@ -0,0 +1,352 @@
+package file;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+/**
+ * This class writes the message log as a set of binary segment files.
+ * <p>
+ * Each segment starts with an 8 byte header (MAGIC and VERSION). Each record
+ * then has a fixed 16 byte header holding the length of the record, its
+ * timestamp in milliseconds and the hash of its tag, followed by the record
+ * encoded by LogRecord.encode(). The fixed header lets a reader skip records
+ * it doesn't want without decoding them.
+ * <p>
+ * Next to each segment is a sparse index. Every BLOCK_RECORDS records an
+ * entry is added that gives the offset and length of the block, the number
+ * of records in it, the earliest and latest timestamps in it and a 64 bit
+ * mask of the tags in it. A query can then skip any block that is outside
+ * its time range or can't contain its tag.
+ * <p>
+ * A new segment is started when the current one would grow past the
+ * segment size or has been open for longer than the segment age. Closed
+ * segments are handed to a LogArchiver to be compressed and removed once
+ * they pass the retention limits. This class is not thread safe and is
+ * only used by the LogWriter thread.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class BinaryLog {
+
+    public static final int MAGIC = 0x50325031;
+    public static final int VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 16;
+    public static final int INDEX_ENTRY_SIZE = 40;
+    public static final String SEGMENT_SUFFIX = ".seg";
+    public static final String COMPRESSED_EXTENSION = ".gz";
+    public static final String COMPRESSED_SUFFIX = SEGMENT_SUFFIX
+            + COMPRESSED_EXTENSION;
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final int BLOCK_RECORDS = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private File directory;
+    private long segmentSize = 16 * 1024 * 1024;
+    private long segmentAge = 60 * 60 * 1000;
+    private SimpleDateFormat dateFormat;
+    private LogArchiver archiver;
+    private LogLock lock;
+
+    private long segmentNumber;
+    private long segmentStarted;
+    private FileOutputStream segmentStream;
+    private DataOutputStream segmentOut;
+    private DataOutputStream indexOut;
+    private long position;
+
+    private long blockStart;
+    private int blockCount;
+    private long blockMin;
+    private long blockMax;
+    private long blockTags;
+
+    /**
+     * Constructor for BinaryLog.
+     *
+     * @param directory The directory that segments are kept in.
+     */
+    public BinaryLog(File directory) {
+        this.directory = directory;
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        archiver = new LogArchiver(directory);
+    }
+
+    /**
+     * Set the size that a segment may grow to before a new one is started.
+     *
+     * @param segmentSize The size in bytes.
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Set how long a segment is written to before a new one is started.
+     *
+     * @param segmentAge The age in milliseconds.
+     */
+    public void setSegmentAge(long segmentAge) {
+        this.segmentAge = segmentAge;
+    }
+
+    /**
+     * Getter for the directory the log is written to. Once the log is open
+     * this is the directory that was locked.
+     *
+     * @return The log directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Getter for the archiver that compresses closed segments, so that its
+     * retention limits can be set.
+     *
+     * @return The LogArchiver object.
+     */
+    public LogArchiver getArchiver() {
+        return archiver;
+    }
+
+    /**
+     * Open the log. The directory is created if needed and locked with a
+     * LogLock. If another process is already writing to it, the next free
+     * directory is used instead. A new segment is always started, so
+     * existing segments are never written to again. Any that were left
+     * uncompressed by a previous run are compressed now.
+     *
+     * @throws IOException If the segment could not be created.
+     */
+    public void open() throws IOException {
+        long highest = -1;
+
+        lock = LogLock.acquire(directory);
+        directory = lock.getDirectory();
+        archiver.setDirectory(directory);
+        archiver.start();
+        for (File f : segments(directory)) {
+            highest = Math.max(highest, segmentNumber(f));
+            if (f.getName().endsWith(SEGMENT_SUFFIX)) {
+                archiver.archive(f);
+            }
+        }
+        segmentNumber = highest;
+        startSegment();
+    }
+
+    /**
+     * Append a record to the current segment, starting a new segment first
+     * if this one is full or too old.
+     *
+     * @param record The record to append.
+     * @return The number of bytes written.
+     * @throws IOException
+     */
+    public int append(LogRecord record) throws IOException {
+        byte[] body = record.encode();
+        long timestamp = parseTime(record.getTime());
+        int tagHash = tagHash(record.getTag());
+
+        if ((position > SEGMENT_HEADER_SIZE) && ((position
+                + RECORD_HEADER_SIZE + body.length > segmentSize)
+                || (System.currentTimeMillis() - segmentStarted
+                >= segmentAge))) {
+            closeSegment();
+            startSegment();
+        }
+
+        segmentOut.writeInt(body.length);
+        segmentOut.writeLong(timestamp);
+        segmentOut.writeInt(tagHash);
+        segmentOut.write(body);
+        position += RECORD_HEADER_SIZE + body.length;
+
+        if (blockCount == 0) {
+            blockMin = timestamp;
+            blockMax = timestamp;
+        }
+        blockMin = Math.min(blockMin, timestamp);
+        blockMax = Math.max(blockMax, timestamp);
+        blockTags |= tagBit(tagHash);
+        blockCount++;
+        if (blockCount == BLOCK_RECORDS) {
+            endBlock();
+        }
+        return RECORD_HEADER_SIZE + body.length;
+    }
+
+    /**
+     * Write any buffered data to the segment and index files.
+     *
+     * @param sync True if the segment should also be synced to the disk.
+     * @throws IOException
+     */
+    public void flush(boolean sync) throws IOException {
+        segmentOut.flush();
+        indexOut.flush();
+        if (sync) {
+            segmentStream.getFD().sync();
+        }
+    }
+
+    /**
+     * Close the current segment.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        try {
+            closeSegment();
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void startSegment() throws IOException {
+        segmentNumber++;
+        segmentStream = new FileOutputStream(segmentFile(directory,
+                segmentNumber));
+        segmentOut = new DataOutputStream(new BufferedOutputStream(
+                segmentStream, BUFFER_SIZE));
+        indexOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile(directory, segmentNumber))));
+        segmentOut.writeInt(MAGIC);
+        segmentOut.writeInt(VERSION);
+        position = SEGMENT_HEADER_SIZE;
+        segmentStarted = System.currentTimeMillis();
+        blockStart = position;
+        blockCount = 0;
+        blockTags = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        endBlock();
+        segmentOut.close();
+        indexOut.close();
+        archiver.archive(segmentFile(directory, segmentNumber));
+    }
+
+    /**
+     * Add an index entry for the records written since the last one.
+     */
+    private void endBlock() throws IOException {
+        if (blockCount == 0) {
+            return;
+        }
+        indexOut.writeLong(blockStart);
+        indexOut.writeInt((int) (position - blockStart));
+        indexOut.writeInt(blockCount);
+        indexOut.writeLong(blockMin);
+        indexOut.writeLong(blockMax);
+        indexOut.writeLong(blockTags);
+        blockStart = position;
+        blockCount = 0;
+        blockTags = 0;
+    }
+
+    /**
+     * Convert a record's time string to milliseconds. Records with a time
+     * that can't be read are given the current time.
+     */
+    private long parseTime(String time) {
+        if (time != null) {
+            try {
+                return dateFormat.parse(time).getTime();
+            } catch (ParseException pException) {
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Get the hash stored for a tag. Tags are compared ignoring case.
+     *
+     * @param tag The packet tag.
+     * @return The hash.
+     */
+    public static int tagHash(String tag) {
+        return (tag == null) ? 0 : tag.toUpperCase().hashCode();
+    }
+
+    /**
+     * Get the bit that represents a tag hash in an index entry's tag mask.
+     *
+     * @param tagHash The hash of the tag.
+     * @return The mask with one bit set.
+     */
+    public static long tagBit(int tagHash) {
+        return 1L << (tagHash & 63);
+    }
+
+    /**
+     * Get every segment in a log directory, compressed or not, oldest first.
+     *
+     * @param directory The log directory.
+     * @return The segment files.
+     */
+    public static File[] segments(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX)
+                        || name.endsWith(COMPRESSED_SUFFIX);
+            }
+        });
+
+        if (files == null) {
+            return new File[0];
+        }
+        //Segment names are zero padded so they sort in order.
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Get the index file that belongs to a segment.
+     *
+     * @param segment The segment file.
+     * @return The index file.
+     */
+    public static File indexFor(File segment) {
+        String name = segment.getName();
+
+        return new File(segment.getParentFile(), name.substring(0,
+                name.indexOf('.')) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Check whether a segment has been compressed.
+     *
+     * @param segment The segment file.
+     * @return True if the segment is compressed.
+     */
+    public static boolean isCompressed(File segment) {
+        return segment.getName().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    static long segmentNumber(File segment) {
+        String name = segment.getName();
+
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('.')));
+        } catch (NumberFormatException nfException) {
+            return -1;
+        }
+    }
+
+    static File segmentFile(File directory, long number) {
+        return new File(directory, String.format("%010d", number)
+                + SEGMENT_SUFFIX);
+    }
+
+    private static File indexFile(File directory, long number) {
+        return new File(directory, String.format("%010d", number)
+                + INDEX_SUFFIX);
+    }
+}
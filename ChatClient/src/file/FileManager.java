@@ -6,8 +6,15 @@ import java.util.*;
 import view.*;
 
 /**
- * This class manages the log csv file on the presentation server that
- * stores all message information in the network.
+ * This class manages the message log that stores all message information
+ * in the network.
+ * <p>
+ * Messages are handed to a LogWriter, which writes them to the binary log
+ * in the log directory on its own thread so that logging never holds up the
+ * network. The LogExport tool turns the log back into csv.
+ * <p>
+ * For very high packet rates a MappedLog can be used instead. Each thread
+ * then writes its message straight into a memory mapped segment.
  *
  * @author Alex
  * @version 0.2
@@ -15,13 +22,26 @@ import view.*;
  */
 public class FileManager {
 
-    private FileWriter fWriter;
+    private LogWriter writer;
+    private MappedLog mappedLog;
+    private volatile boolean openFailed = false;
     private ClientConsole console;
 
     /**
      * Constructor for FileManager class.
      */
     public FileManager() {
+        writer = new LogWriter(new File("log"), 10000);
+    }
+
+    /**
+     * Choose to write the log through a MappedLog instead of the LogWriter.
+     * Must be called before anything is logged.
+     *
+     * @param mapped True to use the memory mapped log.
+     */
+    public void setMapped(boolean mapped) {
+        mappedLog = mapped ? new MappedLog(new File("log")) : null;
     }
 
     public void initConsole(ClientConsole console) {
@@ -29,30 +49,54 @@ public class FileManager {
     }
 
     /**
-     * Open the file and check it exists. If not, create it and write
-     * the columns to the top of the file.
+     * Open the log and start the log writer. The log directory is created
+     * if it doesn't exist.
      */
     public void initFile() {
-        File f = new File("log.txt");
-        if (!f.exists()) {
-            try {
-                fWriter = new FileWriter("log.txt", true);
-                fWriter.append("Time, Tag, Method, Encryption, ");
-                fWriter.append("Source Username, Source Address, " +
-                        "Source Port, ");
-                fWriter.append("Destination Username, Destination Address, " +
-                        " Destination Port, ");
-                fWriter.append("Contents, Message Size, Transmission Time\r\n");
-                fWriter.close();
-            } catch (IOException existException) {
-                console.printError("Log file could not be created.");
-
+        try {
+            if (mappedLog != null) {
+                mappedLog.open();
+            } else {
+                writer.start();
             }
+        } catch (IOException existException) {
+            openFailed = true;
+            console.printError("Log file could not be created.");
+        }
+    }
+
+    /**
+     * Getter for the writer that the log is written through, so that its
+     * flushing can be configured.
+     *
+     * @return The LogWriter object.
+     */
+    public LogWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Get a summary of the log's metrics.
+     *
+     * @return One line for the writer and one for the archiver.
+     */
+    public List<String> getStatus() {
+        List<String> status = new ArrayList<String>();
+
+        if (mappedLog != null) {
+            status.add(mappedLog.toString());
+            status.add(mappedLog.getArchiver().toString());
+        } else {
+            status.add(writer.toString());
+            status.add(writer.getLog().getArchiver().toString());
         }
+        return status;
     }
 
     /**
-     * Write a message to the log file.
+     * Write a message to the log file. With the log writer the message is
+     * only queued here and is written later by the writer's thread. With
+     * the memory mapped log it is written straight away.
      *
      * @param time      Time that the message was sent.
      * @param tag       The packet tag.
@@ -71,17 +115,27 @@ public class FileManager {
                              String encryption, String sUsername, String sAddress, String sPort,
                              String dUsername, String dAddress, String dPort,
                              List<String> contents, String size, String transTime) {
+        LogRecord record = new LogRecord(time, tag, method, encryption,
+                sUsername, sAddress, sPort, dUsername, dAddress, dPort,
+                contents, size, transTime);
+
+        if (mappedLog == null) {
+            writer.append(record);
+            return;
+        }
+        //Opening the log is only tried once, rather than again for every
+        //message after it has failed.
+        if (!mappedLog.isOpen()) {
+            if (openFailed) {
+                return;
+            }
+            initFile();
+            if (openFailed) {
+                return;
+            }
+        }
         try {
-            fWriter = new FileWriter("log.txt", true);
-            fWriter.append(time + ", " + tag + ", " + method + ", "
-                    + encryption + ", ");
-            fWriter.append(sUsername + ", " + sAddress + ", " + sPort
-                    + ", ");
-            fWriter.append(dUsername + ", " + dAddress + ", " + dPort
-                    + ", ");
-            fWriter.append(contents + ", " + size + ", " + transTime +
-                    "\r\n");
-            fWriter.close();
+            mappedLog.append(record);
         } catch (IOException ioException) {
             console.printError("An IO error occured when logging a message.");
         }
@@ -0,0 +1,326 @@
+package file;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * This class keeps the full chat history of every conversation on disk so
+ * that the view only needs to hold the most recent messages in memory.
+ * <p>
+ * Each conversation is stored in its own file in the history directory, one
+ * message per line. Older messages can be read back a page at a time by
+ * reading backwards from the offset of the oldest message currently shown,
+ * and newer ones by reading forwards from the newest.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class HistoryStore {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BLOCK_SIZE = 8192;
+
+    private File directory;
+    private Map<String, RandomAccessFile> openFiles;
+
+    /**
+     * Constructor for HistoryStore.
+     *
+     * @param directory The directory that history files are kept in. It is
+     *                  created if it does not exist.
+     */
+    public HistoryStore(String directory) {
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+        openFiles = new HashMap<String, RandomAccessFile>();
+    }
+
+    /**
+     * Append a message to the end of a conversation's history.
+     *
+     * @param conversation The name of the conversation (the peer's username).
+     * @param line         The message as it is displayed.
+     * @return The offset of the message in the history file, or -1 if it
+     * could not be stored.
+     */
+    public synchronized long append(String conversation, String line) {
+        RandomAccessFile raf;
+        long offset;
+
+        try {
+            raf = getFile(conversation);
+            offset = raf.length();
+            raf.seek(offset);
+            raf.write((line.replace('\n', ' ') + "\n").getBytes(UTF8));
+            return offset;
+        } catch (IOException ioException) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the length of a conversation's history file. This is the offset
+     * that the next message will be written at.
+     *
+     * @param conversation The name of the conversation.
+     * @return The length in bytes, or -1 if it could not be read.
+     */
+    public synchronized long length(String conversation) {
+        try {
+            return getFile(conversation).length();
+        } catch (IOException ioException) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read up to count messages that come before a given offset.
+     *
+     * @param conversation The name of the conversation.
+     * @param offset       The offset of the oldest message already loaded.
+     * @param count        The maximum number of messages to read.
+     * @return The messages in the order they were written. The list is empty
+     * if there is nothing older or the history could not be read.
+     */
+    public synchronized List<Entry> readBefore(String conversation,
+                                               long offset, int count) {
+        List<Entry> entries = new ArrayList<Entry>();
+        RandomAccessFile raf;
+        byte[] buffer;
+        long start;
+        int newlines = 0;
+        int counter;
+        int lineStart;
+
+        if (offset <= 0) {
+            return entries;
+        }
+
+        try {
+            raf = getFile(conversation);
+            //Step backwards a block at a time until we've seen enough line
+            //endings. The byte at offset - 1 ends the previous message so
+            //count + 1 newlines are needed to know where the oldest starts.
+            start = offset;
+            while ((start > 0) && (newlines <= count)) {
+                int length = (int) Math.min(BLOCK_SIZE, start);
+                byte[] block = new byte[length];
+                start -= length;
+                raf.seek(start);
+                raf.readFully(block);
+                for (counter = 0; counter < length; counter++) {
+                    if (block[counter] == '\n') {
+                        newlines++;
+                    }
+                }
+            }
+
+            buffer = new byte[(int) (offset - start)];
+            raf.seek(start);
+            raf.readFully(buffer);
+        } catch (IOException ioException) {
+            return entries;
+        }
+
+        //Split into lines, keeping track of where each one starts.
+        lineStart = 0;
+        for (counter = 0; counter < buffer.length; counter++) {
+            if (buffer[counter] == '\n') {
+                entries.add(new Entry(start + lineStart, new String(buffer,
+                        lineStart, counter - lineStart, UTF8)));
+                lineStart = counter + 1;
+            }
+        }
+
+        //If we stopped part way through the file, the first line is
+        //incomplete.
+        if ((start > 0) && !entries.isEmpty()) {
+            entries.remove(0);
+        }
+        while (entries.size() > count) {
+            entries.remove(0);
+        }
+        return entries;
+    }
+
+    /**
+     * Read up to count messages that come after a given offset.
+     *
+     * @param conversation The name of the conversation.
+     * @param offset       The offset of the newest message already loaded.
+     * @param count        The maximum number of messages to read.
+     * @return The messages in the order they were written. The list is empty
+     * if there is nothing newer or the history could not be read.
+     */
+    public synchronized List<Entry> readAfter(String conversation,
+                                              long offset, int count) {
+        List<Entry> entries = new ArrayList<Entry>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] bytes;
+        RandomAccessFile raf;
+        int newlines = 0;
+        int counter;
+        int lineStart;
+        int read;
+
+        if (offset < 0) {
+            return entries;
+        }
+
+        try {
+            raf = getFile(conversation);
+            raf.seek(offset);
+            //The first line ending found ends the message at offset itself,
+            //so count + 1 newlines are needed.
+            while ((newlines <= count) && ((read = raf.read(block)) > 0)) {
+                buffer.write(block, 0, read);
+                for (counter = 0; counter < read; counter++) {
+                    if (block[counter] == '\n') {
+                        newlines++;
+                    }
+                }
+            }
+        } catch (IOException ioException) {
+            return entries;
+        }
+
+        //Split into lines, skipping the message at offset and anything
+        //after the last complete line.
+        bytes = buffer.toByteArray();
+        lineStart = -1;
+        for (counter = 0; (counter < bytes.length)
+                && (entries.size() < count); counter++) {
+            if (bytes[counter] == '\n') {
+                if (lineStart >= 0) {
+                    entries.add(new Entry(offset + lineStart, new String(bytes,
+                            lineStart, counter - lineStart, UTF8)));
+                }
+                lineStart = counter + 1;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Close the history file of one conversation. It is opened again the
+     * next time it is needed.
+     *
+     * @param conversation The name of the conversation.
+     */
+    public synchronized void close(String conversation) {
+        RandomAccessFile raf = openFiles.remove(conversation.toLowerCase());
+
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ioException) {
+            }
+        }
+    }
+
+    /**
+     * Close every history file that is currently open.
+     */
+    public synchronized void close() {
+        for (RandomAccessFile raf : openFiles.values()) {
+            try {
+                raf.close();
+            } catch (IOException ioException) {
+            }
+        }
+        openFiles.clear();
+    }
+
+    /**
+     * Get the open history file for a conversation, opening it if needed.
+     *
+     * @param conversation The name of the conversation.
+     * @return The history file.
+     * @throws IOException
+     */
+    private RandomAccessFile getFile(String conversation) throws IOException {
+        String key = conversation.toLowerCase();
+        RandomAccessFile raf = openFiles.get(key);
+
+        if (raf == null) {
+            raf = new RandomAccessFile(new File(directory, fileName(key)),
+                    "rw");
+            openFiles.put(key, raf);
+        }
+        return raf;
+    }
+
+    /**
+     * Get the name of the history file for a conversation. Letters, digits,
+     * '.', '-' and '_' are kept as they are. Every other character is
+     * written as '%' and the hex of each of its UTF-8 bytes, so no two
+     * conversations share a file and names such as host:port can be used on
+     * any file system.
+     *
+     * @param key The conversation's name in lower case.
+     * @return The file name.
+     */
+    private static String fileName(String key) {
+        StringBuilder name = new StringBuilder();
+
+        for (int counter = 0; counter < key.length(); ) {
+            int codePoint = key.codePointAt(counter);
+            int length = Character.charCount(codePoint);
+
+            if (((codePoint >= 'a') && (codePoint <= 'z'))
+                    || ((codePoint >= '0') && (codePoint <= '9'))
+                    || (codePoint == '.') || (codePoint == '-')
+                    || (codePoint == '_')) {
+                name.append((char) codePoint);
+            } else {
+                for (byte b : key.substring(counter, counter + length)
+                        .getBytes(UTF8)) {
+                    name.append(String.format("%%%02x", b & 0xFF));
+                }
+            }
+            counter += length;
+        }
+        return name.append(".txt").toString();
+    }
+
+    /**
+     * A single message read back from the history along with its offset.
+     */
+    public static class Entry {
+
+        private long offset;
+        private String text;
+
+        /**
+         * Constructor for Entry.
+         *
+         * @param offset The offset of the message in the history file.
+         * @param text   The message.
+         */
+        public Entry(long offset, String text) {
+            this.offset = offset;
+            this.text = text;
+        }
+
+        /**
+         * Getter for the offset of the message.
+         *
+         * @return The offset in the history file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Getter for the message.
+         *
+         * @return The message text.
+         */
+        public String getText() {
+            return text;
+        }
+    }
+}
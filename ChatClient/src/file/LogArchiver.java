@@ -0,0 +1,226 @@
+package file;
+
+import java.io.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class compresses closed log segments and removes old ones on its own
+ * thread, so that the log writer never waits for either.
+ * <p>
+ * A closed segment is compressed to a temporary file, which is renamed once
+ * it is complete, and only then is the original removed. A segment is
+ * therefore always readable in one form or the other. Index files are small
+ * and are left uncompressed.
+ * <p>
+ * After each segment is compressed, the oldest segments are deleted until
+ * the log is within its size limit and nothing is older than the age limit.
+ * The newest segment is never deleted since it is the one being written.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogArchiver implements Runnable {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private File directory;
+    private BlockingQueue<File> pending;
+    private Thread runningThread;
+
+    private volatile long maxTotalBytes = 1024L * 1024 * 1024;
+    private volatile long maxAge = 7L * 24 * 60 * 60 * 1000;
+
+    private AtomicLong compressed;
+    private AtomicLong deleted;
+    private AtomicLong errors;
+
+    /**
+     * Constructor for LogArchiver.
+     *
+     * @param directory The log directory.
+     */
+    public LogArchiver(File directory) {
+        this.directory = directory;
+        pending = new LinkedBlockingQueue<File>();
+        compressed = new AtomicLong(0);
+        deleted = new AtomicLong(0);
+        errors = new AtomicLong(0);
+    }
+
+    /**
+     * Change the log directory. Must be called before start().
+     *
+     * @param directory The log directory.
+     */
+    void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Start the archiver thread. Does nothing if it has already started.
+     */
+    public synchronized void start() {
+        File[] leftovers;
+
+        if (runningThread != null) {
+            return;
+        }
+        //Remove anything left half compressed by a previous run.
+        leftovers = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(TEMP_SUFFIX);
+            }
+        });
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
+            }
+        }
+
+        runningThread = new Thread(this, "P2P Log Archiver");
+        runningThread.setDaemon(true);
+        runningThread.start();
+    }
+
+    /**
+     * Set the most disk space the log may use.
+     *
+     * @param maxTotalBytes The limit in bytes.
+     */
+    public void setMaxTotalBytes(long maxTotalBytes) {
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    /**
+     * Set how long segments are kept.
+     *
+     * @param maxAge The age in milliseconds.
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Queue a closed segment to be compressed.
+     *
+     * @param segment The segment file.
+     */
+    public void archive(File segment) {
+        pending.add(segment);
+    }
+
+    /**
+     * The archiver thread. Compresses each closed segment and then applies
+     * the retention limits.
+     */
+    public void run() {
+        File segment;
+
+        while (true) {
+            try {
+                segment = pending.take();
+            } catch (InterruptedException iException) {
+                return;
+            }
+            compress(segment);
+            enforceRetention();
+        }
+    }
+
+    /**
+     * Compress a segment, replacing the original once the compressed copy
+     * is complete.
+     *
+     * @param segment The segment file.
+     */
+    private void compress(File segment) {
+        File target = new File(directory, segment.getName()
+                + BinaryLog.COMPRESSED_EXTENSION);
+        File temp = new File(directory, target.getName() + TEMP_SUFFIX);
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = null;
+        OutputStream out = null;
+        int length;
+
+        //It may have been removed by the retention limits already.
+        if (!segment.exists()) {
+            return;
+        }
+        try {
+            in = new FileInputStream(segment);
+            out = new GZIPOutputStream(new FileOutputStream(temp),
+                    buffer.length);
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            in.close();
+            in = null;
+            out.close();
+            out = null;
+            if (!temp.renameTo(target)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            //Keep the age of the original so retention still works.
+            target.setLastModified(segment.lastModified());
+            segment.delete();
+            compressed.incrementAndGet();
+        } catch (IOException ioException) {
+            errors.incrementAndGet();
+            temp.delete();
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Delete the oldest segments until the log is within its limits.
+     */
+    private void enforceRetention() {
+        File[] segments = BinaryLog.segments(directory);
+        long oldest = System.currentTimeMillis() - maxAge;
+        long total = 0;
+        int counter;
+
+        for (File segment : segments) {
+            total += segment.length() + BinaryLog.indexFor(segment).length();
+        }
+        for (counter = 0; counter < segments.length - 1; counter++) {
+            File segment = segments[counter];
+            File index = BinaryLog.indexFor(segment);
+
+            if ((total <= maxTotalBytes) && (segment.lastModified() >= oldest)) {
+                break;
+            }
+            total -= segment.length() + index.length();
+            segment.delete();
+            index.delete();
+            deleted.incrementAndGet();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ioException) {
+        }
+    }
+
+    /**
+     * Produce a one line summary of the archiver's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return "log archiver: waiting " + pending.size() + ", compressed "
+                + compressed.get() + ", deleted " + deleted.get()
+                + ", errors " + errors.get();
+    }
+}
@@ -0,0 +1,287 @@
+package file;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class finds records in the binary message log.
+ * <p>
+ * A query can be limited to a time range and a tag. The sparse index of
+ * each segment is read first and only the blocks that could hold a match are
+ * read from the segment. Records after the last index entry (for example in
+ * a segment that is still being written) are scanned one at a time using
+ * their fixed headers.
+ * <p>
+ * Segments are read from start to end so that compressed segments can be
+ * read in the same way. Blocks that aren't needed are skipped over, which
+ * for an uncompressed segment doesn't read them at all.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogQuery {
+
+    /**
+     * Receives the records found by a query.
+     */
+    public interface Handler {
+
+        /**
+         * Called for each matching record, oldest first.
+         *
+         * @param record The record.
+         * @throws IOException
+         */
+        void handle(LogRecord record) throws IOException;
+    }
+
+    private File directory;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private String tag;
+    private int tagHash;
+
+    /**
+     * Constructor for LogQuery. With no limits set every record matches.
+     *
+     * @param directory The log directory.
+     */
+    public LogQuery(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Only match records sent within a time range.
+     *
+     * @param from The earliest time in milliseconds.
+     * @param to   The latest time in milliseconds.
+     */
+    public void setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Only match records with a given tag (ignoring case).
+     *
+     * @param tag The packet tag, or null for any tag.
+     */
+    public void setTag(String tag) {
+        this.tag = tag;
+        tagHash = BinaryLog.tagHash(tag);
+    }
+
+    /**
+     * Run the query.
+     *
+     * @param handler Receives each matching record.
+     * @return The number of matching records.
+     * @throws IOException If the log could not be read.
+     */
+    public int run(Handler handler) throws IOException {
+        int found = 0;
+
+        for (File segment : BinaryLog.segments(directory)) {
+            found += querySegment(segment, handler);
+        }
+        return found;
+    }
+
+    private int querySegment(File segment, Handler handler)
+            throws IOException {
+        DataInputStream in;
+        DataInputStream index = null;
+        File indexFile = BinaryLog.indexFor(segment);
+        long available = Long.MAX_VALUE;
+        long position;
+        int found = 0;
+
+        try {
+            in = open(segment);
+        } catch (FileNotFoundException fnfException) {
+            //It was compressed or removed since the directory was listed.
+            File compressed = new File(segment.getPath()
+                    + BinaryLog.COMPRESSED_EXTENSION);
+            if (BinaryLog.isCompressed(segment) || !compressed.exists()) {
+                return 0;
+            }
+            segment = compressed;
+            in = open(segment);
+        }
+
+        try {
+            if (!BinaryLog.isCompressed(segment)) {
+                available = segment.length();
+            }
+            if (in.readInt() != BinaryLog.MAGIC) {
+                return 0;
+            }
+            in.readInt();
+            position = BinaryLog.SEGMENT_HEADER_SIZE;
+
+            if (indexFile.exists()) {
+                index = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(indexFile)));
+                long entries = indexFile.length()
+                        / BinaryLog.INDEX_ENTRY_SIZE;
+                long counter;
+
+                for (counter = 0; counter < entries; counter++) {
+                    long offset = index.readLong();
+                    int length = index.readInt();
+                    index.readInt();
+                    long min = index.readLong();
+                    long max = index.readLong();
+                    long tags = index.readLong();
+
+                    //The index can reach the disk before the segment does.
+                    if (offset + length > available) {
+                        break;
+                    }
+                    if ((max < from) || (min > to)) {
+                        continue;
+                    }
+                    if ((tag != null) && ((tags & BinaryLog.tagBit(tagHash))
+                            == 0)) {
+                        continue;
+                    }
+                    skipFully(in, offset - position);
+                    found += readBlock(readFully(in, length), handler);
+                    position = offset + length;
+                }
+            }
+
+            //Anything after the last index entry hasn't been indexed yet.
+            //Skipping to it is done by reading the rest of the file.
+            found += readTail(in, indexEnd(indexFile, available) - position,
+                    handler);
+        } catch (EOFException eofException) {
+            //The segment ends part way through a record that is still
+            //being written.
+        } finally {
+            in.close();
+            if (index != null) {
+                index.close();
+            }
+        }
+        return found;
+    }
+
+    private static DataInputStream open(File segment) throws IOException {
+        InputStream in = new FileInputStream(segment);
+
+        if (BinaryLog.isCompressed(segment)) {
+            in = new GZIPInputStream(in, 64 * 1024);
+        }
+        return new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+    }
+
+    /**
+     * Find the offset just after the last complete index entry's block.
+     */
+    private static long indexEnd(File indexFile, long available)
+            throws IOException {
+        RandomAccessFile raf;
+        long entries = indexFile.length() / BinaryLog.INDEX_ENTRY_SIZE;
+        long end = BinaryLog.SEGMENT_HEADER_SIZE;
+        long counter;
+
+        if (entries == 0) {
+            return end;
+        }
+        raf = new RandomAccessFile(indexFile, "r");
+        try {
+            //Walk back past any entries whose blocks aren't on disk yet.
+            for (counter = entries - 1; counter >= 0; counter--) {
+                raf.seek(counter * BinaryLog.INDEX_ENTRY_SIZE);
+                end = raf.readLong() + raf.readInt();
+                if (end <= available) {
+                    return end;
+                }
+            }
+        } finally {
+            raf.close();
+        }
+        return BinaryLog.SEGMENT_HEADER_SIZE;
+    }
+
+    /**
+     * Skip to the end of the indexed records and scan whatever follows.
+     */
+    private int readTail(DataInputStream in, long skip, Handler handler)
+            throws IOException {
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int length;
+
+        if (skip < 0) {
+            return 0;
+        }
+        skipFully(in, skip);
+        while ((length = in.read(buffer)) != -1) {
+            tail.write(buffer, 0, length);
+        }
+        return readBlock(tail.toByteArray(), handler);
+    }
+
+    private static void skipFully(DataInputStream in, long count)
+            throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count,
+                    Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static byte[] readFully(DataInputStream in, int length)
+            throws IOException {
+        byte[] block = new byte[length];
+
+        in.readFully(block);
+        return block;
+    }
+
+    /**
+     * Read a run of records and pass on the ones that match. A record that
+     * has only been partly written ends the run, as does a zero length,
+     * which is the unused end of a memory mapped segment.
+     */
+    private int readBlock(byte[] block, Handler handler) throws IOException {
+        int length = block.length;
+        int position = 0;
+        int found = 0;
+
+        while (position + BinaryLog.RECORD_HEADER_SIZE <= length) {
+            DataInputStream header = new DataInputStream(
+                    new ByteArrayInputStream(block, position,
+                            BinaryLog.RECORD_HEADER_SIZE));
+            int bodyLength = header.readInt();
+            long timestamp = header.readLong();
+            int hash = header.readInt();
+            int bodyStart = position + BinaryLog.RECORD_HEADER_SIZE;
+            LogRecord record;
+
+            if ((bodyLength <= 0) || (bodyStart + bodyLength > length)) {
+                break;
+            }
+            position = bodyStart + bodyLength;
+            if ((timestamp < from) || (timestamp > to)) {
+                continue;
+            }
+            if ((tag != null) && (hash != tagHash)) {
+                continue;
+            }
+            record = LogRecord.decode(block, bodyStart, bodyLength);
+            if ((tag != null) && !tag.equalsIgnoreCase(record.getTag())) {
+                continue;
+            }
+            handler.handle(record);
+            found++;
+        }
+        return found;
+    }
+}
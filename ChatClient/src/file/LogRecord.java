@@ -0,0 +1,215 @@
+package file;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class holds the details of a single packet that is written to the
+ * message log.
+ * <p>
+ * Records are created on the network threads and formatted later by the
+ * LogWriter thread, so the contents are copied when the record is made.
+ * <p>
+ * In the binary log each field is stored as its length followed by its
+ * UTF-8 bytes, and the contents are stored as a count followed by each
+ * entry. A length of -1 means the field was null.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogRecord {
+
+    public static final String CSV_HEADER = "Time, Tag, Method, Encryption, "
+            + "Source Username, Source Address, Source Port, "
+            + "Destination Username, Destination Address, "
+            + " Destination Port, "
+            + "Contents, Message Size, Transmission Time\r\n";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String time;
+    private String tag;
+    private String method;
+    private String encryption;
+    private String sUsername;
+    private String sAddress;
+    private String sPort;
+    private String dUsername;
+    private String dAddress;
+    private String dPort;
+    private List<String> contents;
+    private String size;
+    private String transTime;
+
+    /**
+     * Constructor for LogRecord.
+     *
+     * @param time       Time that the message was sent.
+     * @param tag        The packet tag.
+     * @param method     The method of transmission (UDP, etc).
+     * @param encryption The encryption used.
+     * @param sUsername  The username of sender.
+     * @param sAddress   The address of sender.
+     * @param sPort      The port of sender.
+     * @param dUsername  The username of recipient.
+     * @param dAddress   The address of recipient.
+     * @param dPort      The port of recipient.
+     * @param contents   The contents of message.
+     * @param size       The size of the message.
+     * @param transTime  The time taken to transmit.
+     */
+    public LogRecord(String time, String tag, String method,
+                     String encryption, String sUsername, String sAddress,
+                     String sPort, String dUsername, String dAddress,
+                     String dPort, List<String> contents, String size,
+                     String transTime) {
+        this.time = time;
+        this.tag = tag;
+        this.method = method;
+        this.encryption = encryption;
+        this.sUsername = sUsername;
+        this.sAddress = sAddress;
+        this.sPort = sPort;
+        this.dUsername = dUsername;
+        this.dAddress = dAddress;
+        this.dPort = dPort;
+        this.contents = new ArrayList<String>(contents);
+        this.size = size;
+        this.transTime = transTime;
+    }
+
+    /**
+     * Getter for the time that the message was sent.
+     *
+     * @return The time string.
+     */
+    public String getTime() {
+        return time;
+    }
+
+    /**
+     * Getter for the packet tag.
+     *
+     * @return The packet tag.
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Encode this record for the binary log.
+     *
+     * @return The encoded record.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(byteArrayOS);
+
+        try {
+            writeString(out, time);
+            writeString(out, tag);
+            writeString(out, method);
+            writeString(out, encryption);
+            writeString(out, sUsername);
+            writeString(out, sAddress);
+            writeString(out, sPort);
+            writeString(out, dUsername);
+            writeString(out, dAddress);
+            writeString(out, dPort);
+            out.writeInt(contents.size());
+            for (String entry : contents) {
+                writeString(out, entry);
+            }
+            writeString(out, size);
+            writeString(out, transTime);
+        } catch (IOException ioException) {
+            //Can't happen when writing to memory.
+        }
+        return byteArrayOS.toByteArray();
+    }
+
+    /**
+     * Decode a record that was encoded by encode().
+     *
+     * @param data   The buffer holding the record.
+     * @param offset The offset of the record in the buffer.
+     * @param length The length of the record.
+     * @return The record.
+     * @throws IOException If the record is corrupt.
+     */
+    public static LogRecord decode(byte[] data, int offset, int length)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data, offset, length));
+        String time = readString(in);
+        String tag = readString(in);
+        String method = readString(in);
+        String encryption = readString(in);
+        String sUsername = readString(in);
+        String sAddress = readString(in);
+        String sPort = readString(in);
+        String dUsername = readString(in);
+        String dAddress = readString(in);
+        String dPort = readString(in);
+        int count = in.readInt();
+        List<String> contents = new ArrayList<String>();
+        int counter;
+
+        if (count < 0) {
+            throw new IOException("Corrupt log record.");
+        }
+        for (counter = 0; counter < count; counter++) {
+            contents.add(readString(in));
+        }
+        return new LogRecord(time, tag, method, encryption, sUsername,
+                sAddress, sPort, dUsername, dAddress, dPort, contents,
+                readString(in), readString(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        byte[] bytes;
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] bytes;
+
+        if (length < 0) {
+            return null;
+        }
+        bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Produce the line of the csv log for this record.
+     *
+     * @return The line, including the line ending.
+     */
+    public String toCsv() {
+        StringBuilder builder = new StringBuilder(128);
+
+        builder.append(time).append(", ").append(tag).append(", ")
+                .append(method).append(", ").append(encryption).append(", ");
+        builder.append(sUsername).append(", ").append(sAddress).append(", ")
+                .append(sPort).append(", ");
+        builder.append(dUsername).append(", ").append(dAddress).append(", ")
+                .append(dPort).append(", ");
+        builder.append(contents).append(", ").append(size).append(", ")
+                .append(transTime).append("\r\n");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,263 @@
+package file;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes log records to the binary message log on its own
+ * thread.
+ * <p>
+ * Callers only put a record in a bounded queue. The writer thread takes
+ * every record that is waiting at once, encodes them and writes them through
+ * a buffer, so a burst of packets costs one write rather than one file open
+ * per packet. The buffer is flushed to the file when enough data has built
+ * up or the flush interval has passed (a group flush). If syncing is turned
+ * on, each group flush also waits for the data to reach the disk.
+ * <p>
+ * If the queue is full while the writer is running, the caller waits,
+ * because log records must not be lost. If the writer isn't running, for
+ * example because the log couldn't be opened, nothing will ever empty the
+ * queue, so records that don't fit are dropped and counted instead.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogWriter implements Runnable {
+
+    public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 200; //Milliseconds.
+    private static final int MAX_BATCH = 1024;
+
+    private BinaryLog log;
+    private BlockingQueue<LogRecord> queue;
+    private Thread runningThread;
+    private volatile boolean isRunning = false;
+
+    private volatile int flushBytes = DEFAULT_FLUSH_BYTES;
+    private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private volatile boolean sync = false;
+
+    private AtomicLong written;
+    private AtomicLong flushes;
+    private AtomicLong errors;
+    private AtomicLong dropped;
+
+    /**
+     * Constructor for LogWriter. Records can be queued straight away but
+     * nothing is written until start() is called.
+     *
+     * @param directory The directory that the log is kept in.
+     * @param capacity  The maximum number of records waiting to be written.
+     */
+    public LogWriter(File directory, int capacity) {
+        log = new BinaryLog(directory);
+        queue = new ArrayBlockingQueue<LogRecord>(capacity);
+        written = new AtomicLong(0);
+        flushes = new AtomicLong(0);
+        errors = new AtomicLong(0);
+        dropped = new AtomicLong(0);
+    }
+
+    /**
+     * Open the log and start the writer thread. Does nothing if the writer
+     * has already started.
+     *
+     * @throws IOException If the log could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (isRunning) {
+            return;
+        }
+        log.open();
+
+        isRunning = true;
+        runningThread = new Thread(this, "P2P Log Writer");
+        runningThread.setDaemon(true);
+        runningThread.start();
+
+        //Write out whatever is still queued when the application exits.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Getter for the binary log being written to.
+     *
+     * @return The BinaryLog object.
+     */
+    public BinaryLog getLog() {
+        return log;
+    }
+
+    /**
+     * Set how much data may build up before the buffer is flushed.
+     *
+     * @param flushBytes The number of bytes.
+     */
+    public void setFlushBytes(int flushBytes) {
+        this.flushBytes = Math.max(1, flushBytes);
+    }
+
+    /**
+     * Set the longest time a record may sit in the buffer before it is
+     * flushed.
+     *
+     * @param flushInterval The interval in milliseconds.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    /**
+     * Choose whether each flush waits for the data to reach the disk.
+     *
+     * @param sync True to sync on every flush.
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Queue a record to be written. Only waits if the queue is full and the
+     * writer is running. If it isn't running, a record that doesn't fit is
+     * dropped.
+     *
+     * @param record The record to write.
+     */
+    public void append(LogRecord record) {
+        if (!isRunning) {
+            if (!queue.offer(record)) {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException iException) {
+            errors.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The writer thread. Writes every waiting record and flushes once the
+     * size or time limit has been reached.
+     */
+    public void run() {
+        List<LogRecord> batch = new ArrayList<LogRecord>();
+        LogRecord record;
+        long lastFlush = System.currentTimeMillis();
+        long wait;
+        int pending = 0;
+
+        while (isRunning) {
+            try {
+                wait = (pending > 0)
+                        ? (lastFlush + flushInterval) - System.currentTimeMillis()
+                        : flushInterval;
+                record = queue.poll(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException iException) {
+                break;
+            }
+
+            synchronized (this) {
+                if (!isRunning) {
+                    break;
+                }
+                if (record != null) {
+                    batch.add(record);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    pending += write(batch);
+                    batch.clear();
+                }
+                if ((pending > 0) && ((pending >= flushBytes)
+                        || (System.currentTimeMillis() - lastFlush
+                        >= flushInterval))) {
+                    flush();
+                    pending = 0;
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode and write a batch of records into the buffer.
+     *
+     * @param batch The records to write.
+     * @return The number of bytes written.
+     */
+    private int write(List<LogRecord> batch) {
+        int length = 0;
+
+        for (LogRecord record : batch) {
+            try {
+                length += log.append(record);
+                written.incrementAndGet();
+            } catch (IOException ioException) {
+                error();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Flush the buffer to the file, syncing if required.
+     */
+    private void flush() {
+        try {
+            log.flush(sync);
+            flushes.incrementAndGet();
+        } catch (IOException ioException) {
+            error();
+        }
+    }
+
+    private void error() {
+        if (errors.getAndIncrement() == 0) {
+            System.out.println("An IO error occured when logging a message.");
+        }
+    }
+
+    /**
+     * Write out every queued record, then stop the writer thread and close
+     * the file.
+     */
+    public synchronized void close() {
+        List<LogRecord> batch = new ArrayList<LogRecord>();
+
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        queue.drainTo(batch);
+        write(batch);
+        flush();
+        try {
+            log.close();
+        } catch (IOException ioException) {
+            error();
+        }
+    }
+
+    /**
+     * Produce a one line summary of the writer's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return "log writer: queued " + queue.size() + ", written "
+                + written.get() + ", flushes " + flushes.get() + ", errors "
+                + errors.get() + ", dropped " + dropped.get()
+                + (sync ? " (sync)" : "");
+    }
+}
@@ -0,0 +1,461 @@
+package file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes the message log through memory mapped segment files so
+ * that many threads can log at once without a write call per record.
+ * <p>
+ * Segments are created at their full size and mapped into memory. A writer
+ * reserves space for its record by adding the record's size to the
+ * segment's position, which needs no lock, and then copies the record into
+ * its own part of the mapping. When a reservation doesn't fit, the next
+ * segment (which is prepared ahead of time) takes over.
+ * <p>
+ * The old segment is finished on a background thread. Once its last writer
+ * is done, its sparse index is built by scanning the record headers, and it
+ * is handed to the LogArchiver. Segments use the same format as BinaryLog,
+ * so LogQuery and LogExport read them in the same way. The unused end of a
+ * segment is left as zeros, which readers take as the end of the records.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class MappedLog {
+
+    private static final int BLOCK_RECORDS = 64;
+
+    private File directory;
+    private int segmentSize = 16 * 1024 * 1024;
+    private long segmentAge = 60 * 60 * 1000;
+    private LogArchiver archiver;
+    private LogLock lock;
+
+    private volatile Segment current;
+    private Segment next;
+    private long segmentNumber;
+    private BlockingQueue<Segment> closing;
+    private Thread roller;
+    private volatile boolean isRunning = false;
+    private ThreadLocal<SimpleDateFormat> dateFormat;
+
+    private AtomicLong written;
+    private AtomicLong rolls;
+    private AtomicLong errors;
+
+    /**
+     * Constructor for MappedLog.
+     *
+     * @param directory The directory that segments are kept in.
+     */
+    public MappedLog(File directory) {
+        this.directory = directory;
+        archiver = new LogArchiver(directory);
+        closing = new LinkedBlockingQueue<Segment>();
+        written = new AtomicLong(0);
+        rolls = new AtomicLong(0);
+        errors = new AtomicLong(0);
+        dateFormat = new ThreadLocal<SimpleDateFormat>() {
+            protected SimpleDateFormat initialValue() {
+                return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            }
+        };
+    }
+
+    /**
+     * Set the size of each segment. Takes effect from the next segment.
+     *
+     * @param segmentSize The size in bytes.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Set how long a segment is written to before a new one is started.
+     *
+     * @param segmentAge The age in milliseconds.
+     */
+    public void setSegmentAge(long segmentAge) {
+        this.segmentAge = segmentAge;
+    }
+
+    /**
+     * Getter for the archiver that compresses closed segments.
+     *
+     * @return The LogArchiver object.
+     */
+    public LogArchiver getArchiver() {
+        return archiver;
+    }
+
+    /**
+     * Open the log, creating the first segment and starting the thread that
+     * finishes full segments.
+     *
+     * @throws IOException If the first segment could not be created.
+     */
+    public synchronized void open() throws IOException {
+        long highest = -1;
+
+        //A log is only ever opened once.
+        if (roller != null) {
+            return;
+        }
+        //Another process may be writing to the directory, in which case
+        //the next free one is used.
+        lock = LogLock.acquire(directory);
+        directory = lock.getDirectory();
+        archiver.setDirectory(directory);
+        archiver.start();
+        for (File f : BinaryLog.segments(directory)) {
+            highest = Math.max(highest, BinaryLog.segmentNumber(f));
+            if (f.getName().endsWith(BinaryLog.SEGMENT_SUFFIX)) {
+                archiver.archive(f);
+            }
+        }
+        segmentNumber = highest;
+        current = createSegment();
+        isRunning = true;
+
+        roller = new Thread(new Runnable() {
+            public void run() {
+                rollRoutine();
+            }
+        }, "P2P Log Roller");
+        roller.setDaemon(true);
+        roller.start();
+
+        //Index the current segment when the application exits.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Check whether the log has been opened and not closed.
+     *
+     * @return True if records can be appended.
+     */
+    public boolean isOpen() {
+        return isRunning;
+    }
+
+    /**
+     * Append a record. Safe to call from any number of threads at once.
+     *
+     * @param record The record to append.
+     * @return The number of bytes written.
+     * @throws IOException If the log is closed, the record can't fit in a
+     *                     segment or a new segment could not be created.
+     */
+    public int append(LogRecord record) throws IOException {
+        byte[] body = record.encode();
+        int size = BinaryLog.RECORD_HEADER_SIZE + body.length;
+        long timestamp = parseTime(record.getTime());
+        int tagHash = BinaryLog.tagHash(record.getTag());
+        Segment segment;
+        long offset;
+
+        while (true) {
+            if (!isRunning) {
+                throw new IOException("The log is closed.");
+            }
+            segment = current;
+            if (size > segment.capacity - BinaryLog.SEGMENT_HEADER_SIZE) {
+                throw new IOException("Record is too large for a segment.");
+            }
+
+            //Register as a writer before checking that the segment is still
+            //current and the log still open, so that it can't be finished
+            //while we write to it. close() stops the log before it waits
+            //for the writers, so a writer that gets in after that sees it
+            //and goes round again to be told the log is closed.
+            segment.writers.incrementAndGet();
+            try {
+                if ((segment != current) || !isRunning) {
+                    continue;
+                }
+                offset = segment.reserved.getAndAdd(size);
+                if (offset + size <= segment.capacity) {
+                    ByteBuffer slot = segment.buffer.duplicate();
+
+                    slot.position((int) offset);
+                    slot.putInt(body.length);
+                    slot.putLong(timestamp);
+                    slot.putInt(tagHash);
+                    slot.put(body);
+                    written.incrementAndGet();
+                    return size;
+                }
+            } finally {
+                segment.writers.decrementAndGet();
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Make sure everything written so far will survive a crash. Records are
+     * in the mapping as soon as append() returns, so this only matters when
+     * syncing.
+     *
+     * @param sync True if the current segment should be synced to the disk.
+     */
+    public void flush(boolean sync) {
+        if (sync && isRunning) {
+            current.buffer.force();
+        }
+    }
+
+    /**
+     * Close the log, finishing the current segment and removing the spare
+     * one.
+     */
+    public void close() {
+        Segment last;
+        Segment spare;
+
+        synchronized (this) {
+            if (!isRunning) {
+                return;
+            }
+            isRunning = false;
+            last = current;
+            spare = next;
+            next = null;
+        }
+        roller.interrupt();
+        finish(last);
+        if (spare != null) {
+            spare.close();
+            spare.file.delete();
+        }
+        lock.release();
+    }
+
+    /**
+     * Replace a full segment with the next one. Only the first thread to
+     * find the segment full does anything.
+     *
+     * @param full The segment that was full.
+     * @throws IOException If a new segment had to be created and couldn't.
+     */
+    private synchronized void roll(Segment full) throws IOException {
+        Segment replacement;
+
+        if ((current != full) || !isRunning) {
+            return;
+        }
+        replacement = next;
+        next = null;
+        if (replacement == null) {
+            //The roller hasn't caught up, so this writer has to wait.
+            replacement = createSegment();
+        }
+        replacement.created = System.currentTimeMillis();
+        current = replacement;
+        closing.add(full);
+        rolls.incrementAndGet();
+    }
+
+    /**
+     * The roller thread. Finishes full segments, keeps a spare segment
+     * ready and rolls the current segment once it is too old.
+     */
+    private void rollRoutine() {
+        Segment full;
+        Segment segment;
+
+        while (isRunning) {
+            try {
+                full = closing.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException iException) {
+                break;
+            }
+            if (full != null) {
+                finish(full);
+            }
+
+            try {
+                synchronized (this) {
+                    if (isRunning && (next == null)) {
+                        next = createSegment();
+                    }
+                }
+                segment = current;
+                if ((segment.reserved.get() > BinaryLog.SEGMENT_HEADER_SIZE)
+                        && (System.currentTimeMillis() - segment.created
+                        >= segmentAge)) {
+                    roll(segment);
+                }
+            } catch (IOException ioException) {
+                errors.incrementAndGet();
+            }
+        }
+        //Finish anything rolled just before closing.
+        while ((full = closing.poll()) != null) {
+            finish(full);
+        }
+    }
+
+    /**
+     * Wait for the last writer of a segment, then index it, sync it and
+     * hand it to the archiver.
+     *
+     * @param segment The segment to finish.
+     */
+    private void finish(Segment segment) {
+        while (segment.writers.get() > 0) {
+            Thread.yield();
+        }
+        try {
+            writeIndex(segment);
+            segment.buffer.force();
+        } catch (IOException ioException) {
+            errors.incrementAndGet();
+        }
+        segment.close();
+        archiver.archive(segment.file);
+    }
+
+    /**
+     * Build the sparse index of a finished segment by walking its record
+     * headers.
+     */
+    private void writeIndex(Segment segment) throws IOException {
+        ByteBuffer view = segment.buffer.duplicate();
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(BinaryLog.indexFor(segment.file))));
+        long end = Math.min(segment.reserved.get(), segment.capacity);
+        int position = BinaryLog.SEGMENT_HEADER_SIZE;
+        int blockStart = position;
+        int blockCount = 0;
+        long blockMin = 0;
+        long blockMax = 0;
+        long blockTags = 0;
+
+        try {
+            while (position + BinaryLog.RECORD_HEADER_SIZE <= end) {
+                int length = view.getInt(position);
+                long timestamp = view.getLong(position + 4);
+                int tagHash = view.getInt(position + 12);
+
+                if ((length <= 0) || (position + BinaryLog.RECORD_HEADER_SIZE
+                        + length > end)) {
+                    break;
+                }
+                if (blockCount == 0) {
+                    blockMin = timestamp;
+                    blockMax = timestamp;
+                }
+                blockMin = Math.min(blockMin, timestamp);
+                blockMax = Math.max(blockMax, timestamp);
+                blockTags |= BinaryLog.tagBit(tagHash);
+                blockCount++;
+                position += BinaryLog.RECORD_HEADER_SIZE + length;
+
+                if (blockCount == BLOCK_RECORDS) {
+                    index.writeLong(blockStart);
+                    index.writeInt(position - blockStart);
+                    index.writeInt(blockCount);
+                    index.writeLong(blockMin);
+                    index.writeLong(blockMax);
+                    index.writeLong(blockTags);
+                    blockStart = position;
+                    blockCount = 0;
+                    blockTags = 0;
+                }
+            }
+            if (blockCount > 0) {
+                index.writeLong(blockStart);
+                index.writeInt(position - blockStart);
+                index.writeInt(blockCount);
+                index.writeLong(blockMin);
+                index.writeLong(blockMax);
+                index.writeLong(blockTags);
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Create, size and map the next segment file.
+     */
+    private synchronized Segment createSegment() throws IOException {
+        segmentNumber++;
+        return new Segment(BinaryLog.segmentFile(directory, segmentNumber),
+                segmentSize);
+    }
+
+    private long parseTime(String time) {
+        if (time != null) {
+            try {
+                return dateFormat.get().parse(time).getTime();
+            } catch (ParseException pException) {
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Produce a one line summary of the log's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return "mapped log: written " + written.get() + ", segments rolled "
+                + rolls.get() + ", errors " + errors.get();
+    }
+
+    /**
+     * A single mapped segment file.
+     */
+    private static class Segment {
+        File file;
+        RandomAccessFile raf;
+        MappedByteBuffer buffer;
+        int capacity;
+        AtomicLong reserved;
+        AtomicInteger writers;
+        volatile long created;
+
+        Segment(File file, int capacity) throws IOException {
+            this.file = file;
+            this.capacity = capacity;
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    capacity);
+            buffer.putInt(0, BinaryLog.MAGIC);
+            buffer.putInt(4, BinaryLog.VERSION);
+            reserved = new AtomicLong(BinaryLog.SEGMENT_HEADER_SIZE);
+            writers = new AtomicInteger(0);
+            created = System.currentTimeMillis();
+        }
+
+        /**
+         * Close the file. The mapping stays valid until it is collected.
+         */
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ioException) {
+            }
+        }
+    }
+}
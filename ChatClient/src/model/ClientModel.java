@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.*;
 
 import dht.DHTNetwork;
+import dht.IdSpace;
 import network.*;
 import view.*;
 
@@ -22,6 +23,9 @@ import view.*;
  */
 public class ClientModel implements Runnable {
 
+    public static final int DEFAULT_REFRESH_RATE = 10; //The most times per
+    //second that the DHT tables in the GUI are redrawn, unless set.
+
     private ClientNetwork network;
     private ClientConsole console;
     private DHTNetwork dht;
@@ -31,17 +35,34 @@ public class ClientModel implements Runnable {
     private String username;
     private String serverIP;
     private String serverPort;
-    private Map<String, Peer> peerList;
+    private PeerCache peers; //The peers that have been looked up.
+    private Map<String, Lookup> lookups; //What is waiting for each lookup
+    //that hasn't been finished yet, keyed by lookupKey().
+    private static final long LOOKUP_WAIT = 5000; //How long an answer to a
+    //lookup is waited for.
+    private Timer timer; //Runs the lookup time outs and lease renewals.
+    private TimerTask leaseRenewal;
+    private ShardRing shards; //The registration servers that usernames are
+    //split between, if there is more than one.
+    private int redirects = 0;
+    private static final int MAX_REDIRECTS = 3; //Stops servers that disagree
+    //about the shards from passing the client back and forth.
+    private static final int DIRECTORY_PAGE_SIZE = 20; //How many usernames
+    //the directory in the GUI shows at once.
     private boolean dhtStatus = false;
     private boolean duplicateName = false;
+    private RefreshScheduler refresher;
 
     /**
      * Constructor for ClientModel class.
      */
     public ClientModel() {
         serverRegistered = false;
-        peerList = new HashMap<String, Peer>();
+        peers = new PeerCache();
+        lookups = new HashMap<String, Lookup>();
+        timer = new Timer("P2P Client Timer", true);
         username = "N/A";
+        refresher = new RefreshScheduler(this, DEFAULT_REFRESH_RATE);
     }
 
     /**
@@ -122,6 +143,7 @@ public class ClientModel implements Runnable {
      */
     public void setUsername(String username) {
         this.username = username;
+        routeToShard();
         registerClient();
     }
 
@@ -140,6 +162,51 @@ public class ClientModel implements Runnable {
         this.serverIP = serverIP;
         this.serverPort = serverPort;
 
+        routeToShard();
+        registerClient();
+    }
+
+    /**
+     * Set the registration servers that usernames are split between. When
+     * there is more than one, the client registers with the one that its
+     * username belongs to instead of the one it was given.
+     *
+     * @param shards The ring of servers.
+     */
+    public void setShards(ShardRing shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Point the client at the server that its username belongs to.
+     */
+    private void routeToShard() {
+        String shard;
+
+        redirects = 0;
+        if ((shards == null) || !shards.isSharded()) {
+            return;
+        }
+        shard = shards.shardFor(username);
+        serverIP = ShardRing.addressOf(shard);
+        serverPort = Integer.toString(ShardRing.portOf(shard));
+    }
+
+    /**
+     * Register with a different server after being told that the username
+     * belongs to it.
+     *
+     * @param serverIP   The address of the server.
+     * @param serverPort The port of the server.
+     */
+    public void redirectServer(String serverIP, String serverPort) {
+        if (redirects >= MAX_REDIRECTS) {
+            console.printError("Registration servers disagree about where "
+                    + username + " belongs.");
+            return;
+        }
+        redirects++;
+        setServer(serverIP, serverPort);
         registerClient();
     }
 
@@ -167,6 +234,46 @@ public class ClientModel implements Runnable {
         }
     }
 
+    /**
+     * Start renewing the registration with the server. The lease is renewed
+     * twice per lease time. If renewals are lost and the lease runs out, the
+     * server registers the client again on the next renewal it gets.
+     *
+     * @param leaseTime The lease time given by the server, in milliseconds.
+     */
+    public synchronized void startLease(long leaseTime) {
+        long period = Math.max(leaseTime / 2, 1);
+
+        stopLease();
+        leaseRenewal = new TimerTask() {
+            public void run() {
+                network.renewLease(username, serverIP, serverPort);
+            }
+        };
+        timer.scheduleAtFixedRate(leaseRenewal, period, period);
+    }
+
+    /**
+     * Stop renewing the registration with the server.
+     */
+    public synchronized void stopLease() {
+        if (leaseRenewal != null) {
+            leaseRenewal.cancel();
+            leaseRenewal = null;
+        }
+    }
+
+    /**
+     * Stop acting as registered after the server said the username is in
+     * use when the client had to register again.
+     */
+    public void registrationLost() {
+        stopLease();
+        serverRegistered = false;
+        console.printError("The registration with the server was lost, as "
+                + username + " has been taken by another user.");
+    }
+
     /**
      * Getter for the username variable.
      *
@@ -174,7 +281,7 @@ public class ClientModel implements Runnable {
      */
     public String getUsername() {
         if (dhtStatus) {
-            return Integer.toString(dht.getId());
+            return IdSpace.format(dht.getId());
         } else {
             return username;
         }
@@ -198,15 +305,6 @@ public class ClientModel implements Runnable {
         return serverPort;
     }
 
-    /**
-     * Getter for the peer list.
-     *
-     * @return A Map structure containing the listed peer information.
-     */
-    public Map<String, Peer> getPeerList() {
-        return peerList;
-    }
-
     /**
      * Attempt to register the client by causing the ClientNetwork Object to
      * contact the server.
@@ -220,101 +318,317 @@ public class ClientModel implements Runnable {
      * contact the server.
      */
     public void deregisterClient() {
+        stopLease();
         network.deregisterClient(username, serverIP, serverPort);
     }
 
     /**
      * Receive a message.
      * <p>
-     * This involves cycling through the list of peers and checking the
-     * incoming IP address with those listed to determine who is the sender.
+     * This involves looking up the incoming IP address and port to
+     * determine who is the sender. If the sender can't be found, because
+     * the lookup failed or the client isn't registered, the message is
+     * still shown, with the sender's address and port in place of a
+     * username.
      *
      * @param srcAddress The address where the packet came from.
      * @param srcPort    The port where the packet came from on the peer's side.
      * @param time       The time that the packet was sent.
      * @param message    The message contents.
      */
-    public void receiveMessage(String srcAddress, int srcPort,
-                               String time, String message) {
-        //Determine which peer sent the message.
-        for (Peer peer : peerList.values()) {
-            if ((peer.getAddress().equalsIgnoreCase(srcAddress)) &&
-                    (peer.getPort() == srcPort)) {
-                console.receiveMessage(peer.getUsername(), time, message);
-                view.recieveMessage(peer.getUsername(), time, message);
+    public void receiveMessage(final String srcAddress, final int srcPort,
+                               final String time, final String message) {
+        withSender(srcAddress, srcPort, new PeerAction() {
+            public void run(Peer peer) {
+                String sender = (peer != null) ? peer.getUsername()
+                        : endpointName(srcAddress, srcPort);
+
+                console.receiveMessage(sender, time, message);
+                view.recieveMessage(sender, time, message);
             }
-        }
+        });
+    }
+
+    /**
+     * Receive a file that another peer has offered to send.
+     * <p>
+     * The sender is looked up first so that the transfer can show its
+     * username. The file is received even if the sender isn't known.
+     *
+     * @param fileName The name of the file.
+     * @param address  The address of the sending peer.
+     * @param filePort The port the file is sent from.
+     * @param port     The port of the sending peer.
+     */
+    public void receiveFile(final String fileName, final String address,
+                            final int filePort, final int port) {
+        withSender(address, port, new PeerAction() {
+            public void run(Peer peer) {
+                network.receiveFile(fileName, address, filePort, port);
+            }
+        });
     }
 
     /**
      * Send a message.
      * <p>
-     * This involves cycling through the list of peers and checking for the IP
-     * address of the one that we wish to send a message to. The ClientNetwork
-     * Object is then contacted to deal with the specifics of sending the
-     * actual packet.
+     * This involves looking up the IP address of the peer that we wish to
+     * send a message to. The ClientNetwork Object is then contacted to deal
+     * with the specifics of sending the actual packet.
      *
      * @param peerID  The String representation of the username of the peer.
      * @param message A String containing the message.
      */
-    public void sendMessage(String username, String message) {
-        for (Peer peer : peerList.values()) {
-            if (peer.getUsername().equalsIgnoreCase(username)) {
-                String destAddress = peer.getAddress();
-                int destPort = peer.getPort();
+    public void sendMessage(final String username, final String message) {
+        withPeer(username, new PeerAction() {
+            public void run(Peer peer) {
+                if (peer == null) {
+                    console.printError("The message to " + username
+                            + " could not be sent, as they aren't online.");
+                    return;
+                }
+                network.sendMessage(message, peer.getAddress(),
+                        peer.getPort());
+            }
+        });
+    }
 
-                network.sendMessage(message, destAddress, destPort);
+    /**
+     * Do something with the peer that has a username, looking it up on the
+     * server first if it isn't in the cache.
+     */
+    private void withPeer(String username, PeerAction action) {
+        List<String> lookup = new ArrayList<String>();
+
+        lookup.add("USERNAME");
+        lookup.add(username);
+        withLookup(lookup, peers.findByUsername(username), action);
+    }
+
+    /**
+     * Do something with the peer that uses an address and port, looking it
+     * up on the server first if it isn't in the cache.
+     */
+    private void withSender(String address, int port, PeerAction action) {
+        List<String> lookup = new ArrayList<String>();
+
+        lookup.add("ENDPOINT");
+        lookup.add(address);
+        lookup.add(Integer.toString(port));
+        withLookup(lookup, peers.findByEndpoint(address, port), action);
+    }
+
+    /**
+     * Do something with a peer once it is known. Anything asked for while a
+     * lookup is waiting for an answer waits behind it, so that it is done
+     * in order.
+     *
+     * @param lookup The lookup that would be sent to the server.
+     * @param cached The peer from the cache, or null if it isn't there.
+     * @param action What to do with the peer.
+     */
+    private void withLookup(List<String> lookup, Peer cached,
+                            PeerAction action) {
+        final String key = lookupKey(lookup);
+        final Lookup waiting;
+
+        synchronized (lookups) {
+            if (lookups.containsKey(key)) {
+                lookups.get(key).actions.add(action);
+                return;
             }
+            if ((cached != null) || !serverRegistered) {
+                waiting = null;
+            } else {
+                waiting = new Lookup();
+                waiting.actions.add(action);
+                lookups.put(key, waiting);
+            }
+        }
+        if (waiting == null) {
+            action.run(cached);
+            return;
         }
+        network.lookupPeer(lookup, serverIP, serverPort);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                finishLookup(key, waiting, null);
+            }
+        }, LOOKUP_WAIT);
     }
 
     /**
-     * Update the list of peers.
+     * Take in the server's answer to a lookup and do what was waiting for
+     * it.
+     *
+     * @param contents The lookup, followed by the peer information if the
+     *                 server knows the peer.
+     */
+    public void peerInfo(List<String> contents) {
+        int length = contents.get(0).equalsIgnoreCase("USERNAME") ? 2 : 3;
+        Peer peer = null;
+
+        if (contents.size() > length) {
+            peer = parsePeer(contents.get(length));
+        }
+        finishLookup(lookupKey(contents.subList(0, length)), null, peer);
+    }
+
+    /**
+     * Do what was waiting for a lookup.
      * <p>
-     * The peer information is taken out of the list and stored before a method
-     * is called from the ClientView to reflect these changes in the GUI.
+     * The actions are run without holding the lock on the lookups, so a
+     * slow send or an action that starts another lookup doesn't hold up
+     * any other lookup. The lookup stays in place until they are all done,
+     * so anything asked for with the same peer in the meantime still waits
+     * behind them and is run here afterwards.
      *
-     * @param list A List of Strings containing peer information.
+     * @param key     The lookup's key.
+     * @param waiting The lookup that was sent, or null for whichever is
+     *                waiting now. This stops a time out from ending a later
+     *                lookup.
+     * @param peer    The peer, or null if there is no such peer or the
+     *                server didn't answer.
+     */
+    private void finishLookup(String key, Lookup waiting, Peer peer) {
+        Lookup lookup;
+        List<PeerAction> actions;
+
+        synchronized (lookups) {
+            lookup = lookups.get(key);
+            if ((lookup == null) || lookup.answered || ((waiting != null)
+                    && (lookup != waiting))) {
+                return;
+            }
+            lookup.answered = true;
+            if (peer != null) {
+                peers.add(peer);
+            }
+            actions = lookup.take();
+        }
+        try {
+            while (!actions.isEmpty()) {
+                for (PeerAction action : actions) {
+                    action.run(peer);
+                }
+                synchronized (lookups) {
+                    actions = lookup.take();
+                    if (actions.isEmpty()) {
+                        lookups.remove(key);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            //The rest are dropped rather than leaving every later lookup of
+            //this peer waiting for good.
+            synchronized (lookups) {
+                lookups.remove(key);
+            }
+            throw e;
+        }
+    }
+
+    private static String lookupKey(List<String> lookup) {
+        StringBuilder key = new StringBuilder();
+
+        for (String field : lookup) {
+            key.append(field.toLowerCase(Locale.ROOT)).append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Ask the server for a page of the usernames starting with a prefix.
+     * The page is shown by the view when it arrives.
+     *
+     * @param prefix The prefix to search for.
+     * @param after  The last username of the previous page, or an empty
+     *               string for the first page.
+     */
+    public void searchDirectory(String prefix, String after) {
+        if (!serverRegistered) {
+            return;
+        }
+        network.queryDirectory(prefix, after, DIRECTORY_PAGE_SIZE, serverIP,
+                serverPort);
+    }
+
+    /**
+     * Pass a page of the directory from the server on to the view and the
+     * console. The peers on it are cached, as the user is likely to pick
+     * one of them to talk to.
+     *
+     * @param contents The prefix and last username that the page was asked
+     *                 for with, whether there are more usernames after it,
+     *                 and then the peer information for each peer on it.
      */
-    public void updatePeerList(List<String> list) {
-        peerList.clear();
-        for (String peerString : list) {
-            String[] peerDetails = peerString.split(";");
-            String peerUsername = peerDetails[0];
-            String peerAddress = peerDetails[1];
-            int peerPort = Integer.parseInt(peerDetails[2]);
+    public void directoryPage(List<String> contents) {
+        List<String> usernames = new ArrayList<String>();
+        boolean more = Boolean.parseBoolean(contents.get(2));
+
+        for (String peerString : contents.subList(3, contents.size())) {
+            Peer peer = parsePeer(peerString);
 
-            peerList.put(peerAddress + ":" + peerPort,
-                    new Peer(peerUsername, peerAddress, peerPort));
+            peers.add(peer);
+            usernames.add(peer.getUsername());
         }
-        console.newPeerList();
-        view.refreshPeerList(peerList);
+        view.showDirectoryPage(contents.get(0), contents.get(1), more,
+                usernames);
+        console.showDirectoryPage(contents.get(0), contents.get(1), more,
+                usernames);
+    }
+
+    private static Peer parsePeer(String peerString) {
+        String[] peerDetails = peerString.split(";");
+        String peerUsername = peerDetails[0];
+        String peerAddress = peerDetails[1];
+        int peerPort = Integer.parseInt(peerDetails[2]);
+
+        return new Peer(peerUsername, peerAddress, peerPort);
     }
 
     /**
-     * Search the peer list for the username that corresponds to the provided
-     * username and port.
+     * Search the cached peers for the username that corresponds to the
+     * provided address and port. The server isn't asked, as this is used
+     * for every packet that is logged.
      * <p>
-     * If the address/port combination is not found in the peer list, this
-     * method will return the string "SERVER".
+     * If the address/port combination is the server's, this method will
+     * return the string "SERVER". Any other address/port combination that
+     * is not found in the cache is returned as address:port.
      *
-     * @param address
-     * @param port
-     * @return
+     * @param address The address of the peer.
+     * @param port    The port of the peer.
+     * @return The username, "SERVER" or address:port.
      */
     public String findUsername(String address, int port) {
         if (dhtStatus) {
             String id;
-            id = Integer.toString(dht.hash(address + port));
+            id = IdSpace.format(dht.hash(address + port));
             return id;
         }
-        for (Peer peer : peerList.values()) {
-            if (peer.getAddress().equalsIgnoreCase(address) &&
-                    peer.getPort() == port) {
-                return peer.getUsername();
-            }
+        Peer peer = peers.findByEndpoint(address, port);
+
+        if (peer != null) {
+            return peer.getUsername();
+        }
+        if (address.equalsIgnoreCase(serverIP)
+                && Integer.toString(port).equals(serverPort)) {
+            return "SERVER";
         }
-        return "SERVER";
+        return endpointName(address, port);
+    }
+
+    private static String endpointName(String address, int port) {
+        return address + ":" + port;
+    }
+
+    /**
+     * Get a summary of each stage of the network's packet pipeline.
+     *
+     * @return One line for each stage.
+     */
+    public List<String> getPipelineStatus() {
+        return network.getPipelineStatus();
     }
 
     /**
@@ -337,6 +651,26 @@ public class ClientModel implements Runnable {
         view.refreshLists();
     }
 
+    /**
+     * Ask for the DHT information in the view to be refreshed.
+     * <p>
+     * Unlike refreshDHTInfo() this never blocks. Requests are coalesced and
+     * the refresh itself happens later on the event dispatch thread.
+     */
+    public void requestRefresh() {
+        refresher.requestRefresh();
+    }
+
+    /**
+     * Set the maximum number of times per second that the DHT information
+     * in the view is refreshed.
+     *
+     * @param maxPerSecond The refresh rate limit.
+     */
+    public void setMaxRefreshRate(int maxPerSecond) {
+        refresher.setMaxRate(maxPerSecond);
+    }
+
     public void run() {
         refreshDHTInfo();
     }
@@ -346,7 +680,7 @@ public class ClientModel implements Runnable {
      *
      * @param id The last download id.
      */
-    public void setLastDownloadId(int id) {
+    public void setLastDownloadId(long id) {
         view.setLastDownloadId(id);
     }
 
@@ -355,7 +689,7 @@ public class ClientModel implements Runnable {
      *
      * @param id The last upload id.
      */
-    public void setLastUploadId(int id) {
+    public void setLastUploadId(long id) {
         view.setLastUploadId(id);
     }
 
@@ -389,18 +723,19 @@ public class ClientModel implements Runnable {
      * @param selectedFile The file object of the desired local
      *                     file to be transferred.
      */
-    public void sendFileRequest(String username, File selectedFile) {
-        String destAddress;
-        int destPort;
-
-        for (Peer peer : peerList.values()) {
-            if ((peer.getUsername()).equalsIgnoreCase(username)) {
-                destAddress = peer.getAddress();
-                destPort = peer.getPort();
-
-                network.sendFileRequest(destAddress, destPort, selectedFile);
+    public void sendFileRequest(final String username,
+                                final File selectedFile) {
+        withPeer(username, new PeerAction() {
+            public void run(Peer peer) {
+                if (peer == null) {
+                    console.printError("The file could not be sent to "
+                            + username + ", as they aren't online.");
+                    return;
+                }
+                network.sendFileRequest(peer.getAddress(), peer.getPort(),
+                        selectedFile);
             }
-        }
+        });
     }
 
     /**
@@ -442,4 +777,39 @@ public class ClientModel implements Runnable {
     public boolean getDuplicateStatus() {
         return duplicateName;
     }
+
+    /**
+     * A lookup that is waiting for an answer, or whose actions are being
+     * run.
+     */
+    private static class Lookup {
+        private List<PeerAction> actions = new ArrayList<PeerAction>();
+        private boolean answered = false;
+
+        /**
+         * Take the actions that are waiting, leaving none.
+         *
+         * @return The actions.
+         */
+        private List<PeerAction> take() {
+            List<PeerAction> taken = actions;
+
+            actions = new ArrayList<PeerAction>();
+            return taken;
+        }
+    }
+
+    /**
+     * Something to do with a peer once it has been looked up.
+     */
+    private interface PeerAction {
+
+        /**
+         * Do it.
+         *
+         * @param peer The peer, or null if the server doesn't know it or
+         *             didn't answer.
+         */
+        void run(Peer peer);
+    }
 }
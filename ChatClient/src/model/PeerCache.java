@@ -0,0 +1,154 @@
+package model;
+
+import java.util.*;
+
+/**
+ * This class remembers the peers that have been looked up on the server, so
+ * that each message to or from a peer doesn't need a lookup of its own.
+ * <p>
+ * The client doesn't keep the whole peer list, which can be far too big.
+ * A peer is looked up by username or by address and port when it is first
+ * needed, and the answer is kept here. Peers go and come back under other
+ * addresses, so an answer is only used for MAX_AGE after it arrived. At
+ * most MAX_PEERS are kept, and the one used least recently is forgotten
+ * first.
+ * <p>
+ * Both lookups ignore case, in the same way as the rest of the client.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class PeerCache {
+
+    public static final int MAX_PEERS = 1000;
+    public static final long MAX_AGE = 60000;
+
+    //Kept in the order the peers were last used in.
+    private LinkedHashMap<String, Entry> byUsername;
+    private Map<String, Entry> byEndpoint;
+
+    /**
+     * Constructor for an empty PeerCache.
+     */
+    public PeerCache() {
+        byUsername = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        byEndpoint = new HashMap<String, Entry>();
+    }
+
+    /**
+     * Remember a peer. Any peer with the same username or address and port
+     * is forgotten.
+     *
+     * @param peer The peer.
+     */
+    public synchronized void add(Peer peer) {
+        Entry entry = new Entry(peer, System.currentTimeMillis() + MAX_AGE);
+        Iterator<Entry> eldest;
+
+        remove(byUsername.get(usernameKey(peer.getUsername())));
+        remove(byEndpoint.get(endpointKey(peer.getAddress(), peer.getPort())));
+        byUsername.put(usernameKey(peer.getUsername()), entry);
+        byEndpoint.put(endpointKey(peer.getAddress(), peer.getPort()), entry);
+        if (byUsername.size() > MAX_PEERS) {
+            eldest = byUsername.values().iterator();
+            remove(eldest.next());
+        }
+    }
+
+    /**
+     * Find the peer with a given username.
+     *
+     * @param username The username of the peer.
+     * @return The peer, or null if it isn't known or was looked up too
+     * long ago.
+     */
+    public synchronized Peer findByUsername(String username) {
+        return use(byUsername.get(usernameKey(username)));
+    }
+
+    /**
+     * Find the peer using a given address and port.
+     *
+     * @param address The address of the peer.
+     * @param port    The port of the peer.
+     * @return The peer, or null if it isn't known or was looked up too
+     * long ago.
+     */
+    public synchronized Peer findByEndpoint(String address, int port) {
+        Entry entry = byEndpoint.get(endpointKey(address, port));
+
+        if (entry != null) {
+            //Counts as a use, so it is forgotten later.
+            byUsername.get(usernameKey(entry.peer.getUsername()));
+        }
+        return use(entry);
+    }
+
+    /**
+     * Forget every peer.
+     */
+    public synchronized void clear() {
+        byUsername.clear();
+        byEndpoint.clear();
+    }
+
+    /**
+     * Get the number of peers remembered.
+     *
+     * @return The number of peers.
+     */
+    public synchronized int size() {
+        return byUsername.size();
+    }
+
+    private Peer use(Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expires) {
+            remove(entry);
+            return null;
+        }
+        return entry.peer;
+    }
+
+    private void remove(Entry entry) {
+        String usernameKey;
+        String endpointKey;
+
+        if (entry == null) {
+            return;
+        }
+        usernameKey = usernameKey(entry.peer.getUsername());
+        endpointKey = endpointKey(entry.peer.getAddress(),
+                entry.peer.getPort());
+        if (byUsername.get(usernameKey) == entry) {
+            byUsername.remove(usernameKey);
+        }
+        if (byEndpoint.get(endpointKey) == entry) {
+            byEndpoint.remove(endpointKey);
+        }
+    }
+
+    private static String endpointKey(String address, int port) {
+        return address.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    private static String usernameKey(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A peer and when it stops being used.
+     */
+    private static class Entry {
+        Peer peer;
+        long expires;
+
+        Entry(Peer peer, long expires) {
+            this.peer = peer;
+            this.expires = expires;
+        }
+    }
+}
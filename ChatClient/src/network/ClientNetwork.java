@@ -1,13 +1,10 @@
 package network;
 
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
 import java.net.*;
 import java.util.*;
 import java.text.*;
 
-import javax.swing.SwingUtilities;
-
 import model.*;
 import view.*;
 import file.*;
@@ -39,11 +36,22 @@ public class ClientNetwork implements Runnable {
     private String encryption = "N/A";
     private boolean presSet = false;
 
+    //Packets are handled on the protocol stage once they have been decoded
+    //on the receiving thread. Protocol handling has to stay in order and
+    //must not lose packets, so it gets one thread and makes the receiver
+    //wait when it falls behind. Log records go to the file manager's log
+    //writer and telemetry to the exporter, which batches it and drops
+    //records rather than slowing anything else down.
+    private PipelineStage protocolStage;
+    private TelemetryExporter telemetry;
+
     /**
      * Constructor for ClientNetwork.
      */
     public ClientNetwork() {
         isRunning = true;
+        protocolStage = new PipelineStage("protocol", 1, 1000, true);
+        telemetry = new TelemetryExporter(10000);
     }
 
     /**
@@ -93,6 +101,7 @@ public class ClientNetwork implements Runnable {
      */
     public void initComm(CommManager comm) {
         this.comm = comm;
+        telemetry.initComm(comm);
     }
 
     /**
@@ -205,25 +214,27 @@ public class ClientNetwork implements Runnable {
     }
 
     /**
-     * Method for receiving packet and determining what course
-     * of action to take depending on the packet tag.
+     * Method for receiving a packet and decoding it.
+     * <p>
+     * This is the first stage of the pipeline and runs on the network
+     * thread. The packet tag and tracking information are taken off the
+     * packet here and the rest of the work is handed to the protocol stage
+     * so that the next packet can be received straight away.
      *
      * @throws InterruptedException This means that the socket
      *                              has timed out. It returns null in this case and throws
      *                              an InterruptedException.
      */
     private void netRoutine() throws InterruptedException {
-        List<String> packetContents;
-        List<String> fileDupe;
-        List<String> forwardDupe;
-        String packetTag;
+        final List<String> packetContents;
+        final String packetTag;
         String sentAddress;
-        int sentPort;
+        final int sentPort;
         String message = "";
-        int size;
-        String time;
-        String clientAddress;
-        int clientPort;
+        final int size;
+        final String time;
+        final String packetMethod;
+        final String packetEncryption;
         String transTime = null;
 
         try {
@@ -243,13 +254,9 @@ public class ClientNetwork implements Runnable {
             size = Integer.parseInt(packetContents.remove(packetContents.size() - 1));
             sentPort = Integer.parseInt(packetContents.remove(packetContents.size() - 1));
             sentAddress = packetContents.remove(packetContents.size() - 1);
-            encryption = packetContents.remove(packetContents.size() - 1);
-            method = packetContents.remove(packetContents.size() - 1);
+            packetEncryption = packetContents.remove(packetContents.size() - 1);
+            packetMethod = packetContents.remove(packetContents.size() - 1);
             time = packetContents.remove(packetContents.size() - 1);
-            fileDupe = new ArrayList<String>();
-            fileDupe.addAll(packetContents);
-            forwardDupe = new ArrayList<String>();
-            forwardDupe.addAll(packetContents);
             //Now packet contents will contain either the actual message,
             //peerlist information
             //or username (i.e. the contents of the message) or nothing.
@@ -261,78 +268,22 @@ public class ClientNetwork implements Runnable {
                 }
             }
 
+            //An error ends this network thread so it can't be left for
+            //a later stage.
             if (packetTag.equalsIgnoreCase("ERROR")) {
                 console.printError(message);
+                //Once registered, an error can only be the answer to a
+                //renewal that had to register the client again, after
+                //someone else took the username. The client carries on
+                //without a registration.
+                if (model.getServerRegistered()) {
+                    model.registrationLost();
+                    return;
+                }
                 model.setDuplicateStatus(true);
                 throw new InterruptedException();
-            } else if (packetTag.equalsIgnoreCase("REGISTRATION_SUCCESS")) {
-                model.setServerRegistered(true);
-                initialiseView(true);
-                new Thread(console).start();
-            } else if (packetTag.equalsIgnoreCase("PEER_LIST")) {
-                model.updatePeerList(packetContents);
-            } else if (packetTag.equalsIgnoreCase("MESSAGE")) {
-                model.receiveMessage(sentAddress, sentPort,
-                        packetContents.get(0), packetContents.get(1));
-            } else if (packetTag.equalsIgnoreCase("LIFE_CHECK")) {
-                //Send a response to the server to confirm that you
-                //active.
-                List<String> packetData = new ArrayList<String>();
-                int length;
-                packetData.add(model.getUsername());
-                length = addData("LIFE_CONFIRM", packetData, sentAddress,
-                        sentPort);
-            } else if (packetTag.equalsIgnoreCase("DHT_JOIN")) {
-                dht.forwardJoinReq(packetContents);
-                dht.printDetails();
-            } else if (packetTag.equalsIgnoreCase("DHT_SETUP")) {
-                dht.receiveDetails(packetContents, sentAddress, sentPort);
-                dht.printDetails();
-                initialiseView(false);
-            } else if (packetTag.equalsIgnoreCase("DHT_ADD")) {
-                dht.forwardAddition(packetContents);
-                dht.printDetails();
-            } else if (packetTag.equalsIgnoreCase("DHT_REMOVAL")) {
-                dht.forwardRemoval(packetContents);
-            } else if (packetTag.equalsIgnoreCase("DHT_UP")) {
-                dht.receiveUpRequest(packetContents);
-            } else if (packetTag.equalsIgnoreCase("DHT_UP_CONFIRM")) {
-
-            } else if (packetTag.equalsIgnoreCase("DHT_DOWN")) {
-                dht.receiveDownRequest(packetContents);
-            } else if (packetTag.equalsIgnoreCase("DHT_DOWN_CONFIRM")) {
-                String fileName = packetContents.remove(0);
-                int dhtPort = Integer.parseInt(packetContents.remove(0));
-                dht.receiveFile(fileName, sentAddress, dhtPort);
-            } else if (packetTag.equalsIgnoreCase("DHT_TRANSFER")) {
-                String fileName = packetContents.remove(0);
-                int dhtPort = Integer.parseInt(packetContents.remove(0));
-                dht.addFileName(fileName);
-                dht.receiveFile(fileName, sentAddress, dhtPort);
-            } else if (packetTag.equalsIgnoreCase("DHT_PRED_CHECK")) {
-                List<String> packetData = new ArrayList<String>();
-                addData("DHT_PRED_CONFIRM", packetData, sentAddress,
-                        sentPort);
-            } else if (packetTag.equalsIgnoreCase("DHT_PRED_CONFIRM")) {
-                dht.setDHTConfirmation(true);
-            } else if (packetTag.equalsIgnoreCase("DHT_DEATH")) {
-                dht.forwardDeath(packetContents);
-            } else if (packetTag.equalsIgnoreCase("DHT_FIX")) {
-                DHTNode newNode;
-
-                newNode = dht.removeDHTInfo(packetContents);
-                if (newNode != null) {
-                    dht.addNode(newNode.getAddress(), newNode.getPort());
-                }
-            } else if (packetTag.equalsIgnoreCase("FILE_SEND")) {
-                String fileName = packetContents.remove(0);
-                int filePort = Integer.parseInt(packetContents.remove(0));
-                receiveFile(fileName, sentAddress, filePort, sentPort);
             }
 
-            clientAddress = comm.getClientAddress();
-            clientPort = comm.getClientPort();
-
             //Calculating transmission time.
             //Add date string to packet.
             Date currentDate = new Date();
@@ -340,28 +291,20 @@ public class ClientNetwork implements Runnable {
                     ("yyyy-MM-dd HH:mm:ss.SSS");
             try {
                 Date sendDate = dateFormat.parse(time);
-                dateFormat.format(currentDate);
                 transTime = Long.toString(currentDate.getTime() - sendDate.getTime());
             } catch (ParseException e) {
                 transTime = "N/A";
             }
 
-            file.storeMessage(time, packetTag, method, encryption,
-                    model.findUsername(sentAddress, sentPort),
-                    sentAddress, Integer.toString(sentPort)
-                    , model.getUsername(), clientAddress,
-                    Integer.toString(clientPort),
-                    fileDupe, Integer.toString(size), transTime);
-
-            forward(time, packetTag, method, encryption,
-                    model.findUsername(sentAddress, sentPort), sentAddress, Integer.toString(sentPort),
-                    forwardDupe, Integer.toString(size), transTime);
-            try {
-                SwingUtilities.invokeAndWait(model);
-            } catch (InvocationTargetException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+            final String address = sentAddress;
+            final String trans = transTime;
+            protocolStage.submit(new Runnable() {
+                public void run() {
+                    handlePacket(packetTag, packetContents, address,
+                            sentPort, time, packetMethod, packetEncryption,
+                            size, trans);
+                }
+            });
         } catch (ClassNotFoundException cnfException) {
             console.printError("An erroneous packet was recieved.");
         } catch (IOException ioException) {
@@ -370,6 +313,161 @@ public class ClientNetwork implements Runnable {
         }
     }
 
+    /**
+     * Determine what course of action to take depending on the packet tag.
+     * <p>
+     * This runs on the protocol stage. Once the packet has been dealt with,
+     * it is written to the log through the file manager, recorded with the
+     * telemetry exporter and a refresh of the GUI is requested.
+     *
+     * @param packetTag      The packet tag.
+     * @param packetContents The packet contents without any tracking
+     *                       information.
+     * @param sentAddress    The address of the sender.
+     * @param sentPort       The port of the sender.
+     * @param time           The time that the packet was sent.
+     * @param method         The method the packet was sent with.
+     * @param encryption     The encryption the packet was sent with.
+     * @param size           The size of the packet.
+     * @param transTime      The time taken to transmit the packet.
+     */
+    private void handlePacket(final String packetTag,
+                              List<String> packetContents,
+                              final String sentAddress, final int sentPort,
+                              final String time, final String method,
+                              final String encryption, final int size,
+                              final String transTime) {
+        List<String> fileDupe;
+        final List<String> forwardDupe;
+        String clientAddress;
+        int clientPort;
+        final String sentUsername;
+
+        fileDupe = new ArrayList<String>();
+        fileDupe.addAll(packetContents);
+        forwardDupe = new ArrayList<String>();
+        forwardDupe.addAll(packetContents);
+
+        if (packetTag.equalsIgnoreCase("REGISTRATION_SUCCESS")) {
+            //A client that is already registered has been registered again
+            //after its lease ran out, so the view is already showing.
+            boolean firstRegistration = !model.getServerRegistered();
+
+            model.setServerRegistered(true);
+            //Servers that use leases send the lease time.
+            if (!packetContents.isEmpty()) {
+                model.startLease(Long.parseLong(packetContents.get(0)));
+            }
+            if (firstRegistration) {
+                initialiseView(true);
+                model.getView().refreshPeerList();
+                new Thread(console).start();
+            }
+        } else if (packetTag.equalsIgnoreCase("REGISTRATION_REDIRECT")) {
+            model.redirectServer(packetContents.get(0), packetContents.get(1));
+        } else if (packetTag.equalsIgnoreCase("PEER_INFO")) {
+            model.peerInfo(packetContents);
+        } else if (packetTag.equalsIgnoreCase("DIRECTORY_PAGE")) {
+            model.directoryPage(packetContents);
+        } else if (packetTag.equalsIgnoreCase("MESSAGE")) {
+            model.receiveMessage(sentAddress, sentPort,
+                    packetContents.get(0), packetContents.get(1));
+        } else if (packetTag.equalsIgnoreCase("LIFE_CHECK")) {
+            //Send a response to the server to confirm that you
+            //active.
+            List<String> packetData = new ArrayList<String>();
+            int length;
+            packetData.add(model.getUsername());
+            length = addData("LIFE_CONFIRM", packetData, sentAddress,
+                    sentPort);
+        } else if (packetTag.equalsIgnoreCase("DHT_JOIN")) {
+            dht.forwardJoinReq(packetContents);
+            dht.printDetails();
+        } else if (packetTag.equalsIgnoreCase("DHT_SETUP")) {
+            dht.receiveDetails(packetContents, sentAddress, sentPort);
+            dht.printDetails();
+            initialiseView(false);
+        } else if (packetTag.equalsIgnoreCase("DHT_ADD")) {
+            dht.forwardAddition(packetContents);
+            dht.printDetails();
+        } else if (packetTag.equalsIgnoreCase("DHT_REMOVAL")) {
+            dht.forwardRemoval(packetContents);
+        } else if (packetTag.equalsIgnoreCase("DHT_UP")) {
+            dht.receiveUpRequest(packetContents);
+        } else if (packetTag.equalsIgnoreCase("DHT_UP_CONFIRM")) {
+
+        } else if (packetTag.equalsIgnoreCase("DHT_DOWN")) {
+            dht.receiveDownRequest(packetContents);
+        } else if (packetTag.equalsIgnoreCase("DHT_DOWN_CONFIRM")) {
+            String fileName = packetContents.remove(0);
+            int dhtPort = Integer.parseInt(packetContents.remove(0));
+            dht.receiveFile(fileName, sentAddress, dhtPort);
+        } else if (packetTag.equalsIgnoreCase("DHT_TRANSFER")) {
+            String fileName = packetContents.remove(0);
+            int dhtPort = Integer.parseInt(packetContents.remove(0));
+            dht.addFileName(fileName);
+            dht.receiveFile(fileName, sentAddress, dhtPort);
+        } else if (packetTag.equalsIgnoreCase("DHT_PRED_CHECK")) {
+            List<String> packetData = new ArrayList<String>();
+            addData("DHT_PRED_CONFIRM", packetData, sentAddress,
+                    sentPort);
+        } else if (packetTag.equalsIgnoreCase("DHT_PRED_CONFIRM")) {
+            dht.setDHTConfirmation(true);
+        } else if (packetTag.equalsIgnoreCase("DHT_DEATH")) {
+            dht.forwardDeath(packetContents);
+        } else if (packetTag.equalsIgnoreCase("DHT_FIX")) {
+            DHTNode newNode;
+
+            newNode = dht.removeDHTInfo(packetContents);
+            if (newNode != null) {
+                dht.addNode(newNode.getAddress(), newNode.getPort());
+            }
+        } else if (packetTag.equalsIgnoreCase("FILE_SEND")) {
+            String fileName = packetContents.remove(0);
+            int filePort = Integer.parseInt(packetContents.remove(0));
+            model.receiveFile(fileName, sentAddress, filePort, sentPort);
+        }
+
+        try {
+            clientAddress = comm.getClientAddress();
+        } catch (UnknownHostException e) {
+            console.printError("Failed to store received message.");
+            return;
+        }
+        clientPort = comm.getClientPort();
+        sentUsername = model.findUsername(sentAddress, sentPort);
+
+        file.storeMessage(time, packetTag, method, encryption,
+                sentUsername, sentAddress, Integer.toString(sentPort)
+                , model.getUsername(), clientAddress,
+                Integer.toString(clientPort),
+                fileDupe, Integer.toString(size), transTime);
+
+        forward(time, packetTag, method, encryption, sentUsername,
+                sentAddress, Integer.toString(sentPort), forwardDupe,
+                Integer.toString(size), transTime);
+
+        model.requestRefresh();
+    }
+
+    /**
+     * Get a summary of the queue depths and throughput of each stage of
+     * the packet pipeline.
+     *
+     * @return One line for each stage.
+     */
+    public List<String> getPipelineStatus() {
+        List<String> status = new ArrayList<String>();
+
+        status.add(protocolStage.toString());
+        status.addAll(file.getStatus());
+        status.add(telemetry.toString());
+        if (dht != null) {
+            status.add(dht.getHopSummary());
+        }
+        return status;
+    }
+
     private synchronized boolean isRunning() {
         return this.isRunning;
     }
@@ -410,6 +508,71 @@ public class ClientNetwork implements Runnable {
                 serverAddress, Integer.parseInt(serverPort));
     }
 
+    /**
+     * Renew the client's lease on its registration with the server.
+     * <p>
+     * The renewal is sent once, without waiting for a confirmation, and
+     * isn't logged. There are two renewals per lease time, and if the lease
+     * runs out anyway the server registers the client again when the next
+     * one arrives.
+     *
+     * @param username      The username of the client.
+     * @param serverAddress The IP address of the current server.
+     * @param serverPort    The port of the current server.
+     */
+    public void renewLease(String username, String serverAddress,
+                           String serverPort) {
+        List<String> packetData = new ArrayList<String>();
+        SimpleDateFormat dateFormat = new SimpleDateFormat
+                ("yyyy-MM-dd HH:mm:ss.SSS");
+
+        packetData.add(username);
+        packetData.add(dateFormat.format(new Date()));
+        packetData.add(method);
+        packetData.add(encryption);
+        try {
+            comm.sendUnreliablePacket(serverAddress,
+                    Integer.parseInt(serverPort), "LEASE_RENEW", packetData);
+        } catch (IOException ioException) {
+            //The next renewal is sent anyway.
+        }
+    }
+
+    /**
+     * Ask the server for the details of a single peer.
+     *
+     * @param lookup        USERNAME followed by the username, or ENDPOINT
+     *                      followed by the address and port.
+     * @param serverAddress The IP address of the current server.
+     * @param serverPort    The port of the current server.
+     */
+    public void lookupPeer(List<String> lookup, String serverAddress,
+                           String serverPort) {
+        addData("PEER_LOOKUP", new ArrayList<String>(lookup), serverAddress,
+                Integer.parseInt(serverPort));
+    }
+
+    /**
+     * Ask the server for a page of the usernames starting with a prefix.
+     *
+     * @param prefix        The prefix to search for.
+     * @param after         The last username of the previous page, or an
+     *                      empty string for the first page.
+     * @param limit         The most usernames wanted.
+     * @param serverAddress The IP address of the current server.
+     * @param serverPort    The port of the current server.
+     */
+    public void queryDirectory(String prefix, String after, int limit,
+                               String serverAddress, String serverPort) {
+        List<String> packetData = new ArrayList<String>();
+
+        packetData.add(prefix);
+        packetData.add(after);
+        packetData.add(Integer.toString(limit));
+        addData("DIRECTORY_QUERY", packetData, serverAddress,
+                Integer.parseInt(serverPort));
+    }
+
     /**
      * Send message to another peer.
      *
@@ -443,7 +606,8 @@ public class ClientNetwork implements Runnable {
     }
 
     /**
-     * Forward sent packet to presentation server.
+     * Forward sent packet to presentation server. The details are handed to
+     * the telemetry exporter, which sends them on in batches.
      *
      * @param packetData     Data in packet.
      * @param clientUsername Recipient username.
@@ -487,15 +651,7 @@ public class ClientNetwork implements Runnable {
 
         //Add server as "username".
         packetData.add(model.getUsername());
-        System.out.println(packetData + " is being forwarded.");
-
-        try {
-            comm.sendPacket(presAddress, Integer.parseInt(presPort),
-                    tag, packetData);
-        } catch (IOException ioException) {
-            console.printError("An error occured while creating the " +
-                    "presentation packet.");
-        }
+        telemetry.record(tag, packetData);
     }
 
     /**
@@ -578,9 +734,24 @@ public class ClientNetwork implements Runnable {
     public void setPresDetails(String presAddress, String presPort) {
         this.presAddress = presAddress;
         this.presPort = presPort;
+        try {
+            telemetry.setDestination(presAddress, Integer.parseInt(presPort));
+        } catch (NumberFormatException nfException) {
+            console.printError("Invalid presentation server port.");
+        }
         setPresState(true);
     }
 
+    /**
+     * Getter for the exporter that batches packets forwarded to the
+     * presentation server.
+     *
+     * @return The TelemetryExporter object.
+     */
+    public TelemetryExporter getTelemetry() {
+        return telemetry;
+    }
+
     /**
      * Getter for presentation server address String.
      *
@@ -604,7 +775,7 @@ public class ClientNetwork implements Runnable {
      * that have been made to reflect new DHT information.
      */
     public void refreshDHTGUI() {
-        model.refreshDHTInfo();
+        model.requestRefresh();
     }
 
     /**
@@ -613,7 +784,7 @@ public class ClientNetwork implements Runnable {
      *
      * @param lastId ID of the receiving node.
      */
-    public void setLastDownloadId(int lastId) {
+    public void setLastDownloadId(long lastId) {
         model.setLastDownloadId(lastId);
     }
 
@@ -623,7 +794,7 @@ public class ClientNetwork implements Runnable {
      *
      * @param lastId ID of the receiving node.
      */
-    public void setLastUploadId(int lastId) {
+    public void setLastUploadId(long lastId) {
         model.setLastUploadId(lastId);
     }
 
@@ -59,6 +59,20 @@ public interface CommManager {
     int sendPacket(String rcvAddress, int rcvPort, String header,
                           List<String> contents) throws IOException;
 
+    /**
+     * Send a packet once without waiting for it to be confirmed or retrying
+     * it. Used for traffic that can afford to be lost.
+     *
+     * @param rcvAddress IP address of the recipient.
+     * @param rcvPort    The socket of the recipient.
+     * @param header     The packet tag.
+     * @param contents   The contents of the message.
+     * @return The length of the packet.
+     * @throws IOException
+     */
+    int sendUnreliablePacket(String rcvAddress, int rcvPort, String header,
+                             List<String> contents) throws IOException;
+
     /**
      * Dispose of any entries in the message cache that have been there for
      * more than 30 seconds.
@@ -11,6 +11,7 @@ import javax.swing.JOptionPane;
 import view.ClientView;
 
 import dht.DHTNetwork;
+import dht.IdSpace;
 
 
 /**
@@ -82,9 +83,9 @@ public class FileReceiver implements Runnable {
             recvSocket.close();
             if (dht != null) {
                 JOptionPane.showMessageDialog(null, "Finished receiving file: " +
-                        fileName + "(" + dht.hash(fileName) + ").");
+                        fileName + "(" + IdSpace.format(dht.hash(fileName)) + ").");
                 System.out.println("Finished receiving file: " + fileName + " (" +
-                        dht.hash(fileName) + ").");
+                        IdSpace.format(dht.hash(fileName)) + ").");
             }
             if (view != null) {
                 Date date = new Date();
@@ -99,8 +100,8 @@ public class FileReceiver implements Runnable {
             System.gc();
             if (dht != null) {
                 JOptionPane.showMessageDialog(null, "File: " + fileName + " (" +
-                        dht.hash(fileName) + ") could not be received.");
-                System.out.println("File: " + fileName + " (" + dht.hash(fileName)
+                        IdSpace.format(dht.hash(fileName)) + ") could not be received.");
+                System.out.println("File: " + fileName + " (" + IdSpace.format(dht.hash(fileName))
                         + ") could not be received.");
             }
             if (view != null) {
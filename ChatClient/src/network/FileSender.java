@@ -10,6 +10,7 @@ import javax.swing.JOptionPane;
 import view.ClientView;
 
 import dht.DHTNetwork;
+import dht.IdSpace;
 
 
 /**
@@ -79,7 +80,7 @@ public class FileSender implements Runnable{
 			if(dht != null)
 			{
 				System.out.println("Finishing sending file: " + fileName + " (" + 
-				dht.hash(fileName) + ").");
+				IdSpace.format(dht.hash(fileName)) + ").");
 				if(dht.isTransferring())
 				{
 					dht.removeFileName(fileName);
@@ -87,7 +88,7 @@ public class FileSender implements Runnable{
 				else
 				{
 					JOptionPane.showMessageDialog(null, "Finishing sending file: " 
-				+ fileName + "(" + dht.hash(fileName) + ").");
+				+ fileName + "(" + IdSpace.format(dht.hash(fileName)) + ").");
 				}
 			}
 			if(view != null)
@@ -105,7 +106,7 @@ public class FileSender implements Runnable{
 		{
 			if(dht != null)
 			{
-				System.out.println("File: " + fileName + " (" + dht.hash(fileName) 
+				System.out.println("File: " + fileName + " (" + IdSpace.format(dht.hash(fileName)) 
 						+ ") could not be sent.");
 				if(dht.isTransferring())
 				{
@@ -114,7 +115,7 @@ public class FileSender implements Runnable{
 				else
 				{
 					JOptionPane.showMessageDialog(null, "File: " + fileName + " (" 
-				+ dht.hash(fileName) + ") could not be sent.");
+				+ IdSpace.format(dht.hash(fileName)) + ") could not be sent.");
 				}
 			}
 			if(view != null)
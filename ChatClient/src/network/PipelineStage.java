@@ -0,0 +1,174 @@
+package network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is one stage of the network's packet pipeline.
+ * <p>
+ * A stage has its own threads and its own bounded queue of work. When the
+ * queue is full, a blocking stage makes the submitting thread wait (this is
+ * the back-pressure for work that can't be lost) while a lossy stage drops
+ * the work and counts it instead.
+ * <p>
+ * The current and highest queue depth are tracked so that a slow stage can
+ * be spotted.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class PipelineStage {
+
+    private String name;
+    private boolean blocking;
+    private BlockingQueue<Runnable> queue;
+    private ThreadPoolExecutor executor;
+    private AtomicInteger maxDepth;
+    private AtomicLong submitted;
+    private AtomicLong dropped;
+
+    /**
+     * Constructor for PipelineStage.
+     *
+     * @param name     The name of the stage. Also used to name its threads.
+     * @param threads  The number of threads the stage may use. Stages that
+     *                 must keep their work in order should use one.
+     * @param capacity The maximum number of tasks waiting in the queue.
+     * @param blocking True if a full queue should make submitters wait,
+     *                 false if new work should be dropped instead.
+     */
+    public PipelineStage(final String name, int threads, int capacity,
+                         boolean blocking) {
+        this.name = name;
+        this.blocking = blocking;
+        queue = new ArrayBlockingQueue<Runnable>(capacity);
+        maxDepth = new AtomicInteger(0);
+        submitted = new AtomicLong(0);
+        dropped = new AtomicLong(0);
+
+        executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "P2P " + name + " "
+                        + count.incrementAndGet());
+                //Never keep the application alive just for this stage.
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r,
+                                          ThreadPoolExecutor executor) {
+                reject(r);
+            }
+        });
+    }
+
+    /**
+     * Hand a task to this stage. Depending on the stage this may wait for
+     * room in the queue or drop the task.
+     *
+     * @param task The work to be done.
+     */
+    public void submit(Runnable task) {
+        int depth;
+        int max;
+
+        submitted.incrementAndGet();
+        executor.execute(task);
+
+        depth = queue.size();
+        max = maxDepth.get();
+        while ((depth > max) && !maxDepth.compareAndSet(max, depth)) {
+            max = maxDepth.get();
+        }
+    }
+
+    /**
+     * Called when the queue is full.
+     *
+     * @param task The task that didn't fit.
+     */
+    private void reject(Runnable task) {
+        if (executor.isShutdown()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (!blocking) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            queue.put(task);
+        } catch (InterruptedException iException) {
+            dropped.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Getter for the stage name.
+     *
+     * @return The name of the stage.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the number of tasks currently waiting in the queue.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the highest queue depth seen so far.
+     *
+     * @return The highest queue depth.
+     */
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * Get the number of tasks that have been dropped because the queue
+     * was full.
+     *
+     * @return The number of dropped tasks.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Get the number of tasks that have finished.
+     *
+     * @return The number of completed tasks.
+     */
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Produce a one line summary of the stage's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return name + ": queued " + getQueueDepth() + " (max "
+                + getMaxQueueDepth() + "), submitted " + submitted.get()
+                + ", completed " + getCompleted() + ", dropped "
+                + getDropped();
+    }
+}
@@ -112,6 +112,16 @@ public class TCPManager implements CommManager {
         }
     }
 
+    /**
+     * TCP connections are reliable on their own, so this is the same as
+     * sendPacket().
+     */
+    public int sendUnreliablePacket(String rcvAddress, int rcvPort,
+                                    String header, List<String> contents)
+            throws IOException {
+        return sendPacket(rcvAddress, rcvPort, header, contents);
+    }
+
     /**
      * Add a String header to the list and convert from a list of Strings to a
      * byte array so that it can be transmitted via packets.
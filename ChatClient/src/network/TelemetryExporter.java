@@ -0,0 +1,345 @@
+package network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class collects the records that are sent to the presentation server
+ * and sends them in batches rather than one packet per record.
+ * <p>
+ * Records are buffered and sent as a single TELEMETRY_BATCH packet once
+ * enough of them have built up or the flush interval has passed, whichever
+ * comes first. Each entry in the batch is one record with its fields joined
+ * by FIELD_SEPARATOR. The first field is the packet tag and the rest are
+ * the same fields that used to be sent in the forwarded packet.
+ * <p>
+ * Each tag can be sampled so that only one in every N records is kept.
+ * In lossy mode a batch is sent once and never retried, so no retransmit
+ * thread is needed for it. If the buffer fills up, new records are dropped
+ * and counted rather than slowing the network down.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class TelemetryExporter implements Runnable {
+
+    public static final String BATCH_TAG = "TELEMETRY_BATCH";
+    public static final String FIELD_SEPARATOR = "\u001F";
+
+    private CommManager comm;
+    private BlockingQueue<String> buffer;
+    private Map<String, Integer> sampleRates;
+    private ConcurrentMap<String, AtomicLong> tagCounts;
+    private Thread runningThread;
+
+    private volatile String address;
+    private volatile int port;
+    private volatile int defaultSampleRate = 1;
+    private volatile int batchSize = 50;
+    private volatile long flushInterval = 1000;
+    private volatile boolean lossy = false;
+
+    private AtomicLong recorded;
+    private AtomicLong sampledOut;
+    private AtomicLong dropped;
+    private AtomicLong batches;
+
+    /**
+     * Constructor for TelemetryExporter.
+     *
+     * @param capacity The maximum number of records waiting to be sent.
+     */
+    public TelemetryExporter(int capacity) {
+        buffer = new ArrayBlockingQueue<String>(capacity);
+        sampleRates = new ConcurrentHashMap<String, Integer>();
+        tagCounts = new ConcurrentHashMap<String, AtomicLong>();
+        recorded = new AtomicLong(0);
+        sampledOut = new AtomicLong(0);
+        dropped = new AtomicLong(0);
+        batches = new AtomicLong(0);
+
+        runningThread = new Thread(this, "P2P Telemetry");
+        //Never keep the application alive just to send telemetry.
+        runningThread.setDaemon(true);
+        runningThread.start();
+    }
+
+    /**
+     * Pass the comm reference to the exporter.
+     *
+     * @param comm The CommManager object used to send batches.
+     */
+    public void initComm(CommManager comm) {
+        this.comm = comm;
+    }
+
+    /**
+     * Set where batches are sent.
+     *
+     * @param address The address of the presentation server.
+     * @param port    The port of the presentation server.
+     */
+    public void setDestination(String address, int port) {
+        this.port = port;
+        this.address = address;
+    }
+
+    /**
+     * Read the exporter settings from a set of properties. Settings that
+     * are missing or invalid are left as they are.
+     * <p>
+     * telemetry.batchSize, telemetry.flushInterval (ms), telemetry.lossy,
+     * telemetry.sampleRate and telemetry.sampleRate.TAG are recognised.
+     *
+     * @param props The properties to read.
+     */
+    public void loadSettings(Properties props) {
+        String prefix = "telemetry.sampleRate.";
+        Integer batchSize = readInt(props, "telemetry.batchSize");
+        Long flushInterval = readLong(props, "telemetry.flushInterval");
+        Integer sampleRate = readInt(props, "telemetry.sampleRate");
+
+        if (batchSize != null) {
+            setBatchSize(batchSize);
+        }
+        if (flushInterval != null) {
+            setFlushInterval(flushInterval);
+        }
+        if (sampleRate != null) {
+            setDefaultSampleRate(sampleRate);
+        }
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(prefix)) {
+                Integer tagRate = readInt(props, name);
+
+                if (tagRate != null) {
+                    setSampleRate(name.substring(prefix.length()), tagRate);
+                }
+            }
+        }
+        if (props.getProperty("telemetry.lossy") != null) {
+            setLossy(Boolean.parseBoolean(
+                    props.getProperty("telemetry.lossy")));
+        }
+    }
+
+    /**
+     * Read a setting that holds an int.
+     *
+     * @param props The properties to read.
+     * @param name  The name of the setting.
+     * @return The value, or null if the setting is missing or invalid.
+     */
+    private static Integer readInt(Properties props, String name) {
+        String value = props.getProperty(name);
+
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(value.trim());
+        } catch (NumberFormatException nfException) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a setting that holds a long.
+     *
+     * @param props The properties to read.
+     * @param name  The name of the setting.
+     * @return The value, or null if the setting is missing or invalid.
+     */
+    private static Long readLong(Properties props, String name) {
+        String value = props.getProperty(name);
+
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException nfException) {
+            return null;
+        }
+    }
+
+    /**
+     * Keep one in every rate records with the given tag. A rate of 0 or less
+     * means that tag is never exported.
+     *
+     * @param tag  The packet tag.
+     * @param rate The sampling rate.
+     */
+    public void setSampleRate(String tag, int rate) {
+        sampleRates.put(tag.toUpperCase(), rate);
+    }
+
+    /**
+     * Set the sampling rate used for tags without their own rate.
+     *
+     * @param rate The sampling rate.
+     */
+    public void setDefaultSampleRate(int rate) {
+        defaultSampleRate = rate;
+    }
+
+    /**
+     * Set the number of records that causes a batch to be sent straight
+     * away.
+     *
+     * @param batchSize The number of records in a full batch.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Set the longest time a record waits before its batch is sent.
+     *
+     * @param flushInterval The interval in milliseconds.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    /**
+     * Choose whether batches are sent once without retries.
+     *
+     * @param lossy True for fire and forget, false for reliable sending.
+     */
+    public void setLossy(boolean lossy) {
+        this.lossy = lossy;
+    }
+
+    /**
+     * Add a record to the next batch, unless it is sampled out or the
+     * buffer is full. This never blocks.
+     *
+     * @param tag    The packet tag of the record.
+     * @param fields The fields of the record.
+     */
+    public void record(String tag, List<String> fields) {
+        StringBuilder builder;
+
+        if (!sample(tag)) {
+            sampledOut.incrementAndGet();
+            return;
+        }
+
+        builder = new StringBuilder(tag);
+        for (String field : fields) {
+            builder.append(FIELD_SEPARATOR).append(field);
+        }
+        if (buffer.offer(builder.toString())) {
+            recorded.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Decide whether a record with the given tag should be kept.
+     *
+     * @param tag The packet tag.
+     * @return True if the record should be exported.
+     */
+    private boolean sample(String tag) {
+        String key = tag.toUpperCase();
+        Integer rate = sampleRates.get(key);
+        AtomicLong count;
+
+        if (rate == null) {
+            rate = defaultSampleRate;
+        }
+        if (rate <= 1) {
+            return rate == 1;
+        }
+
+        count = tagCounts.get(key);
+        if (count == null) {
+            tagCounts.putIfAbsent(key, new AtomicLong(0));
+            count = tagCounts.get(key);
+        }
+        return (count.getAndIncrement() % rate) == 0;
+    }
+
+    /**
+     * The exporter's thread. Waits for the first record of a batch, then
+     * keeps collecting until the batch is full or the flush interval has
+     * passed.
+     */
+    public void run() {
+        List<String> batch = new ArrayList<String>();
+        String record;
+        long deadline;
+        long remaining;
+
+        while (true) {
+            try {
+                batch.add(buffer.take());
+                deadline = System.currentTimeMillis() + flushInterval;
+                while (batch.size() < batchSize) {
+                    remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    record = buffer.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (record == null) {
+                        break;
+                    }
+                    batch.add(record);
+                }
+            } catch (InterruptedException iException) {
+                return;
+            }
+            send(batch);
+            batch = new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Send a batch of records to the presentation server.
+     *
+     * @param batch The records to send.
+     */
+    private void send(List<String> batch) {
+        String destAddress = address;
+
+        if ((comm == null) || (destAddress == null)) {
+            dropped.addAndGet(batch.size());
+            return;
+        }
+        try {
+            if (lossy) {
+                comm.sendUnreliablePacket(destAddress, port, BATCH_TAG, batch);
+            } else {
+                comm.sendPacket(destAddress, port, BATCH_TAG, batch);
+            }
+            batches.incrementAndGet();
+        } catch (IOException ioException) {
+            dropped.addAndGet(batch.size());
+        }
+    }
+
+    /**
+     * Produce a one line summary of the exporter's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return "telemetry: buffered " + buffer.size() + ", recorded "
+                + recorded.get() + ", sampled out " + sampledOut.get()
+                + ", dropped " + dropped.get() + ", batches sent "
+                + batches.get() + (lossy ? " (lossy)" : "");
+    }
+}
@@ -96,7 +96,7 @@ public class UDPPacketManager implements CommManager{
 		int currentId;
 		InetAddress convertAddress = InetAddress.getByName(rcvAddress);
 		//Cycle back at 100 messages.
-		currentId = random.nextInt();
+		currentId = nextMessageId();
 		msgIdList.add(currentId);
 		UDPPacketTimer r = new UDPPacketTimer(msgIdList, currentId, convertAddress
 				,rcvPort, header, contents, socket, this);
@@ -104,6 +104,63 @@ public class UDPPacketManager implements CommManager{
 		return r.getPacketLength();
 	}
 	
+	/**
+	 * Send a UDP packet once without tracking it for confirmation, so no
+	 * retrying thread is started for it.
+	 * @param rcvAddress IP address of the recipient.
+	 * @param rcvPort The socket of the recipient.
+	 * @param header The packet tag.
+	 * @param contents The contents of the message, which are left as they 
+	 * are.
+	 * @return The length of the packet that was sent.
+	 * @throws IOException
+	 */
+	public int sendUnreliablePacket(String rcvAddress, int rcvPort, 
+			String header, List<String> contents) throws IOException
+	{
+		InetAddress convertAddress = InetAddress.getByName(rcvAddress);
+		byte[] sendBuffer;
+		List<String> packetContents = new ArrayList<String>(contents);
+		
+		//The receiver still expects a message id. A negative one tells it not 
+		//to send a confirmation, and receivers that don't know this still 
+		//see a different id for every packet.
+		packetContents.add(0, Integer.toString(nextUnreliableId()));
+		sendBuffer = listByteArray(header, packetContents);
+		DatagramPacket sendPacket = new DatagramPacket(sendBuffer, 
+				sendBuffer.length, convertAddress, rcvPort);
+		socket.send(sendPacket);
+		return sendPacket.getLength();
+	}
+	
+	/**
+	 * Pick a random id for a packet that is to be confirmed.
+	 * @return The id, which is never negative.
+	 */
+	private int nextMessageId()
+	{
+		return random.nextInt(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Pick a random id for a packet that is sent once and never confirmed.
+	 * @return The id, which is always negative.
+	 */
+	private int nextUnreliableId()
+	{
+		return -1 - random.nextInt(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Check whether a message id is one picked by nextUnreliableId().
+	 * @param id The message id.
+	 * @return True if the packet was sent unreliably.
+	 */
+	private static boolean isUnreliable(int id)
+	{
+		return id < 0;
+	}
+	
 	private void sendConfirmation(String rcvAddress, int rcvPort, int id) throws IOException
 	{
 		InetAddress convertAddress = InetAddress.getByName(rcvAddress);
@@ -157,11 +214,16 @@ public class UDPPacketManager implements CommManager{
 		
 		packetData = (List<String>) objIS.readObject();
 		msgId = Integer.parseInt(packetData.remove(1));
-		if(msgCache.containsKey(msgId))
+		if(!isUnreliable(msgId) && msgCache.containsKey(msgId))
 		{
 			packetData.set(0, "DUPLICATE");
 		}
-		if(packetData.get(0).equalsIgnoreCase("RCV_CONFIRM"))
+		if(isUnreliable(msgId))
+		{
+			//Unreliable packets are never resent, so there is nothing to 
+			//confirm or remember.
+		}
+		else if(packetData.get(0).equalsIgnoreCase("RCV_CONFIRM"))
 		{
 			removeMsgId(msgId);
 			System.out.println("Received confirmation " + msgId);
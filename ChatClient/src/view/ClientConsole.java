@@ -20,7 +20,8 @@ public class ClientConsole implements Runnable {
     private ClientModel model;
     private boolean isRunning = true;
     private String option;
-    private Map<String, Peer> peerList;
+    private String searchPrefix; //The search whose first page is being
+    //waited for, or null if there isn't one.
     private String recipientName;
     private String message;
     private String userName;
@@ -69,29 +70,33 @@ public class ClientConsole implements Runnable {
         while (isRunning) {
             System.out.println("MENU:");
             System.out.println("1. Send message.");
-            System.out.println("2. Display peer list.");
+            System.out.println("2. Search peer list.");
             System.out.println("3. Quit.");
+            System.out.println("4. Display network statistics.");
             System.out.print("What would you like to do?: ");
             option = scan.nextLine();
 
             if (option.equalsIgnoreCase("1")) {
-                peerList = model.getPeerList();
-                System.out.println("PEER LIST:");
-                printPeerList();
                 System.out.print("Who would you like to talk to?: ");
                 recipientName = scan.nextLine();
                 System.out.print("Enter your message: ");
                 message = scan.nextLine();
                 model.sendMessage(recipientName, message);
             } else if (option.equalsIgnoreCase("2")) {
-                System.out.println("PEER LIST:");
-                printPeerList();
+                System.out.print("Enter the start of a username, or "
+                        + "nothing for everyone: ");
+                searchPeerList(scan.nextLine().trim());
             } else if (option.equalsIgnoreCase("3")) {
                 isRunning = false;
                 model.deregisterClient();
                 System.out.println("Exiting...");
                 scan.close();
                 System.exit(0);
+            } else if (option.equalsIgnoreCase("4")) {
+                System.out.println("NETWORK STATISTICS:");
+                for (String line : model.getPipelineStatus()) {
+                    System.out.println(line);
+                }
             }
 
         }
@@ -128,21 +133,39 @@ public class ClientConsole implements Runnable {
     }
 
     /**
-     * Prints the peer list CURRENTLY stored in the console.
+     * Ask the server for the first page of the usernames starting with a
+     * prefix. It is printed when it arrives.
+     *
+     * @param prefix The prefix to search for.
      */
-    public void printPeerList() {
-        for (Peer peer : peerList.values()) {
-            System.out.println(peer.getUsername());
-        }
+    private synchronized void searchPeerList(String prefix) {
+        searchPrefix = prefix;
+        model.searchDirectory(prefix, "");
     }
 
     /**
-     * Retrieves the new peer list from the model and prints to console.
+     * Print a page of the peer list, if it is the one the console asked
+     * for. Pages the GUI asked for are ignored.
+     *
+     * @param prefix    The prefix the page was asked for with.
+     * @param after     The last username of the previous page.
+     * @param more      Whether there are more usernames after this page.
+     * @param usernames The usernames on the page, in order.
      */
-    public void newPeerList() {
-        System.out.println("\nNEW PEER LIST RECIEVED:");
-        peerList = model.getPeerList();
-        printPeerList();
+    public synchronized void showDirectoryPage(String prefix, String after,
+                                               boolean more,
+                                               List<String> usernames) {
+        if (!prefix.equals(searchPrefix) || !after.isEmpty()) {
+            return;
+        }
+        searchPrefix = null;
+        System.out.println("\nPEER LIST:");
+        for (String username : usernames) {
+            System.out.println(username);
+        }
+        if (more) {
+            System.out.println("...");
+        }
     }
 }
 
@@ -3,9 +3,10 @@
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -15,13 +16,14 @@ import java.awt.event.MouseEvent;
 import java.io.File;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Vector;
 
+import file.HistoryStore;
 import model.ClientModel;
-import model.Peer;
 import network.*;
 import dht.*;
 
@@ -31,6 +33,11 @@ import dht.*;
  * <p>
  * The interface is specified (whether or not we want DHT) by toggling the tabs
  * that are shown on the screen.
+ * <p>
+ * The list of peers is a directory that is searched by username. Only the 
+ * page of usernames being shown is fetched from the server, a page at a 
+ * time. The page isn't kept up to date as peers come and go; it is fetched 
+ * again when the user searches, turns the page or presses refresh.
  * @author Alex
  * @version 0.3
  * @since 0.3
@@ -45,15 +52,26 @@ public class ClientView {
 	private Container downPanel;
 	private Container panel;
 	private JList<String> peerList;
+	private JPanel directoryPanel;
+	private JPanel pagePanel;
+	private JPanel searchPanel;
+	private JTextField search;
+	private JButton refresh;
+	private JButton previous;
+	private JButton next;
+	private String directoryPrefix;
+	private String directoryAfter;
+	private String directoryLast;
+	private Deque<String> earlierPages;
 	private JTable downFTable;
 	private JTable downLists;
 	private JTable downFiles;
 	private JTable upFTable;
 	private JTable upLists;
 	private JTable upFiles;
-	private DefaultTableModel fingerModel;
-	private DefaultTableModel listModel;
-	private DefaultTableModel fileModel;
+	private DHTTableModel fingerModel;
+	private DHTTableModel listModel;
+	private DHTTableModel fileModel;
 	private JScrollPane downSpFinger;
 	private JScrollPane downSpLists;
 	private JScrollPane downSpFiles;
@@ -85,6 +103,7 @@ public class ClientView {
 	private JLabel downConnectionDetails;
 	private String lastIdDownload;
 	private String lastIdUpload;
+	private HistoryStore history;
 	
 	/**
 	 * Constructor for view. 
@@ -106,6 +125,22 @@ public class ClientView {
 		peerList = new JList<String>();
 		peerList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 		peerList.setFixedCellWidth(50);
+		directoryPanel = new JPanel();
+		directoryPanel.setLayout(new BorderLayout());
+		pagePanel = new JPanel();
+		pagePanel.setLayout(new GridLayout(1,2));
+		searchPanel = new JPanel();
+		searchPanel.setLayout(new BorderLayout());
+		search = new JTextField(8);
+		refresh = new JButton("Refresh");
+		previous = new JButton("<");
+		next = new JButton(">");
+		previous.setEnabled(false);
+		next.setEnabled(false);
+		directoryPrefix = "";
+		directoryAfter = "";
+		directoryLast = "";
+		earlierPages = new ArrayDeque<String>();
 		upLabel = new JLabel("Filename: ");
 		downLabel = new JLabel("Filename: ");
 		send = new JButton("Send Message");
@@ -119,9 +154,10 @@ public class ClientView {
 		downConnectionDetailsPanel = new JPanel();
 		message = new JTextField(20);
 		tabs = new JTabbedPane();
-		fingerModel = new DefaultTableModel();
-		listModel = new DefaultTableModel();
-		fileModel = new DefaultTableModel();
+		fingerModel = new DHTTableModel("No", "Target", "ID", "Address", 
+				"Port");
+		listModel = new DHTTableModel("ID", "Address", "Port");
+		fileModel = new DHTTableModel("Filename", "ID");
 		downFTable = new JTable(fingerModel);
 		downLists = new JTable(listModel);
 		downFiles = new JTable(fileModel);
@@ -162,20 +198,6 @@ public class ClientView {
 		upDirPanel.setLayout(new FlowLayout());
 		downDirPanel.setLayout(new FlowLayout());
 		
-		//Add columns to each of the table models. 
-		fingerModel.addColumn("No");
-		fingerModel.addColumn("Target");
-		fingerModel.addColumn("ID");
-		fingerModel.addColumn("Address");
-		fingerModel.addColumn("Port");
-		
-		listModel.addColumn("ID");
-		listModel.addColumn("Address");
-		listModel.addColumn("Port");
-		
-		fileModel.addColumn("Filename");
-		fileModel.addColumn("ID");
-		
 		//Add each component to each subpanel. 
 		upDirPanel.add(upLabel);
 		upDirPanel.add(upDir);
@@ -221,6 +243,48 @@ public class ClientView {
 		    }
 		});
 		
+		search.getDocument().addDocumentListener(new DocumentListener(){
+			public void insertUpdate(DocumentEvent evt)
+			{
+				searchDirectory();
+			}
+			
+			public void removeUpdate(DocumentEvent evt)
+			{
+				searchDirectory();
+			}
+			
+			public void changedUpdate(DocumentEvent evt)
+			{
+				searchDirectory();
+			}
+		});
+		
+		refresh.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent evt)
+			{
+				refreshPeerList();
+			}
+		});
+		
+		next.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent evt)
+			{
+				earlierPages.push(directoryAfter);
+				requestPage(directoryPrefix, directoryLast);
+			}
+		});
+		
+		previous.addActionListener(new ActionListener(){
+			public void actionPerformed(ActionEvent evt)
+			{
+				if(!earlierPages.isEmpty())
+				{
+					requestPage(directoryPrefix, earlierPages.pop());
+				}
+			}
+		});
+		
 		send.addActionListener(new ActionListener(){
 			public void actionPerformed(ActionEvent evt)
 			{
@@ -247,7 +311,14 @@ public class ClientView {
 		});
 		
 		chatPanel.add(tabs, BorderLayout.CENTER);
-		chatPanel.add(peerList, BorderLayout.EAST);
+		pagePanel.add(previous);
+		pagePanel.add(next);
+		searchPanel.add(search, BorderLayout.CENTER);
+		searchPanel.add(refresh, BorderLayout.EAST);
+		directoryPanel.add(searchPanel, BorderLayout.NORTH);
+		directoryPanel.add(peerList, BorderLayout.CENTER);
+		directoryPanel.add(pagePanel, BorderLayout.SOUTH);
+		chatPanel.add(directoryPanel, BorderLayout.EAST);
 		funcTabs.add("Chat", chatPanel);
 		funcTabs.add("Upload", upConnectionDetailsPanel);
 		funcTabs.add("Download", downConnectionDetailsPanel);
@@ -277,6 +348,10 @@ public class ClientView {
 		        	{
 		        		
 		        	}
+		        	if(history != null)
+		        	{
+		        		history.close();
+		        	}
 		            System.exit(0);
 		        }
 		    }
@@ -292,7 +367,7 @@ public class ClientView {
 		int index;
 		String sendString;
 		String sendUser;
-		JTextArea chatArea;
+		ConversationPanel chatArea;
 		String dateString;
 		
 		index = tabs.getSelectedIndex();
@@ -302,28 +377,43 @@ public class ClientView {
 			sendUser = tabs.getTitleAt(index);
 			
 			model.sendMessage(sendUser, sendString);
-			chatArea = (JTextArea)tabs.getComponentAt(index);
+			chatArea = (ConversationPanel)tabs.getComponentAt(index);
 			
 			Date date = new Date();
 	        SimpleDateFormat sdFormat = new SimpleDateFormat("hh:mm:ss a");
 			dateString = sdFormat.format(date);
 			
 			chatArea.append(dateString + " - " + model.getUsername() 
-					+ ": " + sendString + "\n");
+					+ ": " + sendString);
 			message.setText("");
 		}
 	}
 	
 	/**
 	 * Displays the message in the message log. 
+	 * <p>
+	 * This is called from the network and file transfer threads so the 
+	 * work is handed to the event dispatch thread. 
 	 * @param username The user that the message was received from. 
 	 * @param time The time the message was received at. 
 	 * @param message The message that was sent. 
 	 */
-	public void recieveMessage(String username, String time, String message)
+	public void recieveMessage(final String username, final String time, 
+			final String message)
 	{
 		int counter;
-		JTextArea chatArea;
+		ConversationPanel chatArea;
+		
+		if(!SwingUtilities.isEventDispatchThread())
+		{
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run()
+				{
+					recieveMessage(username, time, message);
+				}
+			});
+			return;
+		}
 		
 		if(!tabExists(username))
 		{
@@ -338,8 +428,8 @@ public class ClientView {
 			}
 		}
 		
-		chatArea = (JTextArea)tabs.getComponentAt(counter);
-		chatArea.append(time + " - " + username + ": " + message + "\n");
+		chatArea = (ConversationPanel)tabs.getComponentAt(counter);
+		chatArea.append(time + " - " + username + ": " + message);
 	}
 	
 	/**
@@ -348,8 +438,7 @@ public class ClientView {
 	 */
 	public void addConversation(String username)
 	{
-		JTextArea chat = new JTextArea();
-		chat.setEditable(false);
+		ConversationPanel chat = new ConversationPanel(username, history);
 		tabs.add(username, chat);
 		
 		send.setEnabled(true);
@@ -364,6 +453,7 @@ public class ClientView {
 		{
 			if(tabs.getTitleAt(counter).equalsIgnoreCase(username))
 			{
+				((ConversationPanel)tabs.getComponentAt(counter)).close();
 				tabs.removeTabAt(counter);
 			}
 		}
@@ -387,9 +477,9 @@ public class ClientView {
 	{
 		frame.setTitle("P2P Client: " + model.getUsername());
 		try {
-			upConnectionDetails.setText("DHT ID: " + dht.getId() + ", Peer Address: " + comm.getClientAddress()
+			upConnectionDetails.setText("DHT ID: " + IdSpace.format(dht.getId()) + ", Peer Address: " + comm.getClientAddress()
 					+ ", Peer Port: " + comm.getClientPort());
-			downConnectionDetails.setText("DHT ID: " + dht.getId() + ", Peer Address: " + comm.getClientAddress()
+			downConnectionDetails.setText("DHT ID: " + IdSpace.format(dht.getId()) + ", Peer Address: " + comm.getClientAddress()
 					+ ", Peer Port: " + comm.getClientPort());
 		} catch (UnknownHostException e) {
 			
@@ -419,6 +509,15 @@ public class ClientView {
 		this.model = model;
 	}
 	
+	/**
+	 * Passing a reference to the chat history store to the view. 
+	 * @param history The HistoryStore object we are passing in. 
+	 */
+	public void initHistory(HistoryStore history)
+	{
+		this.history = history;
+	}
+	
 	/**
 	 * Passing a reference to a CommManager to the view. 
 	 * <p>
@@ -440,6 +539,7 @@ public class ClientView {
 	public void initDHT(DHTNetwork dht)
 	{
 		this.dht = dht;
+		dht.addDHTListener(new TableUpdater());
 		initDHTButtons();
 	}
 	
@@ -494,31 +594,89 @@ public class ClientView {
 	}
 	
 	/**
-	 * Refresh the GUI peer list. 
-	 * <p>
-	 * Reflect changes to the peer list in the view by passing in a new 
-	 * Map containing the peer list. 
-	 * @param map The peer list hash map containing <username, peer> pairs. 
+	 * Refresh the GUI peer list by fetching the page of the directory being 
+	 * shown again. 
 	 */
-	public void refreshPeerList(Map<String, Peer> map)
+	public void refreshPeerList()
 	{
-		int listSize = map.size()-1;
-		if(listSize >=0)
+		if(!SwingUtilities.isEventDispatchThread())
 		{
-			String[] array = new String[listSize];
-			int counter = 0;
-			
-			for(Peer peer : map.values())
-			{
-				if(!model.getUsername().equalsIgnoreCase(peer.getUsername()))
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run()
+				{
+					refreshPeerList();
+				}
+			});
+			return;
+		}
+		requestPage(directoryPrefix, directoryAfter);
+	}
+	
+	/**
+	 * Start a new search of the directory for the usernames starting with 
+	 * what has been typed into the search box. 
+	 */
+	private void searchDirectory()
+	{
+		earlierPages.clear();
+		requestPage(search.getText().trim(), "");
+	}
+	
+	/**
+	 * Ask for a page of the directory. 
+	 * @param prefix The prefix being searched for. 
+	 * @param after The last username of the previous page, or an empty 
+	 * string for the first page. 
+	 */
+	private void requestPage(String prefix, String after)
+	{
+		directoryPrefix = prefix;
+		directoryAfter = after;
+		model.searchDirectory(prefix, after);
+	}
+	
+	/**
+	 * Show a page of the directory that the server has sent. Pages for 
+	 * anything other than the latest search and page asked for are ignored. 
+	 * @param prefix The prefix the page was asked for with. 
+	 * @param after The last username of the previous page. 
+	 * @param more Whether there are more usernames after this page. 
+	 * @param usernames The usernames on the page, in order. 
+	 */
+	public void showDirectoryPage(final String prefix, final String after, 
+			final boolean more, final List<String> usernames)
+	{
+		List<String> shown = new ArrayList<String>();
+		
+		if(!SwingUtilities.isEventDispatchThread())
+		{
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run()
 				{
-					array[counter] = peer.getUsername();
-					counter++;
+					showDirectoryPage(prefix, after, more, usernames);
 				}
+			});
+			return;
+		}
+		if(!prefix.equals(directoryPrefix) || !after.equals(directoryAfter))
+		{
+			return;
+		}
+		
+		for(String username : usernames)
+		{
+			if(!model.getUsername().equalsIgnoreCase(username))
+			{
+				shown.add(username);
 			}
-			
-			peerList.setListData(array);
 		}
+		if(!usernames.isEmpty())
+		{
+			directoryLast = usernames.get(usernames.size()-1);
+		}
+		peerList.setListData(shown.toArray(new String[shown.size()]));
+		next.setEnabled(more);
+		previous.setEnabled(!earlierPages.isEmpty());
 	}
 	
 	/**
@@ -545,98 +703,87 @@ public class ClientView {
 	 * Trigger a refresh of the GUI finger table to reflect the changes in the
 	 * DHTNetwork's finger table. 
 	 * <p>
-	 * The finger table information is gathered from the DHTNetwork object
-	 * in the form of a two dimensional string array and is then placed
-	 * into the table. 
+	 * Only the rows that the DHTNetwork has reported as changed since the 
+	 * last refresh are updated. 
 	 */
 	public void refreshFingerTable()
 	{
-		String[][] tableList;
-		fingerModel.setRowCount(0);
-		
-		tableList = dht.getTableInfo();
-		int counter;
-		
-		for(counter=0;counter<dht.getTabSize();counter++)
-		{
-			Vector<Object> row = new Vector<Object>();
-			row.add(tableList[counter][0]);
-			row.add(tableList[counter][1]);
-			row.add(tableList[counter][2]);
-			row.add(tableList[counter][3]);
-			row.add(tableList[counter][4]);
-			
-			fingerModel.addRow(row);
-		}
+		fingerModel.applyChanges();
 	}
 	
 	/**
 	 * Trigger a refresh of the GUI file list to reflect the changes in the
 	 * DHTNetwork's file list. 
 	 * <p>
-	 * The file list information is gathered from the DHTNetwork object
-	 * in the form of a two dimensional string array and is then placed
-	 * into the table. 
+	 * Files that have been added or removed since the last refresh are 
+	 * added to or removed from the table. 
 	 */
 	public void refreshFileNames()
 	{
-		String[][] fileNames;
-		fileModel.setRowCount(0);
-		int counter;
-		
-		fileNames = dht.getFileNames();
-		for(counter=0;counter<fileNames[0].length;counter++)
-		{
-			Vector<Object> row = new Vector<Object>();
-			row.add(fileNames[0][counter]);
-			row.add(fileNames[1][counter]);
-			fileModel.addRow(row);
-		}
+		fileModel.applyChanges();
 	}
 	
 	/**
 	 * Trigger a refresh of the GUI pred/succ lists to reflect the changes 
 	 * in the DHTNetwork's lists. 
 	 * <p>
-	 * The list is gathered from the DHTNetwork object
-	 * in the form of a two dimensional string array and is then placed
-	 * into the table. 
+	 * Only the rows that the DHTNetwork has reported as changed since the 
+	 * last refresh are updated. 
 	 */
 	public void refreshLists()
 	{
-		String[][] tableList;
-		listModel.setRowCount(0);
-		
-		tableList = dht.getListInfo();
-		int counter;
-		
-		for(counter=0;counter<(dht.getStoreNo()*2);counter++)
-		{
-			Vector<Object> row = new Vector<Object>();
-			row.add(tableList[counter][0]);
-			row.add(tableList[counter][1]);
-			row.add(tableList[counter][2]);
-			
-			listModel.addRow(row);
-		}
+		listModel.applyChanges();
 	}
 	
 	/**
 	 * Set the last download id. 
 	 * @param id The last download id. 
 	 */
-	public void setLastDownloadId(int id)
+	public void setLastDownloadId(long id)
 	{
-		lastIdDownload = Integer.toString(id);
+		lastIdDownload = IdSpace.format(id);
 	}
 	
 	/**
 	 * Set the last upload id. 
 	 * @param id The last upload id. 
 	 */
-	public void setLastUploadId(int id)
+	public void setLastUploadId(long id)
 	{
-		lastIdUpload = Integer.toString(id);
+		lastIdUpload = IdSpace.format(id);
+	}
+	
+	/**
+	 * Receives changes from the DHTNetwork and queues them on the matching 
+	 * table model. The tables pick them up on the next refresh, which is 
+	 * requested straight away. 
+	 */
+	private class TableUpdater implements DHTListener
+	{
+		public void fingerChanged(int index, String[] row)
+		{
+			fingerModel.queueSet(index, row);
+			model.requestRefresh();
+		}
+		
+		public void listChanged(int index, String[] row)
+		{
+			listModel.queueSet(index, row);
+			model.requestRefresh();
+		}
+		
+		public void fileAdded(String fileName, long fileId)
+		{
+			fileModel.queueAdd(new String[] {fileName, 
+					IdSpace.format(fileId)});
+			model.requestRefresh();
+		}
+		
+		public void fileRemoved(String fileName)
+		{
+			fileModel.queueRemove(fileName);
+			model.requestRefresh();
+		}
 	}
 	
 	public class DHTDownCellRenderer extends DefaultTableCellRenderer
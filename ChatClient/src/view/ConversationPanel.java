@@ -0,0 +1,301 @@
+package view;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JButton;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+
+import file.HistoryStore;
+
+/**
+ * This class displays a single conversation in the chat tabs.
+ * <p>
+ * Only a window of at most MAX_MESSAGES messages is kept in memory. Every
+ * message is also written to the HistoryStore so that older messages can be
+ * paged back in when the user asks for them. Paging back drops the newest
+ * messages from the window, and they are paged in again when the user asks
+ * for later messages. While the window doesn't reach the end of the
+ * conversation, new messages only go to the HistoryStore. Messages are shown
+ * in a JList, which only renders the rows that are visible, so appending
+ * stays cheap no matter how long the conversation gets.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class ConversationPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_MESSAGES = 500; //Messages kept in memory.
+    private static final int PAGE_SIZE = 100; //Messages paged in at a time.
+
+    private String username;
+    private HistoryStore history;
+    private MessageListModel messages;
+    private JList<String> messageList;
+    private JButton earlier;
+    private JButton later;
+    private boolean atEnd; //Whether the newest message is in the window.
+
+    /**
+     * Constructor for ConversationPanel.
+     *
+     * @param username The user that the conversation is with.
+     * @param history  The store used to keep older messages. May be null,
+     *                 in which case older messages are simply dropped.
+     */
+    public ConversationPanel(String username, HistoryStore history) {
+        this.username = username;
+        this.history = history;
+        messages = new MessageListModel();
+        messageList = new JList<String>(messages);
+        //A fixed cell height means the list never has to measure every
+        //message to lay itself out vertically. The width is still taken
+        //from the messages themselves so long ones can be scrolled to.
+        messageList.setPrototypeCellValue("00:00:00 AM - " + username + ": ");
+        messageList.setFixedCellWidth(-1);
+        earlier = new JButton("Show earlier messages");
+        later = new JButton("Show later messages");
+        atEnd = true;
+
+        setLayout(new BorderLayout());
+        add(earlier, BorderLayout.NORTH);
+        add(new JScrollPane(messageList), BorderLayout.CENTER);
+        add(later, BorderLayout.SOUTH);
+
+        earlier.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                loadEarlier();
+            }
+        });
+        later.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent evt) {
+                loadLater();
+            }
+        });
+
+        //Start off with the most recent page of any previous sessions.
+        loadEarlier();
+    }
+
+    /**
+     * Add a message to the end of the conversation. Must be called on the
+     * event dispatch thread.
+     *
+     * @param line The message as it should be displayed.
+     */
+    public void append(String line) {
+        long offset = -1;
+
+        if (history != null) {
+            offset = history.append(username, line);
+        }
+        //If the user has paged back, the message is read in again from the
+        //history once they page forward to it.
+        if (!atEnd && (offset >= 0)) {
+            updateButtons();
+            return;
+        }
+        messages.add(offset, line);
+        messages.trimOldest(MAX_MESSAGES);
+        updateButtons();
+        messageList.ensureIndexIsVisible(messages.getSize() - 1);
+    }
+
+    /**
+     * Page in the messages that come before the oldest one shown.
+     */
+    public void loadEarlier() {
+        List<HistoryStore.Entry> entries;
+        long offset;
+
+        if (history == null) {
+            updateButtons();
+            return;
+        }
+
+        if (messages.getSize() == 0) {
+            offset = history.length(username);
+        } else {
+            offset = messages.getOldestOffset();
+        }
+        entries = history.readBefore(username, offset, PAGE_SIZE);
+        messages.prepend(entries);
+        if (messages.trimNewest(MAX_MESSAGES)) {
+            atEnd = false;
+        }
+        updateButtons();
+        if (!entries.isEmpty()) {
+            messageList.ensureIndexIsVisible(0);
+        }
+    }
+
+    /**
+     * Page in the messages that come after the newest one shown.
+     */
+    public void loadLater() {
+        List<HistoryStore.Entry> entries;
+        int first;
+
+        if ((history == null) || atEnd) {
+            updateButtons();
+            return;
+        }
+
+        //One more message than is shown is read to find out whether this
+        //page reaches the end of the conversation.
+        entries = history.readAfter(username, messages.getNewestOffset(),
+                PAGE_SIZE + 1);
+        if (entries.size() <= PAGE_SIZE) {
+            atEnd = true;
+        } else {
+            entries.remove(entries.size() - 1);
+        }
+        first = messages.getSize();
+        for (HistoryStore.Entry entry : entries) {
+            messages.add(entry.getOffset(), entry.getText());
+        }
+        first -= messages.trimOldest(MAX_MESSAGES);
+        updateButtons();
+        if (!entries.isEmpty()) {
+            messageList.ensureIndexIsVisible(
+                    Math.min(first + entries.size() - 1, messages.getSize() - 1));
+        }
+    }
+
+    /**
+     * Close the conversation's history file. Must be called when the
+     * conversation is closed.
+     */
+    public void close() {
+        if (history != null) {
+            history.close(username);
+        }
+    }
+
+    /**
+     * Only allow the user to ask for earlier or later messages if there are
+     * any.
+     */
+    private void updateButtons() {
+        earlier.setEnabled((history != null) && (messages.getOldestOffset() > 0));
+        later.setEnabled(!atEnd);
+    }
+
+    /**
+     * List model holding the messages currently in memory along with the
+     * offset of each one in the history file.
+     */
+    private static class MessageListModel extends AbstractListModel<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<String> lines = new ArrayList<String>();
+        private List<Long> offsets = new ArrayList<Long>();
+
+        public int getSize() {
+            return lines.size();
+        }
+
+        public String getElementAt(int index) {
+            return lines.get(index);
+        }
+
+        /**
+         * Add a message to the end of the list.
+         *
+         * @param offset The offset of the message in the history file.
+         * @param line   The message.
+         */
+        void add(long offset, String line) {
+            lines.add(line);
+            offsets.add(offset);
+            fireIntervalAdded(this, lines.size() - 1, lines.size() - 1);
+        }
+
+        /**
+         * Add older messages to the start of the list.
+         *
+         * @param entries The messages, oldest first.
+         */
+        void prepend(List<HistoryStore.Entry> entries) {
+            int counter;
+
+            if (entries.isEmpty()) {
+                return;
+            }
+            for (counter = 0; counter < entries.size(); counter++) {
+                lines.add(counter, entries.get(counter).getText());
+                offsets.add(counter, entries.get(counter).getOffset());
+            }
+            fireIntervalAdded(this, 0, entries.size() - 1);
+        }
+
+        /**
+         * Drop the oldest messages until there are no more than max left.
+         *
+         * @param max The number of messages to keep.
+         * @return The number of messages dropped.
+         */
+        int trimOldest(int max) {
+            int excess = lines.size() - max;
+
+            if (excess <= 0) {
+                return 0;
+            }
+            lines.subList(0, excess).clear();
+            offsets.subList(0, excess).clear();
+            fireIntervalRemoved(this, 0, excess - 1);
+            return excess;
+        }
+
+        /**
+         * Drop the newest messages until there are no more than max left.
+         *
+         * @param max The number of messages to keep.
+         * @return True if any messages were dropped.
+         */
+        boolean trimNewest(int max) {
+            int size = lines.size();
+
+            if (size <= max) {
+                return false;
+            }
+            lines.subList(max, size).clear();
+            offsets.subList(max, size).clear();
+            fireIntervalRemoved(this, max, size - 1);
+            return true;
+        }
+
+        /**
+         * Get the offset of the oldest message in the list.
+         *
+         * @return The offset, or -1 if it is unknown or the list is empty.
+         */
+        long getOldestOffset() {
+            if (offsets.isEmpty()) {
+                return -1;
+            }
+            return offsets.get(0);
+        }
+
+        /**
+         * Get the offset of the newest message in the list.
+         *
+         * @return The offset, or -1 if it is unknown or the list is empty.
+         */
+        long getNewestOffset() {
+            if (offsets.isEmpty()) {
+                return -1;
+            }
+            return offsets.get(offsets.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package view;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * A table model for the DHT tables in the view that is updated one row at a
+ * time rather than being rebuilt on every refresh.
+ * <p>
+ * Changes can be queued from any thread. They are only applied to the
+ * table when applyChanges() is called on the event dispatch thread, and only
+ * the rows that actually differ are redrawn.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class DHTTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private String[] columns;
+    private List<String[]> rows;
+    private Queue<Change> pending;
+
+    /**
+     * Constructor for DHTTableModel.
+     *
+     * @param columns The column names of the table.
+     */
+    public DHTTableModel(String... columns) {
+        this.columns = columns;
+        rows = new ArrayList<String[]>();
+        pending = new ConcurrentLinkedQueue<Change>();
+    }
+
+    /**
+     * Queue a change to the row at a given index. The table grows if the
+     * index is past the end of it.
+     *
+     * @param index The index of the row.
+     * @param row   The new contents of the row.
+     */
+    public void queueSet(int index, String[] row) {
+        pending.add(new Change(Change.SET, index, row, null));
+    }
+
+    /**
+     * Queue a new row to be added to the end of the table.
+     *
+     * @param row The contents of the row.
+     */
+    public void queueAdd(String[] row) {
+        pending.add(new Change(Change.ADD, -1, row, null));
+    }
+
+    /**
+     * Queue the removal of the first row whose first column matches the
+     * key (ignoring case).
+     *
+     * @param key The value of the first column.
+     */
+    public void queueRemove(String key) {
+        pending.add(new Change(Change.REMOVE, -1, null, key));
+    }
+
+    /**
+     * Apply every queued change to the table and fire row level events for
+     * the rows that changed. Must be called on the event dispatch thread.
+     */
+    public void applyChanges() {
+        Change change;
+
+        while ((change = pending.poll()) != null) {
+            if (change.type == Change.SET) {
+                setRow(change.index, change.row);
+            } else if (change.type == Change.ADD) {
+                rows.add(change.row);
+                fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+            } else {
+                removeRow(change.key);
+            }
+        }
+    }
+
+    /**
+     * Replace a row, only firing an update if its contents are different.
+     *
+     * @param index The index of the row.
+     * @param row   The new contents of the row.
+     */
+    private void setRow(int index, String[] row) {
+        int oldSize = rows.size();
+
+        if (index >= oldSize) {
+            while (rows.size() <= index) {
+                rows.add(new String[columns.length]);
+            }
+            rows.set(index, row);
+            fireTableRowsInserted(oldSize, index);
+        } else if (!Arrays.equals(rows.get(index), row)) {
+            rows.set(index, row);
+            fireTableRowsUpdated(index, index);
+        }
+    }
+
+    /**
+     * Remove the first row whose first column matches the key.
+     *
+     * @param key The value of the first column.
+     */
+    private void removeRow(String key) {
+        int counter;
+
+        for (counter = 0; counter < rows.size(); counter++) {
+            if (key.equalsIgnoreCase(rows.get(counter)[0])) {
+                rows.remove(counter);
+                fireTableRowsDeleted(counter, counter);
+                return;
+            }
+        }
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    public Object getValueAt(int row, int column) {
+        return rows.get(row)[column];
+    }
+
+    /**
+     * A single queued change to the table.
+     */
+    private static class Change {
+        static final int SET = 0;
+        static final int ADD = 1;
+        static final int REMOVE = 2;
+
+        int type;
+        int index;
+        String[] row;
+        String key;
+
+        Change(int type, int index, String[] row, String key) {
+            this.type = type;
+            this.index = index;
+            this.row = row;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package view;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * This class coalesces requests to refresh the GUI so that the network
+ * thread never has to wait on the Swing event dispatch thread.
+ * <p>
+ * Any number of refresh requests made between two repaints are merged into
+ * a single one using a dirty flag. Repaints are handed to the event dispatch
+ * thread with invokeLater and happen at most a set number of times per
+ * second.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class RefreshScheduler implements Runnable {
+
+    private Runnable refresh;
+    private AtomicBoolean dirty;
+    private Timer timer;
+    private volatile long minInterval;
+    private volatile long lastRefresh = 0;
+
+    /**
+     * Constructor for RefreshScheduler.
+     *
+     * @param refresh      The refresh routine. It is always run on the event
+     *                     dispatch thread.
+     * @param maxPerSecond The maximum number of refreshes per second.
+     */
+    public RefreshScheduler(Runnable refresh, int maxPerSecond) {
+        this.refresh = refresh;
+        dirty = new AtomicBoolean(false);
+        timer = new Timer("GUI Refresh", true);
+        setMaxRate(maxPerSecond);
+    }
+
+    /**
+     * Set the maximum number of refreshes per second.
+     *
+     * @param maxPerSecond The new maximum. Values below 1 are treated as 1.
+     */
+    public void setMaxRate(int maxPerSecond) {
+        minInterval = 1000 / Math.max(1, maxPerSecond);
+    }
+
+    /**
+     * Mark the GUI as out of date. This returns immediately and is safe to
+     * call from any thread.
+     * <p>
+     * If a refresh is already pending then this request is merged into it.
+     */
+    public void requestRefresh() {
+        long delay;
+
+        if (!dirty.compareAndSet(false, true)) {
+            return;
+        }
+
+        delay = (lastRefresh + minInterval) - System.currentTimeMillis();
+        if (delay <= 0) {
+            SwingUtilities.invokeLater(this);
+        } else {
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    SwingUtilities.invokeLater(RefreshScheduler.this);
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * Run the refresh on the event dispatch thread.
+     * <p>
+     * The dirty flag is cleared before refreshing so that any changes made
+     * while the refresh is running schedule another one.
+     */
+    public void run() {
+        dirty.set(false);
+        lastRefresh = System.currentTimeMillis();
+        refresh.run();
+    }
+}
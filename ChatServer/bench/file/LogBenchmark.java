@@ -0,0 +1,254 @@
+package file;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command line tool that compares the MappedLog with the LogWriter by
+ * writing the same records through each of them.
+ * <p>
+ * Usage: LogBenchmark [-dir bench] [-threads 1,4] [-records 200000]
+ * [-size 100]
+ * <p>
+ * For each thread count, the threads share out the records and append them
+ * as fast as they can, first to a MappedLog and then to a LogWriter. Each
+ * log is written to a directory of its own under -dir. The time runs until
+ * the log has been closed, so records still queued in the LogWriter are
+ * counted. The time each append() call took is also recorded, and the
+ * median, 99th, 99.9th percentile and longest times are printed. For the
+ * LogWriter that is the time to queue a record, which includes any wait
+ * for room in the queue. The contents of each record are -size characters
+ * long.
+ * <p>
+ * The directories are left behind so that the logs can be checked with
+ * LogExport.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File("bench");
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        int records = 200000;
+        int size = 100;
+        int counter;
+
+        for (counter = 0; counter + 1 < args.length; counter += 2) {
+            if (args[counter].equals("-dir")) {
+                directory = new File(args[counter + 1]);
+            } else if (args[counter].equals("-threads")) {
+                for (String count : args[counter + 1].split(",")) {
+                    threadCounts.add(Integer.parseInt(count.trim()));
+                }
+            } else if (args[counter].equals("-records")) {
+                records = Integer.parseInt(args[counter + 1]);
+            } else if (args[counter].equals("-size")) {
+                size = Integer.parseInt(args[counter + 1]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if ((args.length % 2) != 0) {
+            usage();
+            return;
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(4);
+        }
+
+        System.out.println("cores " + Runtime.getRuntime().availableProcessors()
+                + ", " + records + " records of " + size + " characters");
+        for (int threads : threadCounts) {
+            run("mapped", threads, records, new MappedTarget(
+                    new File(directory, "mapped-" + threads)), size);
+            run("writer", threads, records, new WriterTarget(
+                    new File(directory, "writer-" + threads)), size);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LogBenchmark [-dir bench] [-threads 1,4] "
+                + "[-records 200000] [-size 100]");
+    }
+
+    /**
+     * Write records to one log from several threads and print the results.
+     *
+     * @param name    The name printed for the log.
+     * @param threads The number of threads.
+     * @param records The number of records, shared between the threads.
+     * @param target  The log to write to.
+     * @param size    The length of each record's contents.
+     */
+    private static void run(String name, int threads, int records,
+                            final Target target, int size)
+            throws IOException, InterruptedException {
+        final long[][] latencies = new long[threads][];
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final LogRecord record = record(size);
+        final int[] errors = new int[threads];
+        Thread[] workers = new Thread[threads];
+        long[] all = new long[records];
+        long start;
+        long time;
+        int offset = 0;
+
+        target.open();
+        for (int counter = 0; counter < threads; counter++) {
+            final int index = counter;
+
+            //The first threads take any records left over.
+            latencies[counter] = new long[records / threads
+                    + ((counter < records % threads) ? 1 : 0)];
+            workers[counter] = new Thread(new Runnable() {
+                public void run() {
+                    long[] latency = latencies[index];
+                    long before;
+
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException iException) {
+                        return;
+                    }
+                    for (int position = 0; position < latency.length;
+                         position++) {
+                        before = System.nanoTime();
+                        try {
+                            target.append(record);
+                        } catch (IOException ioException) {
+                            errors[index]++;
+                        }
+                        latency[position] = System.nanoTime() - before;
+                    }
+                }
+            }, "Log Benchmark " + counter);
+            workers[counter].start();
+        }
+
+        ready.await();
+        start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        target.close();
+        time = (System.nanoTime() - start) / 1000000;
+
+        for (int counter = 0; counter < threads; counter++) {
+            System.arraycopy(latencies[counter], 0, all, offset,
+                    latencies[counter].length);
+            offset += latencies[counter].length;
+            if (errors[counter] > 0) {
+                System.err.println(name + ": " + errors[counter]
+                        + " appends failed on thread " + counter);
+            }
+        }
+        Arrays.sort(all);
+
+        System.out.println(name + ", threads " + threads + ": " + time
+                + " ms, "
+                + ((time == 0) ? "-" : Long.toString(records * 1000L / time))
+                + " records/s, append p50 " + micros(all, 0.5) + " us, p99 "
+                + micros(all, 0.99) + " us, p99.9 " + micros(all, 0.999)
+                + " us, max " + micros(all, 1.0) + " us");
+        System.out.println("    " + target);
+    }
+
+    /**
+     * Get a percentile of the sorted times in microseconds.
+     */
+    private static String micros(long[] sorted, double fraction) {
+        int index;
+
+        if (sorted.length == 0) {
+            return "-";
+        }
+        index = Math.min(sorted.length - 1,
+                (int) Math.ceil(sorted.length * fraction) - 1);
+        return String.format("%.1f", sorted[Math.max(0, index)] / 1000.0);
+    }
+
+    /**
+     * Make a record like the ones the server logs for a message.
+     */
+    private static LogRecord record(int size) {
+        SimpleDateFormat dateFormat =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        char[] text = new char[size];
+
+        Arrays.fill(text, 'x');
+        return new LogRecord(dateFormat.format(new Date()), "MESSAGE", "UDP",
+                "N/A", "alice", "10.0.0.1", "5000", "bob", "10.0.0.2", "5001",
+                Arrays.asList(new String(text)), Integer.toString(size), "0");
+    }
+
+    /**
+     * A log being measured.
+     */
+    private interface Target {
+        void open() throws IOException;
+
+        void append(LogRecord record) throws IOException;
+
+        void close();
+    }
+
+    private static class MappedTarget implements Target {
+        private MappedLog log;
+
+        MappedTarget(File directory) {
+            log = new MappedLog(directory);
+        }
+
+        public void open() throws IOException {
+            log.open();
+        }
+
+        public void append(LogRecord record) throws IOException {
+            log.append(record);
+        }
+
+        public void close() {
+            log.close();
+        }
+
+        public String toString() {
+            return log.toString();
+        }
+    }
+
+    private static class WriterTarget implements Target {
+        private LogWriter writer;
+
+        WriterTarget(File directory) {
+            writer = new LogWriter(directory, 10000);
+        }
+
+        public void open() throws IOException {
+            writer.start();
+        }
+
+        public void append(LogRecord record) {
+            writer.append(record);
+        }
+
+        public void close() {
+            writer.close();
+        }
+
+        public String toString() {
+            return writer.toString();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package model;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool that measures the ServerModel with a large number of
+ * registered peers.
+ * <p>
+ * Usage: ModelBenchmark [-peers 100000] [-readers 1,4] [-seconds 2]
+ * <p>
+ * First the peers are registered one after another, and the time taken to
+ * register them and to build a snapshot of them is printed. Then, for each
+ * number of readers, the readers look up usernames by address and port for
+ * the given number of seconds. At the same time one thread keeps removing
+ * peers and registering them again, and another keeps walking the snapshot
+ * of this server's peers, as the connections thread does. The lookups,
+ * changes and walks per second are printed.
+ * <p>
+ * A lookup must give the peer's own username, or "User not found" if the
+ * peer has been removed for the moment. Any other answer is counted as
+ * wrong, and so is a snapshot that doesn't hold every peer once.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class ModelBenchmark {
+
+    private static volatile boolean isStopped;
+
+    public static void main(String[] args) throws InterruptedException {
+        List<Integer> readerCounts = new ArrayList<Integer>();
+        int peers = 100000;
+        long seconds = 2;
+        ServerModel model = new ServerModel();
+        long start;
+        long time;
+        int counter;
+
+        for (counter = 0; counter + 1 < args.length; counter += 2) {
+            if (args[counter].equals("-peers")) {
+                peers = Integer.parseInt(args[counter + 1]);
+            } else if (args[counter].equals("-readers")) {
+                for (String count : args[counter + 1].split(",")) {
+                    readerCounts.add(Integer.parseInt(count.trim()));
+                }
+            } else if (args[counter].equals("-seconds")) {
+                seconds = Long.parseLong(args[counter + 1]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if ((args.length % 2) != 0) {
+            usage();
+            return;
+        }
+        if (readerCounts.isEmpty()) {
+            readerCounts.add(1);
+            readerCounts.add(4);
+        }
+
+        System.out.println("cores " + Runtime.getRuntime().availableProcessors()
+                + ", " + peers + " peers");
+
+        start = System.nanoTime();
+        for (counter = 0; counter < peers; counter++) {
+            model.registerPeer(peer(counter));
+        }
+        time = (System.nanoTime() - start) / 1000000;
+        System.out.println("register: " + time + " ms, "
+                + ((time == 0) ? "-" : Long.toString(peers * 1000L / time))
+                + " registrations/s");
+
+        start = System.nanoTime();
+        model.getOwnPeers();
+        System.out.println("snapshot: "
+                + (System.nanoTime() - start) / 1000 + " us to build, "
+                + timeCached(model) + " ns once built");
+
+        for (int readers : readerCounts) {
+            run(model, peers, readers, seconds * 1000);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ModelBenchmark [-peers 100000] "
+                + "[-readers 1,4] [-seconds 2]");
+    }
+
+    /**
+     * Look up peers from several threads while others change the registry
+     * and walk it, and print the results.
+     *
+     * @param model    The registry, with every peer registered.
+     * @param peers    The number of peers.
+     * @param readers  The number of threads looking up peers.
+     * @param duration How long to run for in milliseconds.
+     */
+    private static void run(final ServerModel model, final int peers,
+                            int readers, long duration)
+            throws InterruptedException {
+        final AtomicLong lookups = new AtomicLong(0);
+        final AtomicLong changes = new AtomicLong(0);
+        final AtomicLong walks = new AtomicLong(0);
+        final AtomicLong wrong = new AtomicLong(0);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int counter = 0; counter < readers; counter++) {
+            final Random random = new Random(counter);
+
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    long done = 0;
+                    int index;
+                    String username;
+
+                    while (!isStopped) {
+                        for (int batch = 0; batch < 1000; batch++) {
+                            index = random.nextInt(peers);
+                            username = model.findUsername(address(index),
+                                    port(index));
+                            if (!username.equals(username(index))
+                                    && !username.equals("User not found")) {
+                                wrong.incrementAndGet();
+                            }
+                        }
+                        done += 1000;
+                    }
+                    lookups.addAndGet(done);
+                }
+            }, "Model Reader " + counter));
+        }
+
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                Random random = new Random(-1);
+                long done = 0;
+                int index;
+
+                while (!isStopped) {
+                    index = random.nextInt(peers);
+                    model.removePeer(username(index));
+                    model.registerPeer(peer(index));
+                    done += 2;
+                }
+                changes.addAndGet(done);
+            }
+        }, "Model Churn"));
+
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                Set<String> seen = new HashSet<String>();
+                long done = 0;
+
+                while (!isStopped) {
+                    seen.clear();
+                    for (Peer peer : model.getOwnPeers()) {
+                        if (!seen.add(peer.getUsername())) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                    //At most the one peer being churned can be missing.
+                    if (seen.size() < peers - 1) {
+                        wrong.incrementAndGet();
+                    }
+                    done++;
+                }
+                walks.addAndGet(done);
+            }
+        }, "Model Walker"));
+
+        isStopped = false;
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(duration);
+        isStopped = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.println("readers " + readers + ": "
+                + lookups.get() * 1000 / duration + " lookups/s, "
+                + changes.get() * 1000 / duration + " changes/s, "
+                + walks.get() * 1000 / duration + " snapshot walks/s, "
+                + wrong.get() + " wrong");
+    }
+
+    /**
+     * Get the average time to fetch a snapshot that is already built.
+     */
+    private static long timeCached(ServerModel model) {
+        int rounds = 100000;
+        long start = System.nanoTime();
+
+        for (int counter = 0; counter < rounds; counter++) {
+            model.getOwnPeers();
+        }
+        return (System.nanoTime() - start) / rounds;
+    }
+
+    private static Peer peer(int index) {
+        return new Peer(username(index), address(index), port(index));
+    }
+
+    private static String username(int index) {
+        return "peer-" + index;
+    }
+
+    //Every peer gets an address of its own.
+    private static String address(int index) {
+        return "10." + ((index >> 16) & 0xFF) + "." + ((index >> 8) & 0xFF)
+                + "." + (index & 0xFF);
+    }
+
+    private static int port(int index) {
+        return 1024 + (index % 50000);
+    }
+}
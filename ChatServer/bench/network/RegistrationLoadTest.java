@@ -0,0 +1,240 @@
+package network;
+
+import file.*;
+import model.*;
+import view.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Command line tool that measures how many registrations per second the
+ * server handles with different numbers of worker threads.
+ * <p>
+ * Usage: RegistrationLoadTest [-workers 1,N] [-peers 20000]
+ * [-warmup 20000] [-console]
+ * <p>
+ * Each worker count gets a server set up the way ServerApp sets one up,
+ * except that its CommManager is a stand-in. The stand-in gives the receive
+ * loop a REGISTER from a different peer every time it asks for a packet, and
+ * counts the REGISTRATION_SUCCESS replies instead of sending them. The
+ * receive loop, the workers, the registry, the lease tracking and the
+ * message log all do their usual work, so this measures the server without
+ * the network. The time is from the first REGISTER being received to the
+ * last REGISTRATION_SUCCESS being sent. The console's messages are thrown
+ * away, unless -console is given, in which case they go to standard error.
+ * <p>
+ * More workers can only help when there are cores for them to run on, so
+ * the number of cores is printed with the results. On a single core the
+ * extra workers only add switching between threads. Unless -workers is
+ * given, it runs with one worker and with one per core (two on a single
+ * core), and each run's speedup over the first is printed.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class RegistrationLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> workerCounts = new ArrayList<Integer>();
+        int peers = 20000;
+        int warmup = 20000;
+        boolean printConsole = false;
+        FileManager file = new FileManager();
+        int cores = Runtime.getRuntime().availableProcessors();
+        long first = 0;
+        int counter;
+
+        for (counter = 0; counter < args.length; counter++) {
+            if (args[counter].equals("-console")) {
+                printConsole = true;
+            } else if (counter + 1 >= args.length) {
+                usage();
+                return;
+            } else if (args[counter].equals("-workers")) {
+                for (String count : args[++counter].split(",")) {
+                    workerCounts.add(Integer.parseInt(count.trim()));
+                }
+            } else if (args[counter].equals("-peers")) {
+                peers = Integer.parseInt(args[++counter]);
+            } else if (args[counter].equals("-warmup")) {
+                warmup = Integer.parseInt(args[++counter]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (workerCounts.isEmpty()) {
+            workerCounts.add(1);
+            workerCounts.add(Math.max(2, cores));
+        }
+
+        System.out.println("cores " + cores + ", " + peers
+                + " registrations per run");
+        if (warmup > 0) {
+            run("warmup", workerCounts.get(0), warmup, file, printConsole);
+        }
+        for (int workers : workerCounts) {
+            long time = run("run" + workers, workers, peers, file,
+                    printConsole);
+
+            if (first == 0) {
+                first = Math.max(1, time);
+            }
+            System.out.println("workers " + workers + ": " + time + " ms, "
+                    + ((time == 0) ? "-" : Long.toString(peers * 1000L / time))
+                    + " registrations/s, speedup "
+                    + String.format("%.2f", first / (double) Math.max(1, time)));
+        }
+        for (String line : file.getStatus()) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: RegistrationLoadTest [-workers 1,N] "
+                + "[-peers 20000] [-warmup 20000] [-console]");
+    }
+
+    /**
+     * Register peers with a new server.
+     *
+     * @param name    Used to keep the usernames apart from other runs.
+     * @param workers The number of worker threads.
+     * @param peers   The number of peers to register.
+     * @param file    The log, which is shared by every run.
+     * @param print   True to print the console's messages.
+     * @return The time taken in milliseconds.
+     */
+    private static long run(String name, int workers, int peers,
+                            FileManager file, boolean print)
+            throws InterruptedException {
+        ServerNetwork network = new ServerNetwork();
+        ServerModel model = new ServerModel();
+        ServerConsole console = new LoadConsole(print);
+        ServerConnections connection = new ServerConnections();
+        ShardCoordinator shards = new ShardCoordinator();
+        LoadComm comm = new LoadComm(peers);
+        List<List<String>> packets = new ArrayList<List<String>>();
+        long start;
+
+        network.initModel(model);
+        network.initConsole(console);
+        network.initConnections(connection);
+        network.initShards(shards);
+        network.initFile(file);
+        connection.initModel(model);
+        connection.initConsole(console);
+        connection.initNetwork(network);
+        shards.initModel(model);
+        shards.initConsole(console);
+        shards.initNetwork(network);
+        console.initNetwork(network);
+        file.initConsole(console);
+        network.setWorkerCount(workers);
+        network.initComm(comm);
+        network.initSocket();
+
+        //Every peer has its own username, address and port, so the work is
+        //spread over the workers as it would be with real peers.
+        for (int counter = 0; counter < peers; counter++) {
+            List<String> packet = new ArrayList<String>();
+
+            packet.add("REGISTER");
+            packet.add(name + "-" + counter);
+            packet.add("2016-01-01 00:00:00.000");
+            packet.add("UDP");
+            packet.add("N/A");
+            packet.add("10." + ((counter >> 16) & 0xFF) + "."
+                    + ((counter >> 8) & 0xFF) + "." + (counter & 0xFF));
+            packet.add(Integer.toString(1024 + (counter % 50000)));
+            packet.add("100");
+            packets.add(packet);
+        }
+
+        network.start();
+        start = System.nanoTime();
+        comm.packets.addAll(packets);
+        comm.done.await();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * A console that throws its messages away or writes them to standard
+     * error, as there is no window to show them in.
+     */
+    private static class LoadConsole extends ServerConsole {
+        private boolean print;
+
+        LoadConsole(boolean print) {
+            this.print = print;
+        }
+
+        public void printMessage(String message) {
+            if (print) {
+                System.err.println(message);
+            }
+        }
+
+        public void printError(String message) {
+            System.err.println("ERROR: " + message);
+        }
+    }
+
+    /**
+     * A CommManager that hands out queued packets and counts what is sent
+     * instead of sending it.
+     */
+    private static class LoadComm implements CommManager {
+        BlockingQueue<List<String>> packets =
+                new LinkedBlockingQueue<List<String>>();
+        CountDownLatch done;
+
+        LoadComm(int peers) {
+            done = new CountDownLatch(peers);
+        }
+
+        public void initSocket() {
+        }
+
+        public void initSocket(String address, int port) {
+        }
+
+        public String getServerAddress() {
+            return "127.0.0.1";
+        }
+
+        public int getServerPort() {
+            return 0;
+        }
+
+        public List<String> receivePacket() throws IOException {
+            try {
+                return packets.take();
+            } catch (InterruptedException iException) {
+                throw new IOException("Interrupted.");
+            }
+        }
+
+        public int sendPacket(String rcvAddress, int rcvPort, String header,
+                              List<String> contents) {
+            if (header.equals("REGISTRATION_SUCCESS")) {
+                done.countDown();
+            }
+            return 0;
+        }
+
+        public int sendUnreliablePacket(String rcvAddress, int rcvPort,
+                                        String header, List<String> contents) {
+            return 0;
+        }
+
+        public void clearMsgCache() {
+        }
+    }
+}
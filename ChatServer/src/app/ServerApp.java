@@ -5,6 +5,8 @@ import view.*;
 import model.*;
 import file.*;
 
+import java.io.File;
+
 /**
  * The driver class that contains the main method and pulls the view,
  * model and network components together.
@@ -22,6 +24,7 @@ public class ServerApp {
         ServerConsole console = new ServerConsole();
         //CommManager comm = new UDPPacketManager();
         ServerConnections connection = new ServerConnections();
+        ShardCoordinator shards = new ShardCoordinator();
         FileManager file = new FileManager();
         ServerLogin login = new ServerLogin();
         ServerView view = new ServerView();
@@ -30,16 +33,36 @@ public class ServerApp {
         network.initConsole(console);
         //network.initComm(comm);
         network.initConnections(connection);
+        network.initShards(shards);
         network.initFile(file);
+        network.initStore(new RegistryStore(new File("registry")));
         connection.initModel(model);
         connection.initConsole(console);
         connection.initNetwork(network);
+        shards.initModel(model);
+        shards.initConsole(console);
+        shards.initNetwork(network);
+        shards.setShards(ShardRing.parse(System.getProperty("server.shards")),
+                System.getProperty("server.shard.self"));
         //view.initComm(comm);
         login.initNetwork(network);
         login.initView(view);
         console.initNetwork(network);
         console.initView(view);
         file.initConsole(console);
+        file.setMapped(Boolean.getBoolean("log.mapped"));
+        file.getWriter().setFlushBytes(Integer.getInteger("log.flushBytes",
+                LogWriter.DEFAULT_FLUSH_BYTES));
+        file.getWriter().setFlushInterval(Long.getLong("log.flushInterval",
+                LogWriter.DEFAULT_FLUSH_INTERVAL));
+        file.getWriter().setSync(Boolean.getBoolean("log.sync"));
+        network.getTelemetry().loadSettings(System.getProperties());
+        network.getAggregator().loadSettings(System.getProperties());
+        network.setForwardPackets(Boolean.getBoolean(
+                "telemetry.forwardPackets"));
+        network.setWorkerCount(Integer.getInteger("server.workers",
+                Runtime.getRuntime().availableProcessors()));
+        network.setPrintPackets(Boolean.getBoolean("server.printPackets"));
         /*
 		if(args.length == 4)
 		{
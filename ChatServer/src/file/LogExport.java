@@ -0,0 +1,102 @@
+package file;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Command line tool that exports records from the binary message log in the
+ * same csv columns that log.txt used to have.
+ * <p>
+ * Usage: LogExport [-dir log] [-from time] [-to time] [-tag TAG] [-out file]
+ * <p>
+ * Times are given as "yyyy-MM-dd HH:mm:ss" (optionally with ".SSS"). If no
+ * output file is given the csv is written to standard output. A process
+ * that found the log directory in use writes to log-2, log-3 and so on
+ * instead, which can be exported with -dir.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogExport {
+
+    public static void main(String[] args) {
+        File directory = new File("log");
+        LogQuery query;
+        String out = null;
+        String from = null;
+        String to = null;
+        String tag = null;
+        final Writer writer;
+        int counter;
+        int found;
+
+        for (counter = 0; counter + 1 < args.length; counter += 2) {
+            if (args[counter].equals("-dir")) {
+                directory = new File(args[counter + 1]);
+            } else if (args[counter].equals("-from")) {
+                from = args[counter + 1];
+            } else if (args[counter].equals("-to")) {
+                to = args[counter + 1];
+            } else if (args[counter].equals("-tag")) {
+                tag = args[counter + 1];
+            } else if (args[counter].equals("-out")) {
+                out = args[counter + 1];
+            } else {
+                usage();
+                return;
+            }
+        }
+        if ((args.length % 2) != 0) {
+            usage();
+            return;
+        }
+
+        query = new LogQuery(directory);
+        try {
+            query.setTimeRange((from == null) ? Long.MIN_VALUE : parseTime(from),
+                    (to == null) ? Long.MAX_VALUE : parseTime(to));
+        } catch (ParseException pException) {
+            System.err.println("Times must be in the form yyyy-MM-dd HH:mm:ss");
+            return;
+        }
+        query.setTag(tag);
+
+        try {
+            if (out == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(System.out,
+                        "UTF-8"));
+            } else {
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(out), "UTF-8"));
+            }
+            writer.write(LogRecord.CSV_HEADER);
+            found = query.run(new LogQuery.Handler() {
+                public void handle(LogRecord record) throws IOException {
+                    writer.write(record.toCsv());
+                }
+            });
+            writer.close();
+        } catch (IOException ioException) {
+            System.err.println("The log could not be exported: "
+                    + ioException.getMessage());
+            return;
+        }
+        if (out != null) {
+            System.out.println(found + " records written to " + out);
+        }
+    }
+
+    private static long parseTime(String time) throws ParseException {
+        String format = (time.indexOf('.') >= 0) ? "yyyy-MM-dd HH:mm:ss.SSS"
+                : "yyyy-MM-dd HH:mm:ss";
+
+        return new SimpleDateFormat(format).parse(time).getTime();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LogExport [-dir log] [-from time] "
+                + "[-to time] [-tag TAG] [-out file]");
+    }
+}
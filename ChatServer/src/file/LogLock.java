@@ -0,0 +1,108 @@
+package file;
+
+import java.io.*;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * This class makes sure that only one process writes to a log directory.
+ * <p>
+ * The process holds a lock on LOCK_NAME in the directory for as long as it
+ * is writing there. A log works out its next segment number from the files
+ * already in its directory and compresses any segments it finds left over,
+ * so two processes sharing a directory would overwrite and compress each
+ * other's live segments. If the directory asked for is already locked, for
+ * example because a client and a server are run from the same folder, the
+ * first free one of base-2, base-3 and so on is used instead.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class LogLock {
+
+    public static final String LOCK_NAME = "log.lock";
+
+    private static final int MAX_DIRECTORIES = 100;
+
+    private File directory;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    private LogLock(File directory, RandomAccessFile lockFile, FileLock lock) {
+        this.directory = directory;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    /**
+     * Lock a log directory, or the first free directory after it. The
+     * directory is created if it doesn't exist.
+     *
+     * @param base The directory asked for.
+     * @return The lock, which says which directory was locked.
+     * @throws IOException If a directory couldn't be created or every one
+     *                     is in use.
+     */
+    public static LogLock acquire(File base) throws IOException {
+        LogLock lock;
+        File directory;
+        int counter;
+
+        for (counter = 1; counter <= MAX_DIRECTORIES; counter++) {
+            directory = (counter == 1) ? base
+                    : new File(base.getPath() + "-" + counter);
+            directory.mkdirs();
+            if (!directory.isDirectory()) {
+                throw new IOException("Log directory could not be created.");
+            }
+            lock = tryLock(directory);
+            if (lock != null) {
+                return lock;
+            }
+        }
+        throw new IOException("Every log directory is in use.");
+    }
+
+    /**
+     * Try to lock a single directory.
+     *
+     * @return The lock, or null if another process holds it.
+     */
+    private static LogLock tryLock(File directory) throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory,
+                LOCK_NAME), "rw");
+        FileLock lock = null;
+
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException oflException) {
+            //Another log in this process already has it.
+        } finally {
+            if (lock == null) {
+                lockFile.close();
+            }
+        }
+        return (lock == null) ? null : new LogLock(directory, lockFile, lock);
+    }
+
+    /**
+     * Getter for the directory that was locked.
+     *
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Release the lock so another process can use the directory.
+     */
+    public void release() {
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException ioException) {
+        }
+    }
+}
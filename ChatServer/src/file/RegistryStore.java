@@ -0,0 +1,353 @@
+package file;
+
+import model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the server's registry on disk so that a restarted server
+ * can carry on with the peers it had, instead of every peer registering
+ * again at once.
+ * <p>
+ * Every registration and removal is appended to a journal as it happens.
+ * Once the journal holds compactRecords changes, the whole registry is
+ * written to a snapshot and the journal is started again. To make that
+ * safe, a new journal file is started (named after the first version it
+ * holds) at the same moment the registry is copied, and the old journals
+ * are only deleted once the snapshot is complete. If the server stops part
+ * way through, the old snapshot and every journal are still there.
+ * <p>
+ * On startup the snapshot is read and every journal is replayed over it,
+ * skipping changes the snapshot already has. A change that was only partly
+ * written ends the replay of its journal.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class RegistryStore implements RegistryListener, Runnable {
+
+    private static final int MAGIC = 0x50325052;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final String SNAPSHOT_NAME = "snapshot.dat";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".dat";
+
+    private File directory;
+    private ServerModel model;
+    private DataOutputStream journal;
+    private File journalFile;
+    private long journalRecords = 0;
+    private int compactRecords = 10000;
+    private int checkTime = 10000;
+    private Thread compactor;
+
+    private AtomicLong written;
+    private AtomicLong snapshots;
+    private AtomicLong errors;
+
+    /**
+     * Constructor for RegistryStore.
+     *
+     * @param directory The directory that the snapshot and journals are
+     *                  kept in.
+     */
+    public RegistryStore(File directory) {
+        this.directory = directory;
+        written = new AtomicLong(0);
+        snapshots = new AtomicLong(0);
+        errors = new AtomicLong(0);
+    }
+
+    /**
+     * Set how many changes the journal holds before a snapshot is taken.
+     *
+     * @param compactRecords The number of changes.
+     */
+    public void setCompactRecords(int compactRecords) {
+        this.compactRecords = compactRecords;
+    }
+
+    /**
+     * Restore the registry saved by an earlier run into a model, then start
+     * saving every change made to it.
+     *
+     * @param model The ServerModel to restore into.
+     * @return The number of peers restored.
+     * @throws IOException If the directory or a new journal couldn't be
+     *                     created.
+     */
+    public int open(ServerModel model) throws IOException {
+        Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+        long version;
+
+        this.model = model;
+        directory.mkdirs();
+        if (!directory.isDirectory()) {
+            throw new IOException("Registry directory could not be created.");
+        }
+        version = readSnapshot(peers);
+        for (File f : journals()) {
+            version = replay(f, peers, version);
+        }
+
+        synchronized (model) {
+            model.restore(peers.values(), version);
+            startJournal(version + 1);
+            model.setListener(this);
+        }
+
+        compactor = new Thread(this, "P2P Registry Store");
+        compactor.setDaemon(true);
+        compactor.start();
+        return peers.size();
+    }
+
+    public synchronized void peerRegistered(Peer peer, long version) {
+        try {
+            journal.writeByte(ADD);
+            journal.writeLong(version);
+            journal.writeUTF(peer.getUsername());
+            journal.writeUTF(peer.getAddress());
+            journal.writeInt(peer.getPort());
+            journal.flush();
+            journalRecords++;
+            written.incrementAndGet();
+        } catch (IOException ioException) {
+            errors.incrementAndGet();
+        }
+    }
+
+    public synchronized void peerRemoved(String username, long version) {
+        try {
+            journal.writeByte(REMOVE);
+            journal.writeLong(version);
+            journal.writeUTF(username);
+            journal.flush();
+            journalRecords++;
+            written.incrementAndGet();
+        } catch (IOException ioException) {
+            errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * The store thread. Takes a snapshot whenever the journal has grown
+     * long enough.
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(checkTime);
+            } catch (InterruptedException iException) {
+                return;
+            }
+            if (getJournalRecords() >= compactRecords) {
+                try {
+                    compact();
+                } catch (IOException ioException) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the whole registry to a new snapshot and remove the journals
+     * that it replaces.
+     *
+     * @throws IOException If the snapshot couldn't be written.
+     */
+    public void compact() throws IOException {
+        List<Peer> peers;
+        long version;
+        File current;
+        File temp = new File(directory, SNAPSHOT_NAME + ".tmp");
+        DataOutputStream out;
+        FileOutputStream stream;
+
+        //Copy the registry and start a new journal at the same moment, so
+        //every later change goes into the new journal.
+        synchronized (model) {
+            peers = new ArrayList<Peer>(model.getPeers());
+            version = model.getVersion();
+            synchronized (this) {
+                startJournal(version + 1);
+                current = journalFile;
+            }
+        }
+
+        stream = new FileOutputStream(temp);
+        out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(version);
+            out.writeInt(peers.size());
+            for (Peer peer : peers) {
+                out.writeUTF(peer.getUsername());
+                out.writeUTF(peer.getAddress());
+                out.writeInt(peer.getPort());
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        File snapshot = new File(directory, SNAPSHOT_NAME);
+        //Renaming over the old snapshot replaces it in one step. Where that
+        //isn't allowed, the old one has to be removed first.
+        if (!temp.renameTo(snapshot)) {
+            snapshot.delete();
+            if (!temp.renameTo(snapshot)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        }
+        for (File f : journals()) {
+            if (f.getName().compareTo(current.getName()) < 0) {
+                f.delete();
+            }
+        }
+        snapshots.incrementAndGet();
+    }
+
+    /**
+     * Close the current journal and start a new one.
+     */
+    private synchronized void startJournal(long firstVersion)
+            throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        journalFile = new File(directory, JOURNAL_PREFIX
+                + String.format("%020d", firstVersion) + JOURNAL_SUFFIX);
+        //A journal with this name can't hold any changes that haven't
+        //been read, so it is started again from empty.
+        journal = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journalFile)));
+        journalRecords = 0;
+    }
+
+    private synchronized long getJournalRecords() {
+        return journalRecords;
+    }
+
+    /**
+     * Read the snapshot, if there is one.
+     *
+     * @return The version the snapshot was taken at, or 0.
+     */
+    private long readSnapshot(Map<String, Peer> peers) {
+        File snapshot = new File(directory, SNAPSHOT_NAME);
+        DataInputStream in;
+        long version;
+        int count;
+
+        if (!snapshot.exists()) {
+            return 0;
+        }
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(snapshot), 64 * 1024));
+            try {
+                if (in.readInt() != MAGIC) {
+                    return 0;
+                }
+                version = in.readLong();
+                count = in.readInt();
+                for (int counter = 0; counter < count; counter++) {
+                    Peer peer = new Peer(in.readUTF(), in.readUTF(),
+                            in.readInt());
+                    peers.put(peer.getUsername(), peer);
+                }
+                return version;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioException) {
+            //A snapshot is only ever renamed into place once complete.
+            errors.incrementAndGet();
+            peers.clear();
+            return 0;
+        }
+    }
+
+    /**
+     * Apply the changes in a journal that are newer than a version.
+     *
+     * @return The version after the last change applied.
+     */
+    private long replay(File f, Map<String, Peer> peers, long version) {
+        DataInputStream in;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f), 64 * 1024));
+        } catch (FileNotFoundException fnfException) {
+            return version;
+        }
+        try {
+            while (true) {
+                byte type = in.readByte();
+                long recordVersion = in.readLong();
+                String username = in.readUTF();
+                Peer peer = null;
+
+                if (type == ADD) {
+                    peer = new Peer(username, in.readUTF(), in.readInt());
+                } else if (type != REMOVE) {
+                    break;
+                }
+                if (recordVersion <= version) {
+                    continue;
+                }
+                if (peer != null) {
+                    peers.put(username, peer);
+                } else {
+                    peers.remove(username);
+                }
+                version = recordVersion;
+            }
+        } catch (IOException ioException) {
+            //The end of the journal, or a change that was only partly
+            //written when the server stopped.
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioException) {
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Get the journal files, oldest first.
+     */
+    private File[] journals() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(JOURNAL_PREFIX)
+                        && name.endsWith(JOURNAL_SUFFIX);
+            }
+        });
+
+        if (files == null) {
+            return new File[0];
+        }
+        //Journal names are zero padded so they sort in order.
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Produce a one line summary of the store's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return "registry store: journalled " + written.get() + ", snapshots "
+                + snapshots.get() + ", errors " + errors.get();
+    }
+}
@@ -0,0 +1,30 @@
+package model;
+
+/**
+ * Receives every change made to the peers in a ServerModel.
+ * <p>
+ * The methods are called while the model is locked, in the same order as
+ * the changes, so they should return quickly.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public interface RegistryListener {
+
+    /**
+     * Called when a peer has been registered.
+     *
+     * @param peer    The peer.
+     * @param version The membership version that includes the peer.
+     */
+    void peerRegistered(Peer peer, long version);
+
+    /**
+     * Called when a peer has been removed.
+     *
+     * @param username The username of the peer.
+     * @param version  The membership version without the peer.
+     */
+    void peerRemoved(String username, long version);
+}
@@ -1,10 +1,32 @@
 package model;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
  * The purpose of this class is to manage peers. Peers can be registered
  * and kept track of or deregistered in the ServerModel class.
+ * <p>
+ * The model is used by the network thread and the connections thread at
+ * the same time. Lookups by username or by address and port don't need a
+ * lock. Registering and removing peers is serialised, and anything that
+ * walks every peer is given a snapshot of the peers at a single point in
+ * time. The snapshot is only rebuilt after the peers have changed.
+ * <p>
+ * Every registration or removal increases the membership version by one.
+ * The RegistryListener is given each change with its version, which is
+ * how RegistryStore orders its journal against the last snapshot.
+ * <p>
+ * Usernames are also kept in a sorted index, ignoring case, so that a page
+ * of the usernames starting with some prefix can be found without looking
+ * at any of the others.
+ * <p>
+ * When the registry is split between several servers, the peers that other
+ * servers own are registered here as remote peers. They are kept in their
+ * own set as well, so that the peers this server owns can be told apart
+ * without working out the owner of every username.
  *
  * @author Alex
  * @version 0.2
@@ -14,23 +36,73 @@ public class ServerModel {
 
     //A hash map containing all of the peer objects
     //with the username as the key.
-    private Map<String, Peer> peerList;
+    private ConcurrentMap<String, Peer> peerList;
+    //The same peers with address:port as the key.
+    private ConcurrentMap<String, Peer> endpointIndex;
+    //The same peers sorted by nameKey(username).
+    private ConcurrentSkipListMap<String, Peer> nameIndex;
+    //The peers as they were after the last change, or null if they have
+    //changed since it was built.
+    private volatile List<Peer> snapshot;
+    //The peers owned by other servers, keyed by username.
+    private ConcurrentMap<String, Peer> remotePeers;
+    //The peers owned by this server as they were after the last change, or
+    //null if they have changed since it was built.
+    private volatile List<Peer> ownSnapshot;
+    private long version = 0;
+    private RegistryListener listener;
 
     /**
      * The constructor for the ServerModel class.
      */
     public ServerModel() {
-        peerList = new HashMap<String, Peer>();
+        peerList = new ConcurrentHashMap<String, Peer>();
+        endpointIndex = new ConcurrentHashMap<String, Peer>();
+        nameIndex = new ConcurrentSkipListMap<String, Peer>();
+        remotePeers = new ConcurrentHashMap<String, Peer>();
     }
 
     /**
      * Used to register a peer with the server and add to the map holding
      * the peer data.
      *
-     * @param peer The peer Object for the peer that is being registered.
+     * @param newPeer The peer Object for the peer that is being registered.
+     * @return True if the peer was registered, false if the username is
+     * already in use.
      */
-    public void registerPeer(Peer newPeer) {
-        peerList.put(newPeer.getUsername(), newPeer);
+    public boolean registerPeer(Peer newPeer) {
+        return registerPeer(newPeer, false);
+    }
+
+    /**
+     * Register a peer that another server owns.
+     *
+     * @param newPeer The peer Object for the peer that is being registered.
+     * @return True if the peer was registered, false if the username is
+     * already in use.
+     */
+    public boolean registerRemotePeer(Peer newPeer) {
+        return registerPeer(newPeer, true);
+    }
+
+    private synchronized boolean registerPeer(Peer newPeer, boolean remote) {
+        if (peerList.putIfAbsent(newPeer.getUsername(), newPeer) != null) {
+            return false;
+        }
+        endpointIndex.put(endpointKey(newPeer.getAddress(),
+                newPeer.getPort()), newPeer);
+        nameIndex.put(nameKey(newPeer.getUsername()), newPeer);
+        if (remote) {
+            remotePeers.put(newPeer.getUsername(), newPeer);
+        } else {
+            ownSnapshot = null;
+        }
+        snapshot = null;
+        version++;
+        if (listener != null) {
+            listener.peerRegistered(newPeer, version);
+        }
+        return true;
     }
 
     /**
@@ -39,8 +111,71 @@ public class ServerModel {
      *
      * @param username The username of the peer that is being deregistered.
      */
-    public void removePeer(String username) {
-        peerList.remove(username);
+    public synchronized void removePeer(String username) {
+        Peer peer;
+
+        if (username == null) {
+            return;
+        }
+        peer = peerList.remove(username);
+        if (peer == null) {
+            return;
+        }
+        //Only remove the endpoint if it hasn't been taken by another peer.
+        endpointIndex.remove(endpointKey(peer.getAddress(), peer.getPort()),
+                peer);
+        nameIndex.remove(nameKey(username));
+        if (remotePeers.remove(username) == null) {
+            ownSnapshot = null;
+        }
+        snapshot = null;
+        version++;
+        if (listener != null) {
+            listener.peerRemoved(username, version);
+        }
+    }
+
+    /**
+     * Set the listener that is told about every change to the peers.
+     *
+     * @param listener The listener, or null for none.
+     */
+    public synchronized void setListener(RegistryListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Replace the peers with ones saved by an earlier run. They are all
+     * taken to be owned by this server. The listener isn't told about
+     * these.
+     *
+     * @param peers           The peers.
+     * @param restoredVersion The membership version they were saved at.
+     */
+    public synchronized void restore(Collection<Peer> peers,
+                                     long restoredVersion) {
+        peerList.clear();
+        endpointIndex.clear();
+        nameIndex.clear();
+        remotePeers.clear();
+        for (Peer peer : peers) {
+            peerList.put(peer.getUsername(), peer);
+            nameIndex.put(nameKey(peer.getUsername()), peer);
+            endpointIndex.put(endpointKey(peer.getAddress(), peer.getPort()),
+                    peer);
+        }
+        version = restoredVersion;
+        snapshot = null;
+        ownSnapshot = null;
+    }
+
+    /**
+     * Getter for the membership version.
+     *
+     * @return The number of changes made to the peers.
+     */
+    public synchronized long getVersion() {
+        return version;
     }
 
 	/*
@@ -61,51 +196,175 @@ public class ServerModel {
     }
 
     /**
-     * Returns a collection view of all of the peer data stored in the peers Map structure. Peers can be
-     * removed from the collection and these changes will be reflected in the map.
+     * Returns a snapshot of all of the peers. The snapshot doesn't change
+     * when peers are registered or removed afterwards, so it can be walked
+     * safely while that happens.
      *
-     * @return The collection object.
+     * @return The read only collection of peers.
      */
     public Collection<Peer> getPeers() {
-        return peerList.values();
+        List<Peer> peers = snapshot;
+
+        if (peers != null) {
+            return peers;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = Collections.unmodifiableList(
+                        new ArrayList<Peer>(peerList.values()));
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Returns a snapshot of the peers owned by this server, leaving out the
+     * remote peers registered for other servers. Like getPeers(), it
+     * doesn't change afterwards.
+     *
+     * @return The read only collection of peers.
+     */
+    public Collection<Peer> getOwnPeers() {
+        List<Peer> peers = ownSnapshot;
+
+        if (peers != null) {
+            return peers;
+        }
+        synchronized (this) {
+            if (ownSnapshot == null) {
+                List<Peer> own = new ArrayList<Peer>();
+
+                for (Peer peer : peerList.values()) {
+                    if (!remotePeers.containsKey(peer.getUsername())) {
+                        own.add(peer);
+                    }
+                }
+                ownSnapshot = Collections.unmodifiableList(own);
+            }
+            return ownSnapshot;
+        }
     }
 
     /**
      * Getter for the peer list.
      *
-     * @return A Map structure containing the listed peer information.
+     * @return A read only Map structure containing the listed peer
+     * information, keyed by username.
      */
     public Map<String, Peer> getPeerList() {
-        return peerList;
+        return Collections.unmodifiableMap(peerList);
+    }
+
+    /**
+     * Get the number of registered peers.
+     *
+     * @return The number of peers.
+     */
+    public int getPeerCount() {
+        return peerList.size();
+    }
+
+    /**
+     * Find a page of the peers whose usernames start with a prefix, in
+     * alphabetical order ignoring case.
+     *
+     * @param prefix The prefix, which is matched ignoring case. An empty
+     *               prefix matches every peer.
+     * @param after  The last username of the previous page, or an empty
+     *               string for the first page.
+     * @param limit  The most peers to return.
+     * @return The peers on the page.
+     */
+    public List<Peer> searchPeers(String prefix, String after, int limit) {
+        List<Peer> page = new ArrayList<Peer>();
+        String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+        NavigableMap<String, Peer> following;
+
+        if (after.isEmpty()) {
+            following = nameIndex.tailMap(lowerPrefix, true);
+        } else {
+            following = nameIndex.tailMap(nameKey(after), false);
+        }
+        for (Map.Entry<String, Peer> entry : following.entrySet()) {
+            if ((page.size() >= limit)
+                    || !entry.getKey().startsWith(lowerPrefix)) {
+                break;
+            }
+            page.add(entry.getValue());
+        }
+        return page;
+    }
+
+    /**
+     * Describe a peer in the form used in peer lists.
+     *
+     * @param peer The peer.
+     * @return The string username;address;port
+     */
+    public static String peerDetails(Peer peer) {
+        return peer.getUsername() + ";" + peer.getAddress() + ";"
+                + peer.getPort();
     }
 
     /**
-     * Used to retrieve an ArrayList of Strings containing information about
-     * all the peers in the peer list.
-     * Each string in the returned ArrayList represents one peer's information
-     * and is given in the form:
-     * username;address;port
+     * Find the peer with a username. If there is no exact match, the first
+     * username that only differs in case is used.
      *
-     * @return The ArrayList of peer strings.
+     * @param username The username of the peer.
+     * @return The peer, or null if there isn't one.
      */
-    public List<String> getPeersList() {
-        List<String> newList = new ArrayList<String>();
+    public Peer findPeer(String username) {
+        Peer peer = peerList.get(username);
+        Map.Entry<String, Peer> entry;
 
-        for (Peer peer : peerList.values()) {
-            newList.add(peer.getUsername() + ";" +
-                    peer.getAddress() + ";" + peer.getPort());
+        if (peer != null) {
+            return peer;
+        }
+        entry = nameIndex.ceilingEntry(username.toLowerCase(Locale.ROOT)
+                + "\u0000");
+        if ((entry != null)
+                && entry.getValue().getUsername().equalsIgnoreCase(username)) {
+            return entry.getValue();
         }
+        return null;
+    }
 
-        return newList;
+    /**
+     * Find the peer using a given address and port.
+     *
+     * @param address The address of the peer.
+     * @param port    The port of the peer.
+     * @return The peer, or null if there isn't one.
+     */
+    public Peer findPeer(String address, int port) {
+        return endpointIndex.get(endpointKey(address, port));
     }
 
+    /**
+     * Find the username of the peer using a given address and port.
+     *
+     * @param address The address of the peer.
+     * @param port    The port of the peer.
+     * @return The username, or "User not found".
+     */
     public String findUsername(String address, int port) {
-        for (Peer peer : peerList.values()) {
-            if (peer.getAddress().equalsIgnoreCase(address) &&
-                    peer.getPort() == port) {
-                return peer.getUsername();
-            }
+        Peer peer = findPeer(address, port);
+
+        if (peer != null) {
+            return peer.getUsername();
         }
         return "User not found";
     }
+
+    /**
+     * The key a username is sorted by. Usernames that only differ in case
+     * are kept apart by the original username after the lower case one.
+     */
+    private static String nameKey(String username) {
+        return username.toLowerCase(Locale.ROOT) + "\u0000" + username;
+    }
+
+    private static String endpointKey(String address, int port) {
+        return address.toLowerCase(Locale.ROOT) + ":" + port;
+    }
 }
@@ -11,5 +11,6 @@ public interface CommManager {
 	int getServerPort();
 	List<String> receivePacket() throws IOException, ClassNotFoundException;
 	int sendPacket(String rcvAddress, int rcvPort, String header, List<String> contents) throws IOException;
+	int sendUnreliablePacket(String rcvAddress, int rcvPort, String header, List<String> contents) throws IOException;
 	void clearMsgCache();
 }
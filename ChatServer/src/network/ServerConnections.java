@@ -5,14 +5,26 @@ import view.*;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class handles the constant communication to connected to peers to
  * verify that they are alive and haven't been terminated without
  * deregistering.
+ * <p>
+ * Each peer holds a lease on its registration, which it renews by sending a
+ * LEASE_RENEW twice per lease time. Renewals are sent unreliably, so they
+ * cost one small packet and nothing else. Any other packet from a peer
+ * renews its lease too. The server never probes peers. It only keeps the
+ * expiry of each lease in a TimingWheel, and a peer whose lease runs out is
+ * removed. If a removed peer is still running, its next renewal registers
+ * it again (see ServerNetwork.renewLease()). A peer that deregisters is
+ * remembered for a lease time, so that a renewal it sent before the
+ * DEREGISTER and which arrives after it doesn't register it again.
  *
  * @author Alex
- * @version 0.2
+ * @version 0.4
  * @since 0.2
  */
 public class ServerConnections implements Runnable {
@@ -20,16 +32,23 @@ public class ServerConnections implements Runnable {
     private ServerModel model;
     private ServerConsole console;
     private ServerNetwork network;
-    private Map<String, Boolean> checkList = new HashMap<String, Boolean>();
-    private int lifeCheckTime = 60000; //The time in milliseconds that the server
-    //before checking for life again.
-    private int replyTime = 30000; //The time in milliseconds that the server allows
-    //the peers to reply within to confirm life.
+    private ConcurrentMap<String, Liveness> checkList =
+            new ConcurrentHashMap<String, Liveness>();
+    private TimingWheel<String> deadlines;
+    //When each address and port that has deregistered did so.
+    private ConcurrentMap<String, Long> deregistered =
+            new ConcurrentHashMap<String, Long>();
+    private int leaseTime = 30000; //The time in milliseconds that a peer
+    //stays registered for after it was last heard from.
+    private int tickTime = 500; //How often in milliseconds the deadlines are
+    //checked.
 
     /**
      * The constructor for the ServerConnections class.
      */
     public ServerConnections() {
+        deadlines = new TimingWheel<String>(tickTime, 256,
+                System.currentTimeMillis());
     }
 
     /**
@@ -63,23 +82,72 @@ public class ServerConnections implements Runnable {
     }
 
     /**
-     * Confirm that a certain user is alive to the latest life check.
+     * Getter for the length of a lease, which is sent to each peer when it
+     * registers so that it knows how often to renew.
      *
-     * @param username The username of the alive client.
+     * @return The lease time in milliseconds.
      */
-    public void confirmLife(String username) {
-        checkList.put(username, true);
+    public int getLeaseTime() {
+        return leaseTime;
     }
 
-    //This method attempts to check peer life every 30 seconds.
+    /**
+     * Start watching a peer that has just registered.
+     *
+     * @param peer The peer.
+     */
+    public void track(Peer peer) {
+        long now = System.currentTimeMillis();
+
+        checkList.put(peer.getUsername(), new Liveness(peer, now));
+        deadlines.schedule(peer.getUsername(), now + leaseTime);
+        deregistered.remove(endpoint(peer.getAddress(), peer.getPort()));
+    }
 
     /**
-     * This run method constantly checks for peer life every 30 seconds.
+     * Remember that a peer has deregistered, so that renewals from it which
+     * arrive late are ignored.
+     *
+     * @param address The address of the peer.
+     * @param port    The port of the peer.
      */
-    public void run() {
-        Boolean tempCheck;
-        boolean disconnections = false;
+    public void deregistered(String address, int port) {
+        deregistered.put(endpoint(address, port), System.currentTimeMillis());
+    }
+
+    /**
+     * Whether a peer at an address and port has deregistered within the
+     * last lease time.
+     *
+     * @param address The address.
+     * @param port    The port.
+     * @return True if it has.
+     */
+    public boolean hasDeregistered(String address, int port) {
+        Long time = deregistered.get(endpoint(address, port));
 
+        return time != null && time + leaseTime > System.currentTimeMillis();
+    }
+
+    /**
+     * Record that something has been heard from a peer, renewing its lease.
+     * This is called for every packet, so it only notes the time. The
+     * lease's expiry is moved when it comes up.
+     *
+     * @param username The username of the peer.
+     */
+    public void heardFrom(String username) {
+        Liveness liveness = checkList.get(username);
+
+        if (liveness != null) {
+            liveness.lastHeard = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * This run method checks the leases that have come up every tick.
+     */
+    public void run() {
         //Allow network to print details without being interrupted.
         try {
             Thread.sleep(1000);
@@ -87,88 +155,90 @@ public class ServerConnections implements Runnable {
             console.printError("Connection delay interrupted.");
         }
 
-        //Check life of every peer every 30 seconds.
         while (true) {
-            disconnections = false;
-            checkList.clear();
-
-            //Recreate check list.
-            for (Peer peer : model.getPeers()) {
-                checkList.put(peer.getUsername(), false);
+            try {
+                Thread.sleep(tickTime);
+            } catch (InterruptedException iException) {
+                console.printError("Check life routine interrupted.");
+                return;
             }
-
-            console.printMessage("ATTEMPTING LIFE CHECK.");
-
-            //If there are no peers then don't bother.
-            if (checkList.isEmpty()) {
-                try {
-                    console.printMessage("NO PEERS CONNECTED.");
-                    Thread.sleep(lifeCheckTime);
-                } catch (InterruptedException iException) {
-                    console.printError("Check life routine interrupted.");
-                }
-                continue;
+            for (String username : deadlines.advance(System.currentTimeMillis())) {
+                checkPeer(username);
             }
+            forgetDeregistrations();
+        }
+    }
 
-            checkLife();
+    /**
+     * Forget the peers that deregistered more than a lease time ago.
+     */
+    private void forgetDeregistrations() {
+        long now = System.currentTimeMillis();
 
-            try {
-                //Sleep for 1 minute.
-                console.printMessage("WAITING FOR LIFE VERIFICATIONS.");
-                //Give some time for peers to actually send back their
-                //verifications.
-                Thread.sleep(replyTime);
-                console.printMessage("FINISHED WAITING FOR LIFE VERIFICATIONS");
-
-                //Check for any entries that are still listed as false
-                //and remove them.
-                Map<String, Peer> fullMap = new HashMap<String, Peer>();
-                fullMap.putAll(model.getPeerList());
-                for (Peer peer : fullMap.values()) {
-                    tempCheck = checkList.get(peer.getUsername());
-                    //Means that the peer is not new and has not responded.
-                    //Dead peer.
-                    if (tempCheck == false) {
-                        model.removePeer(peer.getUsername());
-                        console.lifeFail(peer.getUsername(), peer.getAddress(),
-                                peer.getPort());
-                        List<String> contents = new ArrayList<String>();
-                        contents.add(peer.getUsername());
-                        network.notifyPresentationServer("PRES_DEATH", contents);
-                        disconnections = true;
-                    }
-                }
-
-                //If we've had any dead peers then we need to redistribute the
-                //new peer list without that peer.
-                if (disconnections) {
-                    network.distributePeerLists();
-                }
-
-                Thread.sleep(lifeCheckTime);
-            } catch (InterruptedException iException) {
-                console.printError("Check life routine interrupted.");
+        for (Iterator<Long> it = deregistered.values().iterator();
+             it.hasNext(); ) {
+            if (it.next() + leaseTime <= now) {
+                it.remove();
             }
         }
     }
 
     /**
-     * Method to send a life check packet to every user on the current peer
-     * list.
+     * The key for a peer's address and port.
      */
-    public void checkLife() {
-        String peerAddress;
-        int peerPort;
-        List<String> packetData;
-
-        for (Peer peer : model.getPeers()) {
-            packetData = new ArrayList<String>();
-            peerAddress = peer.getAddress();
-            peerPort = peer.getPort();
-            network.addData("LIFE_CHECK", packetData,
-                    peerAddress, peerPort);
-            console.lifeCheck(peer.getUsername(), peerAddress,
-                    peerPort);
+    private static String endpoint(String address, int port) {
+        return address + ":" + port;
+    }
+
+    /**
+     * Deal with a peer whose lease has come up. If it has been renewed
+     * since, its expiry is moved back, and otherwise the peer is removed.
+     *
+     * @param username The username of the peer.
+     */
+    private void checkPeer(String username) {
+        Liveness liveness = checkList.get(username);
+        long now = System.currentTimeMillis();
+        long lastHeard;
+
+        if (liveness == null) {
+            return;
+        }
+        //Stop watching peers that have deregistered or been replaced by a
+        //new registration.
+        if (model.getPeerList().get(username) != liveness.peer) {
+            checkList.remove(username, liveness);
+            return;
+        }
+        lastHeard = liveness.lastHeard;
+
+        if (lastHeard + leaseTime > now) {
+            //The lease has been renewed since its expiry was set.
+            deadlines.schedule(username, lastHeard + leaseTime);
+        } else {
+            //Dead peer.
+            checkList.remove(username, liveness);
+            model.removePeer(username);
+            console.lifeFail(username, liveness.peer.getAddress(),
+                    liveness.peer.getPort());
+            List<String> contents = new ArrayList<String>();
+            contents.add(username);
+            network.notifyPresentationServer("PRES_DEATH", contents);
+            //Tell the other shards that this one has gone.
+            network.peerRemoved(username);
+        }
+    }
+
+    /**
+     * What is known about whether a single peer is alive.
+     */
+    private static class Liveness {
+        Peer peer;
+        volatile long lastHeard;
+
+        Liveness(Peer peer, long lastHeard) {
+            this.peer = peer;
+            this.lastHeard = lastHeard;
         }
     }
 
@@ -24,9 +24,13 @@ public class ServerNetwork extends Thread{
 	private ServerModel model;
 	private CommManager comm;
 	private ServerConnections connection;
+	private ShardCoordinator shards;
 	private FileManager file;
+	private RegistryStore store;
 	
 	private static String threadName = "P2P Server";
+	//The most peers sent in one directory page.
+	private static final int DIRECTORY_PAGE_LIMIT = 50;
 	private String serverAddress;
 	private int serverPort;
 	private String presAddress;
@@ -35,6 +39,20 @@ public class ServerNetwork extends Thread{
 	private String method = "UDP";
 	private String encryption = "N/A";
 	private boolean presSet = false;
+	private TelemetryExporter telemetry;
+	private TelemetryAggregator aggregator;
+	private boolean forwardPackets = false;
+	private StripedExecutor workers;
+	private boolean printPackets = false;
+	//SimpleDateFormat isn't thread safe, so each worker has its own.
+	private static final ThreadLocal<SimpleDateFormat> dateFormat = 
+			new ThreadLocal<SimpleDateFormat>()
+	{
+		protected SimpleDateFormat initialValue()
+		{
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		}
+	};
 	
 	/**
 	 * The constructor for the ServerNetwork class.
@@ -44,6 +62,40 @@ public class ServerNetwork extends Thread{
 	{
 		super(threadName);
 		isRunning = true;
+		telemetry = new TelemetryExporter(10000);
+		aggregator = new TelemetryAggregator();
+		workers = new StripedExecutor("P2P Server Worker", 
+				Runtime.getRuntime().availableProcessors(), 1024);
+	}
+	
+	/**
+	 * Set the number of threads that handle received packets. Only has an 
+	 * effect before the server starts.
+	 * @param workerCount The number of worker threads.
+	 */
+	public void setWorkerCount(int workerCount)
+	{
+		workers = new StripedExecutor("P2P Server Worker", workerCount, 1024);
+	}
+	
+	/**
+	 * Set whether every received packet is printed to standard output.
+	 * @param printPackets True to print packets.
+	 */
+	public void setPrintPackets(boolean printPackets)
+	{
+		this.printPackets = printPackets;
+	}
+	
+	/**
+	 * Set whether a record of every received packet is forwarded to the 
+	 * presentation server, as well as the summary sent every interval. 
+	 * This is meant for debugging, as it costs far more than the summary.
+	 * @param forwardPackets True to forward every packet.
+	 */
+	public void setForwardPackets(boolean forwardPackets)
+	{
+		this.forwardPackets = forwardPackets;
 	}
 	
 	/**
@@ -88,6 +140,16 @@ public class ServerNetwork extends Thread{
 		this.file = file;
 	}
 	
+	/**
+	 * Method to pass a reference to the registry store to the network 
+	 * class. Without one the registry isn't saved.
+	 * @param store The RegistryStore Object that is being passed in.
+	 */
+	public void initStore(RegistryStore store)
+	{
+		this.store = store;
+	}
+	
 	/**
 	 * Returns the IP address of the local host. If host is unknown, 
 	 * UnknownHostException will be thrown.
@@ -136,6 +198,8 @@ public class ServerNetwork extends Thread{
 	public void initComm(CommManager comm)
 	{
 		this.comm = comm;
+		telemetry.initComm(comm);
+		aggregator.initComm(comm);
 	}
 	
 	/**
@@ -148,6 +212,16 @@ public class ServerNetwork extends Thread{
 		this.connection = connection;
 	}
 	
+	/**
+	 * Method to pass a reference to the shard coordinator to the network
+	 * class.
+	 * @param shards The ShardCoordinator Object that is being passed in.
+	 */
+	public void initShards(ShardCoordinator shards)
+	{
+		this.shards = shards;
+	}
+	
 	/**
 	 * This thread's run method. Loops constantly attempting to receive packets 
 	 * and either register or deregister users with this information. 
@@ -156,9 +230,10 @@ public class ServerNetwork extends Thread{
 	 * After removing the packet tag, this method deduces what kind of 
 	 * request the packet is for.
 	 * <p>
-	 * Whether the packet is telling the server about a registration or 
-	 * deregistration, the server will then go through the peer list and 
-	 * send an updated peer list to every peer.
+	 * Peers aren't sent the peer list or told about registrations and 
+	 * deregistrations. Instead a peer asks for the details of a single peer 
+	 * with PEER_LOOKUP when it needs them, and searches the usernames a page 
+	 * at a time with DIRECTORY_QUERY.
 	 */
 	public void run()
 	{	
@@ -174,6 +249,7 @@ public class ServerNetwork extends Thread{
 		}
 		
 		file.initFile();
+		restoreRegistry();
 		
 		/*
 		if(!getPresState())
@@ -182,23 +258,73 @@ public class ServerNetwork extends Thread{
 		}
 		*/
 		new Thread(connection).start();
+		if(shards.isSharded())
+		{
+			new Thread(shards, "P2P Shards").start();
+		}
 		
+		workers.start();
+		Thread summaries = new Thread(aggregator, "P2P Telemetry Summary");
+		summaries.setDaemon(true);
+		summaries.start();
 		while(isRunning)
 		{
 			netRoutine();
 		}
 	}
 	
+	/**
+	 * Restore the peers saved by the last run. Each restored peer is given 
+	 * a fresh lease, so the ones that are still running carry on as they 
+	 * were and the rest are removed once that lease runs out. Peers that 
+	 * belong to other shards are dropped, since those shards will send them 
+	 * again.
+	 */
+	private void restoreRegistry()
+	{
+		long start = System.currentTimeMillis();
+		int restored;
+		
+		if(store == null)
+		{
+			return;
+		}
+		try
+		{
+			restored = store.open(model);
+		}
+		catch(IOException ioException)
+		{
+			console.printError("The registry could not be restored.");
+			return;
+		}
+		for(Peer peer : model.getPeers())
+		{
+			if(shards.ownerOf(peer.getUsername()) == null)
+			{
+				connection.track(peer);
+			}
+			else
+			{
+				model.removePeer(peer.getUsername());
+			}
+		}
+		console.printMessage("RESTORED " + restored + " PEERS IN " + 
+				(System.currentTimeMillis() - start) + " MS.");
+	}
+	
+	/**
+	 * Receive a single packet and hand it to a worker. Packets that change 
+	 * the registration of a username are always given to the same worker 
+	 * for that username, so they are handled in the order they arrived. 
+	 * Everything else is spread by the address and port it came from.
+	 */
 	public void netRoutine()
 	{
-		List<String> packetContents;
+		final List<String> packetContents;
 		String packetTag;
-		String clientAddress;
-		int clientPort;
-		String clientUsername;
-		String time;
-		int size;
-		String transTime = null;
+		String key;
+		int length;
 		
 		try
 		{
@@ -216,17 +342,81 @@ public class ServerNetwork extends Thread{
 			return;
 		}
 		
-		System.out.println(packetContents);
-		packetTag = packetContents.remove(0);
+		if(printPackets)
+		{
+			System.out.println(packetContents);
+		}
+		packetTag = packetContents.get(0);
 		if(packetTag.equalsIgnoreCase("RCV_CONFIRM"))
 		{
 			return;
 		}
+		length = packetContents.size();
+		if(isUsernameTag(packetTag) && (length > 7))
+		{
+			key = packetContents.get(1);
+		}
+		else
+		{
+			//The address and port come just before the size.
+			key = packetContents.get(length-3) + ":" + 
+					packetContents.get(length-2);
+		}
+		
+		try
+		{
+			workers.execute(key, new Runnable()
+			{
+				public void run()
+				{
+					handlePacket(packetContents);
+				}
+			});
+		}
+		catch(InterruptedException iException)
+		{
+			console.printError("Packet handling interrupted.");
+			isRunning = false;
+		}
+	}
+	
+	/**
+	 * Check whether a packet tag is one whose first field is the username 
+	 * that it registers, deregisters or renews.
+	 */
+	private static boolean isUsernameTag(String packetTag)
+	{
+		return packetTag.equalsIgnoreCase("REGISTER") || 
+				packetTag.equalsIgnoreCase("DEREGISTER") || 
+				packetTag.equalsIgnoreCase("LEASE_RENEW") || 
+				packetTag.equalsIgnoreCase("LIFE_CONFIRM");
+	}
+	
+	/**
+	 * Handle a received packet. This runs on a worker thread, so it only 
+	 * uses what is in the packet and parts of the server that are safe to 
+	 * use from several threads at once.
+	 * @param packetContents The packet, starting with its tag.
+	 */
+	public void handlePacket(List<String> packetContents)
+	{
+		String packetTag;
+		String clientAddress;
+		int clientPort;
+		String clientUsername;
+		String time;
+		String packetMethod;
+		String packetEncryption;
+		int size;
+		String transTime = null;
+		long latency = -1;
+		
+		packetTag = packetContents.remove(0);
 		size = Integer.parseInt(packetContents.remove(packetContents.size()-1));
 		clientPort = Integer.parseInt(packetContents.remove(packetContents.size()-1));
 		clientAddress = packetContents.remove(packetContents.size()-1);
-		encryption = packetContents.remove(packetContents.size()-1);
-		method = packetContents.remove(packetContents.size()-1);
+		packetEncryption = packetContents.remove(packetContents.size()-1);
+		packetMethod = packetContents.remove(packetContents.size()-1);
 		time = packetContents.remove(packetContents.size()-1);
 		
 		if(clientAddress.equalsIgnoreCase("127.0.0.1"))
@@ -238,6 +428,8 @@ public class ServerNetwork extends Thread{
 		}
 		
 		clientUsername = model.findUsername(clientAddress, clientPort);
+		//Any packet from a peer, including LEASE_RENEW, renews its lease.
+		connection.heardFrom(clientUsername);
 		
 		if(packetTag.equalsIgnoreCase("REGISTER"))
 		{
@@ -248,9 +440,33 @@ public class ServerNetwork extends Thread{
 		{
 			deregister(clientUsername, clientAddress, clientPort);
 		}
+		else if(packetTag.equalsIgnoreCase("LEASE_RENEW"))
+		{
+			renewLease(packetContents.get(0), clientUsername, clientAddress, 
+					clientPort);
+		}
+		else if(packetTag.equalsIgnoreCase("SHARD_CHANGES"))
+		{
+			shards.receiveChanges(packetContents);
+		}
+		else if(packetTag.equalsIgnoreCase("SHARD_SYNC_REQUEST"))
+		{
+			shards.receiveSyncRequest(packetContents);
+		}
+		else if(packetTag.equalsIgnoreCase("SHARD_SUMMARY"))
+		{
+			shards.receiveSummary(packetContents);
+		}
+		else if(packetTag.equalsIgnoreCase("PEER_LOOKUP"))
+		{
+			lookupPeer(packetContents, clientAddress, clientPort);
+		}
+		else if(packetTag.equalsIgnoreCase("DIRECTORY_QUERY"))
+		{
+			sendDirectoryPage(packetContents, clientAddress, clientPort);
+		}
 		else if(packetTag.equalsIgnoreCase("LIFE_CONFIRM"))
 		{
-			connection.confirmLife(clientUsername);
 			console.lifeVerified(clientUsername, clientAddress, 
 					clientPort);
 		}
@@ -258,25 +474,34 @@ public class ServerNetwork extends Thread{
 		//Calculating transmission time.
 		//Add date string to packet.
 		Date currentDate = new Date();
-		SimpleDateFormat dateFormat = new SimpleDateFormat
-						("yyyy-MM-dd HH:mm:ss.SSS");
 		try {
-			Date sendDate = dateFormat.parse(time);
-			dateFormat.format(currentDate);
-			transTime = Long.toString(currentDate.getTime() - sendDate.getTime());
+			Date sendDate = dateFormat.get().parse(time);
+			latency = currentDate.getTime() - sendDate.getTime();
+			transTime = Long.toString(latency);
 		} catch (ParseException e) {
 			transTime = "N/A";
 		}
 		
 		
-		file.storeMessage(time, packetTag, method, encryption, 
-				clientUsername, clientAddress, Integer.toString(clientPort)
-				, "SERVER", serverAddress, 
-				Integer.toString(serverPort), 
-				packetContents, Integer.toString(size), transTime);
-		forward(time, packetTag, method, encryption, 
-				clientUsername, clientAddress, Integer.toString(clientPort),
-				packetContents, Integer.toString(size), transTime);
+		//Every peer renews its lease twice per lease time, so renewals are 
+		//only counted in the telemetry summary and not logged.
+		if(!packetTag.equalsIgnoreCase("LEASE_RENEW"))
+		{
+			file.storeMessage(time, packetTag, packetMethod, packetEncryption, 
+					clientUsername, clientAddress, 
+					Integer.toString(clientPort), "SERVER", serverAddress, 
+					Integer.toString(serverPort), 
+					packetContents, Integer.toString(size), transTime);
+		}
+		aggregator.record(packetTag, clientUsername, clientAddress, 
+				clientPort, size, latency);
+		if(forwardPackets)
+		{
+			forward(time, packetTag, packetMethod, packetEncryption, 
+					clientUsername, clientAddress, 
+					Integer.toString(clientPort), packetContents, 
+					Integer.toString(size), transTime);
+		}
 	}
 	
 	public void setPresState(boolean state)
@@ -290,25 +515,106 @@ public class ServerNetwork extends Thread{
 	}
 	
 	/**
-	 * Cycle through the list of peers and send an updated version of the 
-	 * peer list to each one.
+	 * Answer a PEER_LOOKUP. A peer asks for another peer either by USERNAME, 
+	 * followed by the username, or by ENDPOINT, followed by the address and 
+	 * port. The reply is a PEER_INFO holding the lookup followed by the 
+	 * peer information, which is left out if there is no such peer.
+	 * @param lookup The contents of the PEER_LOOKUP.
+	 * @param peerAddress The address of the peer asking.
+	 * @param peerPort The port of the peer asking.
 	 */
-	public void distributePeerLists()
+	public void lookupPeer(List<String> lookup, String peerAddress, 
+			int peerPort)
 	{
-		String peerAddress;
-		int peerPort;
-		List<String> packetData;
-		int length=0;
+		List<String> packetData = new ArrayList<String>(lookup);
+		Peer peer = null;
+		String address;
 		
-		for(Peer peer : model.getPeers())
+		if(lookup.get(0).equalsIgnoreCase("USERNAME"))
+		{
+			peer = model.findPeer(lookup.get(1));
+		}
+		else if(lookup.get(0).equalsIgnoreCase("ENDPOINT"))
 		{
-			packetData = model.getPeersList();
-			peerAddress = peer.getAddress();
-			peerPort = peer.getPort();
-			length = addData("PEER_LIST", packetData,
-					peerAddress, peerPort);
-			console.peerList(peer.getUsername(), peerAddress, peerPort);
+			//Peers on this machine are registered under its address.
+			address = lookup.get(1);
+			if(address.equalsIgnoreCase("127.0.0.1"))
+			{
+				try {
+					address = comm.getServerAddress();
+				} catch (UnknownHostException e) {
+				}
+			}
+			peer = model.findPeer(address, Integer.parseInt(lookup.get(2)));
 		}
+		if(peer != null)
+		{
+			packetData.add(ServerModel.peerDetails(peer));
+		}
+		addData("PEER_INFO", packetData, peerAddress, peerPort);
+	}
+	
+	/**
+	 * Answer a directory query with one page of the peers whose usernames 
+	 * start with a prefix. The query holds the prefix, the last username of 
+	 * the previous page (empty for the first page) and the most peers 
+	 * wanted. The page holds the prefix and last username from the query, 
+	 * whether there are more peers after the page, and then each peer's 
+	 * information.
+	 * @param query The query's contents.
+	 * @param peerAddress The address of the peer.
+	 * @param peerPort The port of the peer.
+	 */
+	public void sendDirectoryPage(List<String> query, String peerAddress, 
+			int peerPort)
+	{
+		List<String> page = new ArrayList<String>();
+		List<Peer> found;
+		String prefix = (query.size() > 0) ? query.get(0) : "";
+		String after = (query.size() > 1) ? query.get(1) : "";
+		int limit = DIRECTORY_PAGE_LIMIT;
+		
+		if(query.size() > 2)
+		{
+			try
+			{
+				limit = Math.max(1, Math.min(limit, 
+						Integer.parseInt(query.get(2))));
+			}
+			catch(NumberFormatException nfException)
+			{
+			}
+		}
+		//One extra peer is looked up to tell whether there is another page.
+		found = model.searchPeers(prefix, after, limit + 1);
+		page.add(prefix);
+		page.add(after);
+		page.add(Boolean.toString(found.size() > limit));
+		for(int counter = 0; counter < Math.min(limit, found.size()); 
+				counter++)
+		{
+			page.add(ServerModel.peerDetails(found.get(counter)));
+		}
+		addData("DIRECTORY_PAGE", page, peerAddress, peerPort);
+	}
+	
+	/**
+	 * Note that a peer has registered here, so the other shards are told.
+	 * @param newPeer The peer that registered.
+	 */
+	public void peerAdded(Peer newPeer)
+	{
+		shards.peerChanged("PEER_ADD", newPeer.getUsername(), 
+				ServerModel.peerDetails(newPeer));
+	}
+	
+	/**
+	 * Note that a peer has gone from here, so the other shards are told.
+	 * @param username The username of the peer that has gone.
+	 */
+	public void peerRemoved(String username)
+	{
+		shards.peerChanged("PEER_REMOVE", username, username);
 	}
 	
 	/**
@@ -316,34 +622,73 @@ public class ServerNetwork extends Thread{
 	 * @param clientUsername The username of the client.
 	 * @param clientAddress The IP address of the client.
 	 * @param clientPort The port of the client.
-	 * @return
+	 * @return False if the client was sent on to another server, otherwise 
+	 * true.
 	 */
 	public boolean register(String clientUsername, String clientAddress, 
 			int clientPort)
 	{
 		Peer newPeer;
 		List<String> packetData = new ArrayList<String>();
-		int length;
+		String owner;
 		
 		console.request(clientUsername, clientAddress, clientPort);
+		
+		//Send the client on to the server that owns its username.
+		owner = shards.ownerOf(clientUsername);
+		if(owner != null)
+		{
+			packetData.add(ShardRing.addressOf(owner));
+			packetData.add(Integer.toString(ShardRing.portOf(owner)));
+			addData("REGISTRATION_REDIRECT", packetData, clientAddress, 
+					clientPort);
+			return false;
+		}
 
-			if(model.usernameAvailable(clientUsername))
-			{
-				length = addData("REGISTRATION_SUCCESS", 
-						packetData, clientAddress, clientPort);
-				newPeer = new Peer(clientUsername, clientAddress, clientPort);
-				model.registerPeer(newPeer);
-				console.registerPeer(clientUsername, clientAddress, 
-						clientPort);
-				distributePeerLists();
-			}
-			else
-			{
-				packetData.add("Username already in use.");
-				length = addData("ERROR", packetData,
-						clientAddress, clientPort);
-			}
-			return true;
+		newPeer = new Peer(clientUsername, clientAddress, clientPort);
+		if(model.registerPeer(newPeer))
+		{
+			//Tell the peer how often it has to renew its lease.
+			packetData.add(Integer.toString(connection.getLeaseTime()));
+			addData("REGISTRATION_SUCCESS", packetData, clientAddress, 
+					clientPort);
+			console.registerPeer(clientUsername, clientAddress, 
+					clientPort);
+			peerAdded(newPeer);
+			connection.track(newPeer);
+		}
+		else
+		{
+			packetData.add("Username already in use.");
+			addData("ERROR", packetData, clientAddress, clientPort);
+		}
+		return true;
+	}
+	
+	/**
+	 * Deal with a lease renewal. Receiving it has already renewed the lease 
+	 * of a registered peer. If the peer's lease has run out and it has been 
+	 * removed, it is registered again from the renewal, so it doesn't go on 
+	 * renewing a registration that no longer exists. The peer is sent the 
+	 * same reply as for a REGISTER. A renewal from a peer that has just 
+	 * deregistered was sent before it did so, and is ignored.
+	 * @param username The username in the renewal.
+	 * @param registeredUsername The username registered at the address and 
+	 * port the renewal came from.
+	 * @param clientAddress The IP address of the client.
+	 * @param clientPort The port of the client.
+	 */
+	public void renewLease(String username, String registeredUsername, 
+			String clientAddress, int clientPort)
+	{
+		if(username.equals(registeredUsername) || 
+				connection.hasDeregistered(clientAddress, clientPort))
+		{
+			return;
+		}
+		console.printMessage("LEASE OF " + username + " HAD RUN OUT. " + 
+				"REGISTERING AGAIN.");
+		register(username, clientAddress, clientPort);
 	}
 	
 	/**
@@ -356,12 +701,16 @@ public class ServerNetwork extends Thread{
 			int clientPort)
 	{
 		model.removePeer(clientUsername);
+		connection.deregistered(clientAddress, clientPort);
 		console.deregisterPeer(clientUsername, clientAddress, clientPort);
-		distributePeerLists();
+		peerRemoved(clientUsername);
 	}
 	
 	/**
-	 * Forward sent packet to presentation server.
+	 * Forward sent packet to presentation server. The details are handed to 
+	 * the telemetry exporter, which sends them on in batches. This is only 
+	 * done when forwarding has been turned on for debugging; otherwise the 
+	 * presentation server just gets the aggregator's summaries.
 	 * @param packetData Data in packet.
 	 * @param clientUsername Recipient username.
 	 * @param clientAddress Recipient address.
@@ -381,9 +730,7 @@ public class ServerNetwork extends Thread{
 		
 		//Add date string to packet.
 		Date date = new Date();
-		SimpleDateFormat dateFormat = new SimpleDateFormat
-				("yyyy-MM-dd HH:mm:ss.SSS");
-		dateString = dateFormat.format(date);
+		dateString = dateFormat.get().format(date);
 		packetData.add(dateString);
 		
 		//Add method.
@@ -400,16 +747,7 @@ public class ServerNetwork extends Thread{
 		
 		//Add server as "username".
 		packetData.add("SERVER");
-		try
-		{
-			comm.sendPacket(presAddress, presPort, 
-					tag, packetData);
-		}
-		catch(IOException ioException)
-		{
-			console.printError("An error occured while creating the " +
-					"presentation packet.");
-		}
+		telemetry.record(tag, packetData);
 	}
 	
 	/**
@@ -431,9 +769,7 @@ public class ServerNetwork extends Thread{
 		
 		//Add date string to packet.
 		Date date = new Date();
-		SimpleDateFormat dateFormat = new SimpleDateFormat
-				("yyyy-MM-dd HH:mm:ss.SSS");
-		dateString = dateFormat.format(date);
+		dateString = dateFormat.get().format(date);
 		packetData.add(dateString);
 		
 		//Add method.
@@ -467,9 +803,31 @@ public class ServerNetwork extends Thread{
 	{
 		this.presAddress = presAddress;
 		this.presPort = presPort;
+		telemetry.setDestination(presAddress, presPort);
+		aggregator.setDestination(presAddress, presPort);
 		setPresState(true);
 	}
 	
+	/**
+	 * Getter for the exporter that batches packets forwarded to the 
+	 * presentation server.
+	 * @return The TelemetryExporter object.
+	 */
+	public TelemetryExporter getTelemetry()
+	{
+		return telemetry;
+	}
+	
+	/**
+	 * Getter for the aggregator that sends the presentation server a 
+	 * summary of the received packets every interval.
+	 * @return The TelemetryAggregator object.
+	 */
+	public TelemetryAggregator getAggregator()
+	{
+		return aggregator;
+	}
+	
 	/**
 	 * Getter for presentation server address String.
 	 * @return String representation of address.
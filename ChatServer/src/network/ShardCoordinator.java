@@ -0,0 +1,556 @@
+package network;
+
+import model.*;
+import view.*;
+
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class lets several servers share the registry, with each server (a
+ * shard) owning the usernames that a ShardRing gives it.
+ * <p>
+ * A shard only registers the usernames it owns. Every change to them is
+ * numbered and sent to every other shard in SHARD_CHANGES packets, which
+ * hold the shard's name, the time it started (so a restarted shard isn't
+ * mistaken for an old one), the version of the last change and then the
+ * version, tag and details of each change. At most CHANGES_PER_PACKET
+ * changes go in a packet, and one with no changes is sent every
+ * summaryInterval so that the other shards know the shard is still there
+ * and which version it has reached.
+ * <p>
+ * The receiving shard registers the peers as remote peers, so that its own
+ * clients can look them up, and applies the changes in order. If it hasn't
+ * got a shard's peers yet, the shard has restarted, or a change still hasn't
+ * arrived by the next empty packet, it sends a SHARD_SYNC_REQUEST. The owner
+ * replies with a SHARD_SUMMARY of all its peers, split into parts of at
+ * most PEERS_PER_PART so that no packet gets too big, and the changes after
+ * the summary are applied on top of it.
+ * <p>
+ * The peers of a shard that hasn't been heard from for three intervals are
+ * removed, since the shard has most likely gone.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class ShardCoordinator implements Runnable {
+
+    public static final int CHANGES_PER_PACKET = 100;
+    public static final int PEERS_PER_PART = 200;
+
+    private ServerModel model;
+    private ServerConsole console;
+    private ServerNetwork network;
+    private ShardRing ring;
+    private String self;
+    private long epoch;
+    private long localVersion = 0;
+    //The version, tag and details of each change not yet sent.
+    private List<String> unsent = new ArrayList<String>();
+    private long lastSent = 0;
+    private ConcurrentMap<String, RemoteShard> remotes =
+            new ConcurrentHashMap<String, RemoteShard>();
+    private int summaryInterval = 5000; //The longest time in milliseconds
+    //between packets to the other shards.
+    private int checkTime = 250; //How often in milliseconds to check for
+    //local changes that need sending.
+
+    /**
+     * The constructor for the ShardCoordinator class. With no shards set,
+     * this server owns every username.
+     */
+    public ShardCoordinator() {
+        ring = new ShardRing(new ArrayList<String>());
+        epoch = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to pass a reference to the network to the coordinator.
+     *
+     * @param network The ServerNetwork Object that is being passed in.
+     */
+    public void initNetwork(ServerNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Method to pass a reference to the console to the coordinator.
+     *
+     * @param console The ServerConsole Object that is being passed in.
+     */
+    public void initConsole(ServerConsole console) {
+        this.console = console;
+    }
+
+    /**
+     * Method to pass a reference to the model to the coordinator.
+     *
+     * @param model The ServerModel Object that is being passed in.
+     */
+    public void initModel(ServerModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Set the shards that usernames are split between, and which of them
+     * this server is.
+     *
+     * @param ring The ring of shards.
+     * @param self This server's name in the ring, or null to work it out
+     *             from the server's address and port.
+     */
+    public void setShards(ShardRing ring, String self) {
+        this.ring = ring;
+        this.self = self;
+    }
+
+    /**
+     * Check whether usernames are split between servers.
+     *
+     * @return True if there is more than one shard.
+     */
+    public boolean isSharded() {
+        return ring.isSharded();
+    }
+
+    /**
+     * Find the shard that owns a username.
+     *
+     * @param username The username.
+     * @return The shard, or null if this server owns it.
+     */
+    public String ownerOf(String username) {
+        String owner;
+
+        if (!ring.isSharded()) {
+            return null;
+        }
+        owner = ring.shardFor(username);
+        return owner.equals(getSelf()) ? null : owner;
+    }
+
+    /**
+     * Note that a peer has registered or gone. If this server owns it, the
+     * change is numbered and sent to the other shards.
+     *
+     * @param tag      PEER_ADD or PEER_REMOVE.
+     * @param username The username of the peer.
+     * @param details  The peer's details for PEER_ADD, or its username for
+     *                 PEER_REMOVE.
+     */
+    public void peerChanged(String tag, String username, String details) {
+        if (ring.isSharded() && (ownerOf(username) == null)) {
+            synchronized (this) {
+                localVersion++;
+                unsent.add(Long.toString(localVersion));
+                unsent.add(tag);
+                unsent.add(details);
+            }
+        }
+    }
+
+    /**
+     * The coordinator thread. Sends the local changes to the other shards,
+     * or an empty packet when the interval runs out, and removes the peers
+     * of silent shards.
+     */
+    public void run() {
+        List<String> changes;
+        long version;
+        long now;
+
+        while (true) {
+            try {
+                Thread.sleep(checkTime);
+            } catch (InterruptedException iException) {
+                console.printError("Shard routine interrupted.");
+                return;
+            }
+            if (!ring.isSharded()) {
+                continue;
+            }
+            synchronized (this) {
+                changes = unsent;
+                unsent = new ArrayList<String>();
+                version = localVersion;
+            }
+            now = System.currentTimeMillis();
+            if (!changes.isEmpty() || (now - lastSent >= summaryInterval)) {
+                sendChanges(changes, version);
+                lastSent = now;
+            }
+            dropQuietShards(now);
+        }
+    }
+
+    /**
+     * Remove the peers of any shard that hasn't been heard from for three
+     * intervals.
+     */
+    private synchronized void dropQuietShards(long now) {
+        for (Map.Entry<String, RemoteShard> entry : remotes.entrySet()) {
+            if (now - entry.getValue().lastHeard >= 3 * summaryInterval) {
+                console.printMessage("SHARD " + entry.getKey()
+                        + " HAS GONE QUIET.");
+                applySummary(entry.getValue(), new HashMap<String, Peer>());
+                remotes.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Send changes to every other shard, CHANGES_PER_PACKET at a time.
+     *
+     * @param changes The version, tag and details of each change.
+     * @param version The version of the last change made, which is sent
+     *                when there are no changes.
+     */
+    private void sendChanges(List<String> changes, long version) {
+        int perPacket = 3 * CHANGES_PER_PACKET;
+        int counter = 0;
+
+        do {
+            int end = Math.min(counter + perPacket, changes.size());
+            List<String> packetData = header();
+
+            //Each packet carries the version of its own last change, so
+            //that an empty one can say where the shard has got to.
+            packetData.add((end == 0) ? Long.toString(version)
+                    : changes.get(end - 3));
+            packetData.addAll(changes.subList(counter, end));
+            sendToShards("SHARD_CHANGES", packetData);
+            counter = end;
+        } while (counter < changes.size());
+    }
+
+    /**
+     * Send a packet to every other shard.
+     */
+    private void sendToShards(String tag, List<String> packetData) {
+        String name = getSelf();
+
+        for (String shard : ring.getShards()) {
+            if (!shard.equals(name)) {
+                network.addData(tag, new ArrayList<String>(packetData),
+                        ShardRing.addressOf(shard), ShardRing.portOf(shard));
+            }
+        }
+    }
+
+    /**
+     * Start a packet with this shard's name and start time.
+     */
+    private List<String> header() {
+        List<String> packetData = new ArrayList<String>();
+
+        packetData.add(getSelf());
+        packetData.add(Long.toString(epoch));
+        return packetData;
+    }
+
+    /**
+     * Send all the peers this server owns to a shard that asked for them.
+     *
+     * @param contents The name of the shard asking.
+     */
+    public void receiveSyncRequest(List<String> contents) {
+        String shard = contents.get(0);
+        List<String> peers = new ArrayList<String>();
+        long version;
+        int parts;
+
+        if (!isOtherShard(shard)) {
+            return;
+        }
+        //The version is read first, so the peers include at least every
+        //change up to it. Any later ones they include are sent again and
+        //applying them twice does no harm.
+        synchronized (this) {
+            version = localVersion;
+        }
+        for (Peer peer : model.getOwnPeers()) {
+            peers.add(ServerModel.peerDetails(peer));
+        }
+        parts = Math.max(1, (peers.size() + PEERS_PER_PART - 1)
+                / PEERS_PER_PART);
+        for (int part = 0; part < parts; part++) {
+            List<String> packetData = header();
+
+            packetData.add(Long.toString(version));
+            packetData.add(Integer.toString(part));
+            packetData.add(Integer.toString(parts));
+            packetData.addAll(peers.subList(part * PEERS_PER_PART,
+                    Math.min((part + 1) * PEERS_PER_PART, peers.size())));
+            network.addData("SHARD_SUMMARY", packetData,
+                    ShardRing.addressOf(shard), ShardRing.portOf(shard));
+        }
+    }
+
+    /**
+     * Take in changes from another shard.
+     *
+     * @param contents The shard's name, start time and version, followed by
+     *                 the version, tag and details of each change.
+     */
+    public synchronized void receiveChanges(List<String> contents) {
+        RemoteShard remote = heardFrom(contents);
+        long version = Long.parseLong(contents.get(2));
+
+        if (remote == null) {
+            return;
+        }
+        for (int counter = 3; counter + 2 < contents.size(); counter += 3) {
+            long changeVersion = Long.parseLong(contents.get(counter));
+
+            if (changeVersion > remote.version) {
+                remote.pending.put(changeVersion, new String[]{
+                        contents.get(counter + 1), contents.get(counter + 2)});
+            }
+        }
+        if (remote.version >= 0) {
+            applyPending(contents.get(0), remote);
+        }
+
+        if (remote.version < 0) {
+            requestSync(contents.get(0), remote);
+        } else if (contents.size() == 3) {
+            //Any change the last empty packet announced has had a whole
+            //interval to arrive.
+            if (remote.version < remote.announced) {
+                requestSync(contents.get(0), remote);
+            }
+            remote.announced = version;
+        }
+    }
+
+    /**
+     * Take in one part of the summary a shard sent after being asked.
+     *
+     * @param contents The shard's name, start time and version, the part
+     *                 number, the number of parts and then its peers in the
+     *                 form username;address;port.
+     */
+    public synchronized void receiveSummary(List<String> contents) {
+        RemoteShard remote = heardFrom(contents);
+        String shard = contents.get(0);
+        long version = Long.parseLong(contents.get(2));
+        int part = Integer.parseInt(contents.get(3));
+        int parts = Integer.parseInt(contents.get(4));
+        Map<String, Peer> peers;
+
+        if ((remote == null) || (version <= remote.version)) {
+            return;
+        }
+        if ((remote.summary == null) || (remote.summaryVersion != version)
+                || (remote.summary.size() != parts)) {
+            remote.summary = new ArrayList<List<String>>(
+                    Collections.<List<String>>nCopies(parts, null));
+            remote.summaryVersion = version;
+        }
+        remote.summary.set(part, new ArrayList<String>(
+                contents.subList(5, contents.size())));
+        for (List<String> received : remote.summary) {
+            if (received == null) {
+                return;
+            }
+        }
+
+        peers = new HashMap<String, Peer>();
+        for (List<String> received : remote.summary) {
+            for (String details : received) {
+                Peer peer = parsePeer(shard, details);
+
+                if (peer != null) {
+                    peers.put(peer.getUsername(), peer);
+                }
+            }
+        }
+        remote.summary = null;
+        applySummary(remote, peers);
+        remote.version = version;
+        applyPending(shard, remote);
+    }
+
+    /**
+     * Note that a shard has been heard from, and start again from nothing if
+     * it has restarted.
+     *
+     * @return What is known about the shard, or null if it isn't one of the
+     * other shards.
+     */
+    private RemoteShard heardFrom(List<String> contents) {
+        String shard = contents.get(0);
+        long shardEpoch = Long.parseLong(contents.get(1));
+        RemoteShard remote = remotes.get(shard);
+
+        if (!isOtherShard(shard)) {
+            return null;
+        }
+        if (remote == null) {
+            remote = new RemoteShard();
+            remotes.put(shard, remote);
+        }
+        remote.lastHeard = System.currentTimeMillis();
+        if (shardEpoch != remote.epoch) {
+            //Its versions start again, so the peers it had are only kept
+            //until a summary says what it has now.
+            remote.epoch = shardEpoch;
+            remote.version = -1;
+            remote.announced = -1;
+            remote.pending.clear();
+            remote.summary = null;
+        }
+        return remote;
+    }
+
+    /**
+     * Ask a shard for all its peers, unless that was done within the last
+     * half interval.
+     */
+    private void requestSync(String shard, RemoteShard remote) {
+        long now = System.currentTimeMillis();
+        List<String> packetData = new ArrayList<String>();
+
+        if (now - remote.syncRequested < summaryInterval / 2) {
+            return;
+        }
+        remote.syncRequested = now;
+        packetData.add(getSelf());
+        network.addData("SHARD_SYNC_REQUEST", packetData,
+                ShardRing.addressOf(shard), ShardRing.portOf(shard));
+    }
+
+    /**
+     * Apply the changes that follow on from the shard's version, in order.
+     */
+    private void applyPending(String shard, RemoteShard remote) {
+        //Changes already covered by a summary aren't needed.
+        remote.pending.headMap(remote.version + 1).clear();
+        while (remote.pending.containsKey(remote.version + 1)) {
+            String[] change = remote.pending.remove(remote.version + 1);
+
+            if (change[0].equalsIgnoreCase("PEER_ADD")) {
+                Peer peer = parsePeer(shard, change[1]);
+
+                if (peer != null) {
+                    removeRemote(remote, peer.getUsername(), peer);
+                    addRemote(remote, peer);
+                }
+            } else if (change[0].equalsIgnoreCase("PEER_REMOVE")) {
+                removeRemote(remote, change[1], null);
+            }
+            remote.version++;
+        }
+    }
+
+    /**
+     * Read a peer's details, as long as it really belongs to the shard.
+     *
+     * @return The peer, or null if it belongs to another shard.
+     */
+    private Peer parsePeer(String shard, String details) {
+        String[] peerDetails = details.split(";");
+
+        if (!shard.equals(ring.shardFor(peerDetails[0]))) {
+            return null;
+        }
+        return new Peer(peerDetails[0], peerDetails[1],
+                Integer.parseInt(peerDetails[2]));
+    }
+
+    /**
+     * Register a peer of a shard, unless the username is in use here.
+     */
+    private void addRemote(RemoteShard remote, Peer peer) {
+        if (remote.peers.containsKey(peer.getUsername())) {
+            return;
+        }
+        if (model.registerRemotePeer(peer)) {
+            remote.peers.put(peer.getUsername(), peer);
+        }
+    }
+
+    /**
+     * Remove a peer of a shard, unless it is the same as the one replacing
+     * it.
+     *
+     * @param replacement The peer registering under the username, or null
+     *                    if it is going.
+     */
+    private void removeRemote(RemoteShard remote, String username,
+                              Peer replacement) {
+        Peer old = remote.peers.get(username);
+
+        if ((old == null) || ((replacement != null) && sameEndpoint(old,
+                replacement))) {
+            return;
+        }
+        remote.peers.remove(username);
+        if (model.getPeerList().get(username) == old) {
+            model.removePeer(username);
+        }
+    }
+
+    private static boolean sameEndpoint(Peer first, Peer second) {
+        return first.getAddress().equals(second.getAddress())
+                && (first.getPort() == second.getPort());
+    }
+
+    /**
+     * Check that a name is one of the shards in the ring and isn't this one.
+     */
+    private boolean isOtherShard(String shard) {
+        return ring.getShards().contains(shard) && !shard.equals(getSelf());
+    }
+
+    /**
+     * Add and remove the differences between what a shard had and what it
+     * has now.
+     */
+    private void applySummary(RemoteShard remote, Map<String, Peer> peers) {
+        for (Peer old : new ArrayList<Peer>(remote.peers.values())) {
+            removeRemote(remote, old.getUsername(),
+                    peers.get(old.getUsername()));
+        }
+        for (Peer peer : peers.values()) {
+            addRemote(remote, peer);
+        }
+    }
+
+    /**
+     * Get this server's name in the ring.
+     */
+    private String getSelf() {
+        if (self == null) {
+            try {
+                self = network.getServerAddress() + ":"
+                        + network.getServerPort();
+            } catch (UnknownHostException uhException) {
+                return "";
+            }
+        }
+        return self;
+    }
+
+    /**
+     * What is known about another shard.
+     */
+    private static class RemoteShard {
+        long epoch = -1;
+        //The last change applied, or -1 before the first summary.
+        long version = -1;
+        //The version the last empty packet said the shard had reached.
+        long announced = -1;
+        long syncRequested = 0;
+        volatile long lastHeard;
+        Map<String, Peer> peers = new HashMap<String, Peer>();
+        //Changes that arrived before the ones they follow on from.
+        SortedMap<Long, String[]> pending = new TreeMap<Long, String[]>();
+        //The parts of a summary received so far.
+        List<List<String>> summary;
+        long summaryVersion;
+    }
+}
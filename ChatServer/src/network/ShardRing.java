@@ -0,0 +1,148 @@
+package network;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * This class splits usernames between several registration servers using
+ * consistent hashing.
+ * <p>
+ * Each server (a shard) is given a number of points on a ring of 64 bit
+ * hashes. A username belongs to the first shard point at or after the
+ * username's own hash, going round the ring. Adding or removing a shard
+ * only moves the usernames next to its points, and the extra points for
+ * each shard keep the split even.
+ * <p>
+ * Shards are named "address:port". The clients and every server must be
+ * given the same list of shards so that they agree on where each username
+ * belongs.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class ShardRing {
+
+    private static final int POINTS_PER_SHARD = 64;
+
+    private List<String> shards;
+    private TreeMap<Long, String> ring;
+
+    /**
+     * Constructor for ShardRing.
+     *
+     * @param shards The shards, each in the form address:port.
+     */
+    public ShardRing(Collection<String> shards) {
+        this.shards = Collections.unmodifiableList(
+                new ArrayList<String>(new LinkedHashSet<String>(shards)));
+        ring = new TreeMap<Long, String>();
+        for (String shard : this.shards) {
+            for (int counter = 0; counter < POINTS_PER_SHARD; counter++) {
+                ring.put(hash(shard + "#" + counter), shard);
+            }
+        }
+    }
+
+    /**
+     * Build a ring from a comma separated list of shards.
+     *
+     * @param list The list, such as "10.0.0.1:4506,10.0.0.2:4506". May be
+     *             null or empty.
+     * @return The ring, which has no shards if the list was empty.
+     */
+    public static ShardRing parse(String list) {
+        List<String> shards = new ArrayList<String>();
+
+        if (list != null) {
+            for (String shard : list.split(",")) {
+                if (shard.trim().length() > 0) {
+                    shards.add(shard.trim());
+                }
+            }
+        }
+        return new ShardRing(shards);
+    }
+
+    /**
+     * Find the shard that a username belongs to.
+     *
+     * @param username The username.
+     * @return The shard, or null if the ring has no shards.
+     */
+    public String shardFor(String username) {
+        Map.Entry<Long, String> entry;
+
+        if (ring.isEmpty()) {
+            return null;
+        }
+        entry = ring.ceilingEntry(hash(username));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Check whether there is more than one shard. With one shard or none
+     * every username belongs to the only server.
+     *
+     * @return True if usernames are split between servers.
+     */
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    /**
+     * Getter for the shards in the ring.
+     *
+     * @return A read only list of the shards.
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * Get the address part of a shard name.
+     *
+     * @param shard The shard, in the form address:port.
+     * @return The address.
+     */
+    public static String addressOf(String shard) {
+        return shard.substring(0, shard.lastIndexOf(':'));
+    }
+
+    /**
+     * Get the port part of a shard name.
+     *
+     * @param shard The shard, in the form address:port.
+     * @return The port.
+     */
+    public static int portOf(String shard) {
+        return Integer.parseInt(shard.substring(shard.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Hash a string to a point on the ring, using the first 8 bytes of its
+     * MD5 digest.
+     */
+    private static long hash(String value) {
+        byte[] digest;
+        long result = 0;
+
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(
+                    value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException nsaException) {
+            throw new IllegalStateException(nsaException);
+        } catch (UnsupportedEncodingException ueException) {
+            throw new IllegalStateException(ueException);
+        }
+        for (int counter = 0; counter < 8; counter++) {
+            result = (result << 8) | (digest[counter] & 0xFF);
+        }
+        return result;
+    }
+}
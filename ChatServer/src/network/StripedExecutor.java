@@ -0,0 +1,126 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs tasks on a fixed set of worker threads while keeping the
+ * tasks for any one key in order.
+ * <p>
+ * Each worker has its own queue, and a task always goes to the worker that
+ * its key hashes to. Tasks with the same key therefore run one at a time
+ * and in the order they were given, while tasks with different keys run on
+ * as many workers as there are. The queues are bounded, so when the workers
+ * fall behind execute() waits rather than letting the backlog grow.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class StripedExecutor {
+
+    private String name;
+    private List<BlockingQueue<Runnable>> queues;
+    private Thread[] workers;
+    private AtomicLong completed;
+    private AtomicLong failed;
+
+    /**
+     * Constructor for StripedExecutor.
+     *
+     * @param name        The name the worker threads are given.
+     * @param workerCount The number of worker threads.
+     * @param queueSize   The most tasks that can wait for each worker.
+     */
+    public StripedExecutor(String name, int workerCount, int queueSize) {
+        this.name = name;
+        queues = new ArrayList<BlockingQueue<Runnable>>();
+        for (int counter = 0; counter < Math.max(workerCount, 1); counter++) {
+            queues.add(new ArrayBlockingQueue<Runnable>(queueSize));
+        }
+        completed = new AtomicLong(0);
+        failed = new AtomicLong(0);
+    }
+
+    /**
+     * Start the worker threads. Does nothing if they have already started.
+     */
+    public synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        workers = new Thread[queues.size()];
+        for (int counter = 0; counter < queues.size(); counter++) {
+            final BlockingQueue<Runnable> queue = queues.get(counter);
+
+            workers[counter] = new Thread(new Runnable() {
+                public void run() {
+                    work(queue);
+                }
+            }, name + " " + (counter + 1));
+            workers[counter].setDaemon(true);
+            workers[counter].start();
+        }
+    }
+
+    /**
+     * Queue a task, waiting for room if its worker is behind.
+     *
+     * @param key  The key whose tasks must run in order, or null if the
+     *             task can run anywhere.
+     * @param task The task.
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    public void execute(Object key, Runnable task)
+            throws InterruptedException {
+        int hash = (key == null) ? 0 : key.hashCode();
+
+        //Spread the hash so keys that only differ in their high bits don't
+        //all land on the same worker.
+        hash ^= (hash >>> 16);
+        queues.get((hash & 0x7FFFFFFF) % queues.size()).put(task);
+    }
+
+    /**
+     * Get the number of worker threads.
+     *
+     * @return The number of workers.
+     */
+    public int getWorkerCount() {
+        return queues.size();
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+        while (true) {
+            try {
+                queue.take().run();
+                completed.incrementAndGet();
+            } catch (InterruptedException iException) {
+                return;
+            } catch (RuntimeException rException) {
+                //One bad packet mustn't stop the worker.
+                failed.incrementAndGet();
+                rException.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Produce a one line summary of the executor's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        int waiting = 0;
+
+        for (BlockingQueue<Runnable> queue : queues) {
+            waiting += queue.size();
+        }
+        return name + ": workers " + queues.size() + ", waiting " + waiting
+                + ", completed " + completed.get() + ", failed "
+                + failed.get();
+    }
+}
@@ -80,6 +80,16 @@ public class TCPManager implements CommManager {
         return sendBuffer.length;
     }
 
+    /**
+     * TCP connections are reliable on their own, so this is the same as
+     * sendPacket().
+     */
+    public int sendUnreliablePacket(String rcvAddress, int rcvPort,
+                                    String header, List<String> contents)
+            throws IOException {
+        return sendPacket(rcvAddress, rcvPort, header, contents);
+    }
+
     public byte[] listByteArray(String message, List<String> list) {
         ByteArrayOutputStream byteArrayOS = new ByteArrayOutputStream();
         ObjectOutputStream objectOS;
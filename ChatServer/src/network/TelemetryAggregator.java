@@ -0,0 +1,361 @@
+package network;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts the packets the server receives and sends the
+ * presentation server one summary of them per interval, instead of a record
+ * for every packet.
+ * <p>
+ * For each packet tag it keeps the number of packets, the bytes they took
+ * and a histogram of their transmission times. For each peer it keeps the
+ * number of packets and bytes. Recording a packet only updates counters, so
+ * it is cheap enough for every worker to do on every packet.
+ * <p>
+ * Once per interval a single TELEMETRY_SUMMARY packet is sent. Each entry in
+ * it has its fields joined by TelemetryExporter.FIELD_SEPARATOR, and the
+ * first field says what the entry is:
+ * <ul>
+ * <li>INTERVAL, the start time, the end time.</li>
+ * <li>TAG, the tag, packets, bytes, packets with no transmission time, then
+ * the packets in each histogram bucket. The buckets end at the times in
+ * LATENCY_BOUNDS and the last one holds everything slower.</li>
+ * <li>PEER, the username, address, port, packets, bytes. Only the peers
+ * that sent the most packets are listed.</li>
+ * <li>PEERS, the number of peers heard from, and the packets and bytes of
+ * the ones that weren't listed.</li>
+ * </ul>
+ * Tag counts are exact. Peer counts are swapped out at the end of each
+ * interval, so a packet being counted at that moment can be missed.
+ *
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class TelemetryAggregator implements Runnable {
+
+    public static final String SUMMARY_TAG = "TELEMETRY_SUMMARY";
+    //The upper bounds in milliseconds of the latency histogram's buckets.
+    public static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100,
+            200, 500, 1000, 2000, 5000};
+
+    private CommManager comm;
+    private ConcurrentMap<String, TagStats> tags;
+    private Map<String, long[]> lastSent;
+    private volatile ConcurrentMap<String, PeerStats> peers;
+
+    private volatile String address;
+    private volatile int port;
+    private volatile long interval = 10000;
+    private volatile int topPeers = 20;
+    private long intervalStart;
+
+    private AtomicLong summaries;
+    private AtomicLong failed;
+
+    /**
+     * Constructor for TelemetryAggregator.
+     */
+    public TelemetryAggregator() {
+        tags = new ConcurrentHashMap<String, TagStats>();
+        lastSent = new HashMap<String, long[]>();
+        peers = new ConcurrentHashMap<String, PeerStats>();
+        summaries = new AtomicLong(0);
+        failed = new AtomicLong(0);
+        intervalStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Pass the comm reference to the aggregator.
+     *
+     * @param comm The CommManager object used to send summaries.
+     */
+    public void initComm(CommManager comm) {
+        this.comm = comm;
+    }
+
+    /**
+     * Set where summaries are sent.
+     *
+     * @param address The address of the presentation server.
+     * @param port    The port of the presentation server.
+     */
+    public void setDestination(String address, int port) {
+        this.port = port;
+        this.address = address;
+    }
+
+    /**
+     * Read the aggregator settings from a set of properties. Settings that
+     * are missing or invalid are left as they are.
+     * <p>
+     * telemetry.summaryInterval (ms) and telemetry.topPeers are recognised.
+     *
+     * @param props The properties to read.
+     */
+    public void loadSettings(Properties props) {
+        String interval = props.getProperty("telemetry.summaryInterval");
+        String topPeers = props.getProperty("telemetry.topPeers");
+
+        if (interval != null) {
+            try {
+                setInterval(Long.parseLong(interval.trim()));
+            } catch (NumberFormatException nfException) {
+            }
+        }
+        if (topPeers != null) {
+            try {
+                setTopPeers(Integer.parseInt(topPeers.trim()));
+            } catch (NumberFormatException nfException) {
+            }
+        }
+    }
+
+    /**
+     * Set how often a summary is sent.
+     *
+     * @param interval The interval in milliseconds.
+     */
+    public void setInterval(long interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * Set how many peers are listed on their own in each summary.
+     *
+     * @param topPeers The number of peers.
+     */
+    public void setTopPeers(int topPeers) {
+        this.topPeers = Math.max(0, topPeers);
+    }
+
+    /**
+     * Count a received packet.
+     *
+     * @param tag      The packet tag.
+     * @param username The username of the peer it came from.
+     * @param address  The address it came from.
+     * @param port     The port it came from.
+     * @param size     The length of the packet in bytes.
+     * @param latency  The transmission time in milliseconds, or a negative
+     *                 number if it isn't known.
+     */
+    public void record(String tag, String username, String address,
+                       int port, int size, long latency) {
+        String key = tag.toUpperCase(Locale.ROOT);
+        String peerKey = address + ":" + port;
+        TagStats tagStats = tags.get(key);
+        ConcurrentMap<String, PeerStats> current = peers;
+        PeerStats peerStats = current.get(peerKey);
+
+        if (tagStats == null) {
+            tags.putIfAbsent(key, new TagStats());
+            tagStats = tags.get(key);
+        }
+        tagStats.packets.incrementAndGet();
+        tagStats.bytes.addAndGet(size);
+        if (latency < 0) {
+            tagStats.unknownLatency.incrementAndGet();
+        } else {
+            tagStats.latencies.incrementAndGet(bucket(latency));
+        }
+
+        if (peerStats == null) {
+            current.putIfAbsent(peerKey,
+                    new PeerStats(username, address, port));
+            peerStats = current.get(peerKey);
+        }
+        peerStats.packets.incrementAndGet();
+        peerStats.bytes.addAndGet(size);
+    }
+
+    /**
+     * Find the histogram bucket for a transmission time.
+     */
+    private static int bucket(long latency) {
+        for (int counter = 0; counter < LATENCY_BOUNDS.length; counter++) {
+            if (latency < LATENCY_BOUNDS[counter]) {
+                return counter;
+            }
+        }
+        return LATENCY_BOUNDS.length;
+    }
+
+    /**
+     * The aggregator's thread. Sends a summary once per interval.
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException iException) {
+                return;
+            }
+            send(summarise());
+        }
+    }
+
+    /**
+     * Build the summary of everything counted since the last one.
+     *
+     * @return The entries of the summary.
+     */
+    public synchronized List<String> summarise() {
+        List<String> summary = new ArrayList<String>();
+        ConcurrentMap<String, PeerStats> ended = peers;
+        List<PeerStats> heard;
+        long end = System.currentTimeMillis();
+        long otherPackets = 0;
+        long otherBytes = 0;
+
+        peers = new ConcurrentHashMap<String, PeerStats>();
+        summary.add(entry("INTERVAL", intervalStart, end));
+        intervalStart = end;
+
+        //Tag counters are never reset, so each summary sends how much they
+        //have grown since the last one.
+        for (Map.Entry<String, TagStats> tagEntry : tags.entrySet()) {
+            long[] now = tagEntry.getValue().read();
+            long[] before = lastSent.get(tagEntry.getKey());
+            List<Object> fields = new ArrayList<Object>();
+
+            if ((before != null) && (before[0] == now[0])) {
+                continue;
+            }
+            fields.add("TAG");
+            fields.add(tagEntry.getKey());
+            for (int counter = 0; counter < now.length; counter++) {
+                fields.add(now[counter]
+                        - ((before == null) ? 0 : before[counter]));
+            }
+            summary.add(entry(fields.toArray()));
+            lastSent.put(tagEntry.getKey(), now);
+        }
+
+        //Workers can still be counting into the ended map, so the counts
+        //are copied before they are sorted.
+        heard = new ArrayList<PeerStats>();
+        for (PeerStats peer : ended.values()) {
+            heard.add(peer.copy());
+        }
+        Collections.sort(heard);
+        for (int counter = 0; counter < heard.size(); counter++) {
+            PeerStats peer = heard.get(counter);
+
+            if (counter < topPeers) {
+                summary.add(entry("PEER", peer.username, peer.address,
+                        peer.port, peer.packets.get(), peer.bytes.get()));
+            } else {
+                otherPackets += peer.packets.get();
+                otherBytes += peer.bytes.get();
+            }
+        }
+        summary.add(entry("PEERS", heard.size(), otherPackets, otherBytes));
+        return summary;
+    }
+
+    private static String entry(Object... fields) {
+        StringBuilder builder = new StringBuilder();
+
+        for (Object field : fields) {
+            if (builder.length() > 0) {
+                builder.append(TelemetryExporter.FIELD_SEPARATOR);
+            }
+            builder.append(field);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Send a summary to the presentation server.
+     *
+     * @param summary The entries of the summary.
+     */
+    private void send(List<String> summary) {
+        String destAddress = address;
+
+        if ((comm == null) || (destAddress == null)) {
+            return;
+        }
+        try {
+            comm.sendPacket(destAddress, port, SUMMARY_TAG, summary);
+            summaries.incrementAndGet();
+        } catch (IOException ioException) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Produce a one line summary of the aggregator's metrics.
+     *
+     * @return The summary.
+     */
+    public String toString() {
+        return "telemetry summaries: sent " + summaries.get() + ", failed "
+                + failed.get() + ", tags " + tags.size() + ", peers this "
+                + "interval " + peers.size();
+    }
+
+    /**
+     * The counters for one packet tag.
+     */
+    private static class TagStats {
+        AtomicLong packets = new AtomicLong(0);
+        AtomicLong bytes = new AtomicLong(0);
+        AtomicLong unknownLatency = new AtomicLong(0);
+        AtomicLongArray latencies =
+                new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+        /**
+         * Read the counters in the order they are sent in.
+         */
+        long[] read() {
+            long[] values = new long[3 + latencies.length()];
+
+            values[0] = packets.get();
+            values[1] = bytes.get();
+            values[2] = unknownLatency.get();
+            for (int counter = 0; counter < latencies.length(); counter++) {
+                values[3 + counter] = latencies.get(counter);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * The counters for one peer. Peers that sent more packets sort first.
+     */
+    private static class PeerStats implements Comparable<PeerStats> {
+        String username;
+        String address;
+        int port;
+        AtomicLong packets = new AtomicLong(0);
+        AtomicLong bytes = new AtomicLong(0);
+
+        PeerStats(String username, String address, int port) {
+            this.username = username;
+            this.address = address;
+            this.port = port;
+        }
+
+        PeerStats copy() {
+            PeerStats copy = new PeerStats(username, address, port);
+
+            copy.packets.set(packets.get());
+            copy.bytes.set(bytes.get());
+            return copy;
+        }
+
+        public int compareTo(PeerStats other) {
+            long mine = packets.get();
+            long theirs = other.packets.get();
+
+            return (mine > theirs) ? -1 : ((mine == theirs) ? 0 : 1);
+        }
+    }
+}
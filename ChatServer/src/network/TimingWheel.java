@@ -0,0 +1,110 @@
+package network;
+
+import java.util.*;
+
+/**
+ * This class keeps a set of deadlines in a hashed timing wheel.
+ * <p>
+ * Time is split into ticks, and the wheel has one slot per tick that holds
+ * the keys due in that tick. Scheduling a key and collecting the keys that
+ * are due are both proportional to the number of keys involved rather than
+ * to the number of keys in the wheel. A deadline further away than one turn
+ * of the wheel stays in its slot until the turn it is due on comes round.
+ * <p>
+ * The wheel doesn't remove or move keys. A key whose deadline changes is
+ * simply scheduled again, and whoever collects it decides whether the entry
+ * it was collected for still matters.
+ *
+ * @param <T> The type of the keys.
+ * @author Alex
+ * @version 0.4
+ * @since 0.4
+ */
+public class TimingWheel<T> {
+
+    private long tickTime;
+    private List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * Constructor for TimingWheel.
+     *
+     * @param tickTime  The length of a tick in milliseconds.
+     * @param slotCount The number of slots in the wheel.
+     * @param start     The time in milliseconds that the wheel starts at.
+     */
+    public TimingWheel(long tickTime, int slotCount, long start) {
+        this.tickTime = tickTime;
+        slots = new ArrayList<List<Entry<T>>>(slotCount);
+        for (int counter = 0; counter < slotCount; counter++) {
+            slots.add(new ArrayList<Entry<T>>());
+        }
+        currentTick = start / tickTime;
+    }
+
+    /**
+     * Schedule a key. A deadline that has already passed is due on the next
+     * call to advance().
+     *
+     * @param key      The key.
+     * @param deadline The time in milliseconds that the key is due.
+     */
+    public synchronized void schedule(T key, long deadline) {
+        long tick = Math.max(deadline / tickTime, currentTick);
+
+        slots.get((int) (tick % slots.size())).add(new Entry<T>(key, tick));
+        size++;
+    }
+
+    /**
+     * Move the wheel on to a given time and collect every key that has
+     * become due.
+     *
+     * @param now The current time in milliseconds.
+     * @return The keys that are due, in deadline order.
+     */
+    public synchronized List<T> advance(long now) {
+        List<T> due = new ArrayList<T>();
+        long lastTick = now / tickTime;
+
+        while (currentTick <= lastTick) {
+            List<Entry<T>> slot = slots.get((int) (currentTick % slots.size()));
+            Iterator<Entry<T>> iterator = slot.iterator();
+
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+
+                if (entry.tick <= currentTick) {
+                    due.add(entry.key);
+                    iterator.remove();
+                    size--;
+                }
+            }
+            currentTick++;
+        }
+        //The next call picks up from the current tick again, in case more
+        //keys are scheduled for it before it ends.
+        currentTick = lastTick;
+        return due;
+    }
+
+    /**
+     * Get the number of keys in the wheel.
+     *
+     * @return The number of keys.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private static class Entry<T> {
+        T key;
+        long tick;
+
+        Entry(T key, long tick) {
+            this.key = key;
+            this.tick = tick;
+        }
+    }
+}
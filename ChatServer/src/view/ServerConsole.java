@@ -7,8 +7,14 @@ import network.*;
 
 public class ServerConsole {
 
-    private Date date;
-    private SimpleDateFormat dateFormat;
+    //Workers print from several threads at once and SimpleDateFormat isn't
+    //safe to share, so each thread has its own.
+    private static final ThreadLocal<SimpleDateFormat> dateFormat =
+            new ThreadLocal<SimpleDateFormat>() {
+                protected SimpleDateFormat initialValue() {
+                    return new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+                }
+            };
     private ServerNetwork network;
     private String presAddress;
     private String presPort;
@@ -26,8 +32,6 @@ public class ServerConsole {
      * @since 0.2
      */
     public ServerConsole() {
-        date = new Date();
-        dateFormat = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
     }
 
     public void initView(ServerView view) {
@@ -42,7 +46,7 @@ public class ServerConsole {
      * @return Date time String.
      */
     private String getCurrentDateTime() {
-        return dateFormat.format(date);
+        return dateFormat.get().format(new Date());
     }
 
     /**
@@ -81,7 +85,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void request(String username, String address, int port) {
-        date = new Date();
         String message;
 
         //Construct string and send to console.
@@ -100,7 +103,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void registerPeer(String username, String address, int port) {
-        date = new Date();
         String message;
 
         //Construct string and send to console.
@@ -119,7 +121,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void deregisterPeer(String username, String address, int port) {
-        date = new Date();
         String message;
 
         //Construct string and send to console.
@@ -138,7 +139,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void peerList(String username, String address, int port) {
-        date = new Date();
         String message;
 
         message = "PEERLIST: Peer '" + username + "' @ " + address
@@ -153,8 +153,10 @@ public class ServerConsole {
      * @param message String to print.
      */
     public void printMessage(String message) {
-        System.out.println(getCurrentDateTime() + " | " + message);
-        view.logMessage(getCurrentDateTime() + " | " + message);
+        String line = getCurrentDateTime() + " | " + message;
+
+        System.out.println(line);
+        view.logMessage(line);
     }
 
     /**
@@ -176,7 +178,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void lifeCheck(String username, String address, int port) {
-        date = new Date();
         String message;
 
         message = "LIFE CHECK: Peer '" + username + "' @ " + address
@@ -194,7 +195,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void lifeVerified(String username, String address, int port) {
-        date = new Date();
         String message;
 
         //Construct string and send to console.
@@ -213,7 +213,6 @@ public class ServerConsole {
      * @param port     The port number.
      */
     public void lifeFail(String username, String address, int port) {
-        date = new Date();
         String message;
 
         //Construct string and send to console.